@@ -0,0 +1,18 @@
+package BotFrameworkBox;
+
+/**
+ * A compact alternative to a {@link DatabaseEntryType}'s JSON serializer and deserializer, see
+ * {@link DatabaseEntryType#getBinaryCodec()}. Rows are stored with the version they were written with. Fields can be
+ * added and removed without a new version (unknown fields are skipped, missing fields keep their defaults), only bump
+ * the version if an existing field number changes meaning
+ */
+public interface BinaryCodec<T> {
+    int getVersion();
+
+    void write(T value, BinaryWriter out);
+
+    /**
+     * @param version the version the entry was written with
+     */
+    T read(BinaryReader in, int version);
+}
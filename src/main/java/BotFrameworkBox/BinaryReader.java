@@ -0,0 +1,143 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.BadStateException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the fields written by a {@link BinaryWriter}, one at a time:
+ * <pre>
+ * while (in.nextField()) {
+ *     switch (in.getField()) {
+ *         case 1: ... = in.readInt(); break;
+ *         default: in.skipField();
+ *     }
+ * }
+ * </pre>
+ */
+public class BinaryReader {
+    private final byte[] buffer;
+    private final int end;
+    private int position;
+    private int field = 0;
+    private int wireType = -1;
+
+    public BinaryReader(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    private BinaryReader(byte[] buffer, int start, int end) {
+        this.buffer = buffer;
+        this.position = start;
+        this.end = end;
+    }
+
+    /**
+     * Moves to the next field, its value must then be read or skipped
+     *
+     * @return false if there are no more fields
+     */
+    public boolean nextField() {
+        if (position >= end) {
+            return false;
+        }
+        long tag = readRawVarint();
+        field = (int) (tag >>> 1);
+        wireType = (int) (tag & 1);
+        return true;
+    }
+
+    /**
+     * @return the current field's number
+     */
+    public int getField() {
+        return field;
+    }
+
+    public long readLong() {
+        checkWireType(BinaryWriter.wireVarint);
+        long raw = readRawVarint();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    public int readInt() {
+        long value = readLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new BadStateException("Binary entry field " + field + " is too large for an int");
+        }
+        return (int) value;
+    }
+
+    public boolean readBoolean() {
+        return readLong() != 0;
+    }
+
+    public String readString() {
+        int length = readLength();
+        String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public byte[] readBytes() {
+        int length = readLength();
+        byte[] value = Arrays.copyOfRange(buffer, position, position + length);
+        position += length;
+        return value;
+    }
+
+    /**
+     * @return a reader over the fields of a message written with {@link BinaryWriter#writeMessage(int, BinaryWriter)}
+     */
+    public BinaryReader readMessage() {
+        int length = readLength();
+        BinaryReader message = new BinaryReader(buffer, position, position + length);
+        position += length;
+        return message;
+    }
+
+    /**
+     * Skips the current field's value (e.g. a field from a newer version of the type)
+     */
+    public void skipField() {
+        if (wireType == BinaryWriter.wireVarint) {
+            readRawVarint();
+        }
+        else {
+            // Read first, position += readLength() would add to the position from before the length
+            int length = readLength();
+            position += length;
+        }
+    }
+
+    long readRawVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= end) {
+                throw new BadStateException("Binary entry is truncated");
+            }
+            byte b = buffer[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new BadStateException("Binary entry has a malformed varint");
+    }
+
+    private int readLength() {
+        checkWireType(BinaryWriter.wireLengthDelimited);
+        long length = readRawVarint();
+        if (length < 0 || length > end - position) {
+            throw new BadStateException("Binary entry is truncated");
+        }
+        return (int) length;
+    }
+
+    private void checkWireType(int expected) {
+        if (wireType != expected) {
+            throw new BadStateException("Binary entry field " + field + " has the wrong wire type");
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package BotFrameworkBox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds an entry in the binary format read by {@link BinaryReader}. Each field is written as a varint tag (the field's
+ * number and how its value is encoded) followed by its value, so fields can be left out (e.g. when they're the
+ * default) and readers can skip fields they don't know. Numbers are zigzag varints so small values, positive or
+ * negative, take a single byte
+ */
+public class BinaryWriter {
+    /*
+     * Wire types, the lowest bit of a tag
+     */
+    static final int wireVarint = 0;
+    static final int wireLengthDelimited = 1;
+
+    private byte[] buffer = new byte[64];
+    private int size = 0;
+
+    public BinaryWriter writeLong(int field, long value) {
+        writeTag(field, wireVarint);
+        writeRawVarint((value << 1) ^ (value >> 63));
+        return this;
+    }
+
+    public BinaryWriter writeInt(int field, int value) {
+        return writeLong(field, value);
+    }
+
+    public BinaryWriter writeBoolean(int field, boolean value) {
+        return writeLong(field, value ? 1 : 0);
+    }
+
+    public BinaryWriter writeString(int field, String value) {
+        return writeBytes(field, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public BinaryWriter writeBytes(int field, byte[] value) {
+        writeTag(field, wireLengthDelimited);
+        writeRawVarint(value.length);
+        append(value, value.length);
+        return this;
+    }
+
+    /**
+     * Nests another writer's fields, read with {@link BinaryReader#readMessage()}
+     */
+    public BinaryWriter writeMessage(int field, BinaryWriter message) {
+        writeTag(field, wireLengthDelimited);
+        writeRawVarint(message.size);
+        append(message.buffer, message.size);
+        return this;
+    }
+
+    private void writeTag(int field, int wireType) {
+        if (field <= 0) {
+            throw new IllegalArgumentException("Field numbers start at 1");
+        }
+        writeRawVarint(((long) field << 1) | wireType);
+    }
+
+    /**
+     * Unsigned LEB128: seven bits per byte, lowest first, top bit set on all but the last byte
+     */
+    void writeRawVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    private void append(byte[] bytes, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, 0, buffer, size, length);
+        size += length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+}
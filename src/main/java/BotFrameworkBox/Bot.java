@@ -11,6 +11,7 @@ import net.dv8tion.jda.api.OnlineStatus;
 import net.dv8tion.jda.api.entities.ChannelType;
 import net.dv8tion.jda.api.entities.MessageChannel;
 import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.events.ReadyEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageDeleteEvent;
@@ -43,10 +44,21 @@ public class Bot {
             pathToTatsuyaBot = args[0];
             resourceFilePath = pathToTatsuyaBot + resourceFilePath;
         }
-        startJDA();
+        // Spread the database over this many partitions rather than using one file
+        if (args.length > 1) {
+            final int partitionCount = parsePartitionCount(args[1]);
+            if (partitionCount < 1 || args.length > 2) {
+                System.err.println("Usage: Bot [path to TatsuyaBot] [partition count (at least 1)]");
+                System.exit(1);
+            }
+            DatabaseWrapper.setStorageType(StorageType.PARTITIONED, partitionCount);
+        }
+        // Commands and database types need to be ready before the bot is (see BotReadyCommand)
         loadCommands("BotFrameworkBox");
         loadCommands(IDs.customCommandsBox);
         DatabaseWrapper.setDatabaseEntryTypes(IDs.databaseEntryTypes);
+        DatabaseWrapper.scheduleBackups();
+        startJDA();
     }
 
 
@@ -67,6 +79,19 @@ public class Bot {
     }
 
 
+    /**
+     * @return the count, 0 if it isn't a number
+     */
+    static int parsePartitionCount(String arg) {
+        try {
+            return Integer.parseInt(arg.trim());
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
     /*
      * Instantiate each command from the CommandsBox and add it to the commands map
      */
@@ -130,6 +155,16 @@ public class Bot {
             }
         }
 
+        @Override
+        public void onReady(ReadyEvent event) {
+            super.onReady(event);
+            for (AbstractCommand command : commands.values()) {
+                if (command instanceof BotReadyCommand) {
+                    ((BotReadyCommand) command).onBotReady(event.getJDA());
+                }
+            }
+        }
+
         @Override
         public void onGuildMessageDelete(GuildMessageDeleteEvent event) {
             super.onGuildMessageDelete(event);
@@ -0,0 +1,14 @@
+package BotFrameworkBox;
+
+import net.dv8tion.jda.api.JDA;
+
+/**
+ * Commands that need to do something once the bot has connected and its caches are loaded (e.g. restoring state from
+ * the database)
+ */
+public interface BotReadyCommand {
+    /**
+     * Called once when the bot is ready
+     */
+    void onBotReady(JDA jda);
+}
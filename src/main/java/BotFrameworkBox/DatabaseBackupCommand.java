@@ -0,0 +1,67 @@
+package BotFrameworkBox;
+
+import net.dv8tion.jda.api.entities.MessageChannel;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import org.jetbrains.annotations.NotNull;
+
+
+/**
+ * Backs up the database on demand and reports how long it took and how big the backup is
+ */
+public class DatabaseBackupCommand extends AbstractCommand {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HelpCommand.HelpVisibility getHelpVisibility() {
+        return HelpCommand.HelpVisibility.ADMIN;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
+        checkPermission(event.getMember());
+        final MessageChannel channel = event.getChannel();
+        DatabaseWrapper.BackupReport last = DatabaseWrapper.getLastBackup();
+        sendMessage(channel, "Backing up the database. Last backup: " + (last == null ? "none" : last.toString()));
+        // Run on the backup thread so that commands aren't held up while it's in progress
+        DatabaseWrapper.backupAsync().whenComplete((report, e) -> {
+            if (e != null) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                sendMessage(channel, "Backup failed: " + cause.getMessage());
+                return;
+            }
+            sendMessage(channel, report.toString());
+        });
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getCommand() {
+        return "dbBackup";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDescription() {
+        return "back up the database now and show how long it took and its size";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Rank getRequiredRank() {
+        return Rank.CREATOR;
+    }
+}
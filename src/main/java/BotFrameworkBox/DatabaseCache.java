@@ -0,0 +1,526 @@
+package BotFrameworkBox;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sits in front of the database, holding recently used entries as they're stored (rather than as objects so that
+ * callers can't change what's cached). Reads that miss are loaded from the database. Saves and deletes go into the
+ * cache straight away and are written behind: they're queued, later saves of an entry replace earlier ones that
+ * haven't been written yet, and the queue is written in a single transaction every {@link #flushIntervalMillis} and
+ * when the cache is closed. Saves of what's already stored are dropped. Concurrent misses on the same entry share a
+ * single load. Thread safe
+ */
+public class DatabaseCache {
+    private static final int maxEntries = 5000;
+    /**
+     * Entries are reloaded after this long in case something else has changed the database
+     */
+    private static final long timeToLiveNanos = TimeUnit.MINUTES.toNanos(10);
+    private static final long flushIntervalMillis = 1000;
+
+    private final Loader loader;
+    private final Writer writer;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "database-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Guards everything below it
+     */
+    private final Object lock = new Object();
+    /**
+     * A null entry means there isn't one in the database
+     */
+    private final Map<EntryKey, CachedEntry> entries = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<EntryKey, CachedEntry> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    /**
+     * Saves waiting to be written, null for deletes
+     */
+    private Map<EntryKey, StoredEntry> pending = new LinkedHashMap<>();
+    /**
+     * Saves being written by the current flush (still read from until they've been committed)
+     */
+    private Map<EntryKey, StoredEntry> flushing = Collections.emptyMap();
+    /**
+     * Completed when everything in {@link #flushing} has been written
+     */
+    private CompletableFuture<Void> flushingWritten = CompletableFuture.completedFuture(null);
+    /**
+     * Completed when everything in {@link #pending} has been written
+     */
+    private CompletableFuture<Void> pendingWritten = new CompletableFuture<>();
+    /**
+     * Loads from the database that are in progress
+     */
+    private final Map<EntryKey, CompletableFuture<StoredEntry>> loading = new HashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+    /**
+     * Misses that waited for another thread's load rather than loading themselves
+     */
+    private long sharedLoads = 0;
+    /**
+     * Saves dropped because they matched what was already stored or queued
+     */
+    private long skippedSaves = 0;
+    /**
+     * Flushed entries that only wrote their changed fields
+     */
+    private long partialEntries = 0;
+    private long flushes = 0;
+    private long flushedEntries = 0;
+    private long totalFlushNanos = 0;
+    private long maxFlushNanos = 0;
+    /**
+     * Only one flush at a time so that batches are written in order
+     */
+    private final Object flushLock = new Object();
+
+    DatabaseCache(Loader loader, Writer writer) {
+        this.loader = loader;
+        this.writer = writer;
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            }
+            catch (SQLException | RuntimeException e) {
+                // Left queued to be tried again next time
+                e.printStackTrace();
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the entry, null if there isn't one
+     */
+    StoredEntry get(String guild, int typeId) throws SQLException {
+        EntryKey key = new EntryKey(guild, typeId);
+        long now = System.nanoTime();
+        CompletableFuture<StoredEntry> load;
+        boolean loadHere;
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                hits++;
+                return pending.get(key);
+            }
+            if (flushing.containsKey(key)) {
+                hits++;
+                return flushing.get(key);
+            }
+            CachedEntry cached = entries.get(key);
+            if (cached != null && now - cached.cachedAtNanos < timeToLiveNanos) {
+                hits++;
+                return cached.entry;
+            }
+            misses++;
+            load = loading.get(key);
+            loadHere = load == null;
+            if (loadHere) {
+                load = new CompletableFuture<>();
+                loading.put(key, load);
+            }
+            else {
+                sharedLoads++;
+            }
+        }
+        if (!loadHere) {
+            return join(load);
+        }
+
+        StoredEntry entry;
+        try {
+            entry = loader.load(guild, typeId);
+        }
+        catch (SQLException | RuntimeException e) {
+            synchronized (lock) {
+                loading.remove(key);
+            }
+            load.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (lock) {
+            loading.remove(key);
+            cacheLoaded(key, entry, now);
+            // Anything saved while this was loading is newer than what was loaded
+            entry = getNewer(key, entry, now);
+        }
+        load.complete(entry);
+        return entry;
+    }
+
+    /**
+     * Must hold {@link #lock}
+     *
+     * @param loaded what was loaded from the database
+     * @return the newest of loaded and anything saved or cached after the load started
+     */
+    private StoredEntry getNewer(EntryKey key, StoredEntry loaded, long loadStartedNanos) {
+        if (pending.containsKey(key)) {
+            return pending.get(key);
+        }
+        if (flushing.containsKey(key)) {
+            return flushing.get(key);
+        }
+        CachedEntry cached = entries.get(key);
+        if (cached != null && cached.cachedAtNanos - loadStartedNanos > 0) {
+            return cached.entry;
+        }
+        return loaded;
+    }
+
+    /**
+     * Cache entries loaded from the database outside of {@link #get(String, int)}
+     *
+     * @param loaded null for entries that aren't in the database
+     * @param loadStartedNanos {@link System#nanoTime()} from before the load started
+     */
+    void putLoaded(Map<EntryKey, StoredEntry> loaded, long loadStartedNanos) {
+        synchronized (lock) {
+            for (Map.Entry<EntryKey, StoredEntry> entry : loaded.entrySet()) {
+                cacheLoaded(entry.getKey(), entry.getValue(), loadStartedNanos);
+            }
+        }
+    }
+
+    /**
+     * Must hold {@link #lock}
+     */
+    private void cacheLoaded(EntryKey key, StoredEntry entry, long loadStartedNanos) {
+        // Anything saved while this was loading is newer
+        CachedEntry cached = entries.get(key);
+        if (!pending.containsKey(key) && !flushing.containsKey(key)
+                && (cached == null || cached.cachedAtNanos - loadStartedNanos <= 0)) {
+            entries.put(key, new CachedEntry(entry, loadStartedNanos));
+        }
+    }
+
+    /**
+     * Waits for another thread's load
+     */
+    private static StoredEntry join(CompletableFuture<StoredEntry> load) throws SQLException {
+        try {
+            return load.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param entry null to delete the entry
+     * @return completed once the entry has been written to the database (on the thread that writes it)
+     */
+    CompletableFuture<Void> put(String guild, int typeId, StoredEntry entry) {
+        return put(guild, typeId, entry, null);
+    }
+
+    /**
+     * Dropped if the entry is the same as what's known to be stored or queued. Otherwise entry's changes are only kept
+     * if base is what's stored or queued so that writing just the changes gives entry
+     *
+     * @param entry null to delete the entry
+     * @param base what entry's changes are relative to, null if it has none
+     * @return completed once the entry has been written to the database (on the thread that writes it)
+     */
+    CompletableFuture<Void> put(String guild, int typeId, StoredEntry entry, StoredEntry base) {
+        EntryKey key = new EntryKey(guild, typeId);
+        long now = System.nanoTime();
+        synchronized (lock) {
+            boolean isPending = pending.containsKey(key);
+            boolean isFlushing = !isPending && flushing.containsKey(key);
+            boolean known = isPending || isFlushing;
+            StoredEntry current = null;
+            if (isPending) {
+                current = pending.get(key);
+            }
+            else if (isFlushing) {
+                current = flushing.get(key);
+            }
+            else {
+                CachedEntry cached = entries.get(key);
+                known = cached != null && now - cached.cachedAtNanos < timeToLiveNanos;
+                if (known) {
+                    current = cached.entry;
+                }
+            }
+            if (known && Objects.equals(current, entry)) {
+                skippedSaves++;
+                if (isPending) {
+                    return pendingWritten;
+                }
+                return isFlushing ? flushingWritten : CompletableFuture.completedFuture(null);
+            }
+
+            if (entry != null && entry.getChanges() != null) {
+                if (!known || current == null || !current.isPlainJson() || !current.equals(base)) {
+                    entry = entry.withoutChanges();
+                }
+                else if (isPending) {
+                    // The queued entry hasn't been written so neither are relative to what's stored
+                    entry = entry.mergeChanges(current);
+                }
+            }
+            entries.put(key, new CachedEntry(entry, now));
+            pending.put(key, entry);
+            return pendingWritten;
+        }
+    }
+
+    /**
+     * Queues all the saves together so that they're written in the same transaction
+     *
+     * @param saves null entries to delete
+     * @return completed once the entries have been written to the database (on the thread that writes them)
+     */
+    CompletableFuture<Void> putAll(Map<EntryKey, StoredEntry> saves) {
+        long now = System.nanoTime();
+        synchronized (lock) {
+            for (Map.Entry<EntryKey, StoredEntry> save : saves.entrySet()) {
+                entries.put(save.getKey(), new CachedEntry(save.getValue(), now));
+                pending.put(save.getKey(), save.getValue());
+            }
+            return pendingWritten;
+        }
+    }
+
+    /**
+     * Writes every queued save
+     *
+     * @throws SQLException if the write fails (the saves stay queued)
+     */
+    void flush() throws SQLException {
+        synchronized (flushLock) {
+            Map<EntryKey, StoredEntry> batch;
+            CompletableFuture<Void> batchWritten;
+            synchronized (lock) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = pending;
+                batchWritten = pendingWritten;
+                pending = new LinkedHashMap<>();
+                pendingWritten = new CompletableFuture<>();
+                flushing = batch;
+                flushingWritten = batchWritten;
+            }
+
+            long startNanos = System.nanoTime();
+            try {
+                writer.write(batch);
+            }
+            catch (SQLException | RuntimeException e) {
+                synchronized (lock) {
+                    // Anything saved since is newer, but its changes were relative to the batch being written
+                    for (Map.Entry<EntryKey, StoredEntry> entry : batch.entrySet()) {
+                        if (!pending.containsKey(entry.getKey())) {
+                            pending.put(entry.getKey(), entry.getValue());
+                        }
+                        else {
+                            StoredEntry newer = pending.get(entry.getKey());
+                            if (newer != null) {
+                                pending.put(entry.getKey(), newer.mergeChanges(entry.getValue()));
+                            }
+                        }
+                    }
+                    flushing = Collections.emptyMap();
+                    flushingWritten = CompletableFuture.completedFuture(null);
+                    pendingWritten.whenComplete((ignored, error) -> {
+                        if (error == null) {
+                            batchWritten.complete(null);
+                        }
+                        else {
+                            batchWritten.completeExceptionally(error);
+                        }
+                    });
+                }
+                throw e;
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+
+            synchronized (lock) {
+                flushing = Collections.emptyMap();
+                flushingWritten = CompletableFuture.completedFuture(null);
+                flushes++;
+                flushedEntries += batch.size();
+                for (StoredEntry entry : batch.values()) {
+                    if (entry != null && entry.getChanges() != null) {
+                        partialEntries++;
+                    }
+                }
+                totalFlushNanos += elapsedNanos;
+                maxFlushNanos = Math.max(maxFlushNanos, elapsedNanos);
+            }
+            batchWritten.complete(null);
+        }
+    }
+
+    /**
+     * Stops flushing on a timer and writes everything that's queued
+     *
+     * @throws SQLException if the write fails (the saves are lost)
+     */
+    void close() throws SQLException {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        }
+        catch (SQLException | RuntimeException e) {
+            synchronized (lock) {
+                pendingWritten.completeExceptionally(e);
+            }
+            throw e;
+        }
+    }
+
+    public Stats getStats() {
+        synchronized (lock) {
+            return new Stats(hits, misses, sharedLoads, skippedSaves, pending.size(), flushes, flushedEntries,
+                    partialEntries, totalFlushNanos, maxFlushNanos
+            );
+        }
+    }
+
+    interface Loader {
+        /**
+         * @return the entry from the database, null if there isn't one
+         */
+        StoredEntry load(String guild, int typeId) throws SQLException;
+    }
+
+    interface Writer {
+        /**
+         * Write all entries in a single transaction
+         *
+         * @param entries null entries to delete
+         */
+        void write(Map<EntryKey, StoredEntry> entries) throws SQLException;
+    }
+
+    static class EntryKey {
+        final String guild;
+        final int typeId;
+
+        EntryKey(String guild, int typeId) {
+            this.guild = guild;
+            this.typeId = typeId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EntryKey)) {
+                return false;
+            }
+            EntryKey other = (EntryKey) o;
+            return typeId == other.typeId && guild.equals(other.guild);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(guild, typeId);
+        }
+    }
+
+    private static class CachedEntry {
+        private final StoredEntry entry;
+        private final long cachedAtNanos;
+
+        private CachedEntry(StoredEntry entry, long cachedAtNanos) {
+            this.entry = entry;
+            this.cachedAtNanos = cachedAtNanos;
+        }
+    }
+
+    /**
+     * Counts since the cache was opened
+     */
+    public static class Stats {
+        public final long hits;
+        public final long misses;
+        /**
+         * Misses that shared another thread's load
+         */
+        public final long sharedLoads;
+        /**
+         * Saves dropped because they matched what was already stored or queued
+         */
+        public final long skippedSaves;
+        /**
+         * Saves waiting to be written
+         */
+        public final int queued;
+        public final long flushes;
+        public final long flushedEntries;
+        /**
+         * Flushed entries that only wrote their changed fields
+         */
+        public final long partialEntries;
+        public final long totalFlushNanos;
+        public final long maxFlushNanos;
+
+        private Stats(long hits, long misses, long sharedLoads, long skippedSaves, int queued, long flushes,
+                long flushedEntries, long partialEntries, long totalFlushNanos, long maxFlushNanos
+        ) {
+            this.hits = hits;
+            this.misses = misses;
+            this.sharedLoads = sharedLoads;
+            this.skippedSaves = skippedSaves;
+            this.queued = queued;
+            this.flushes = flushes;
+            this.flushedEntries = flushedEntries;
+            this.partialEntries = partialEntries;
+            this.totalFlushNanos = totalFlushNanos;
+            this.maxFlushNanos = maxFlushNanos;
+        }
+
+        /**
+         * @return fraction of reads that didn't go to the database, 0 if there haven't been any
+         */
+        public double getHitRatio() {
+            long reads = hits + misses;
+            return reads == 0 ? 0 : (double) hits / reads;
+        }
+
+        public double getAverageFlushMillis() {
+            return flushes == 0 ? 0 : totalFlushNanos / 1e6 / flushes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Cache hit ratio %.1f%% (%d hits, %d misses, %d shared loads), %d saves skipped, "
+                            + "%d saves queued, %d flushes of %d entries (%d partial, average %.2f ms, max %.2f ms)",
+                    getHitRatio() * 100, hits, misses, sharedLoads, skippedSaves, queued, flushes, flushedEntries,
+                    partialEntries, getAverageFlushMillis(), maxFlushNanos / 1e6
+            );
+        }
+    }
+}
@@ -2,6 +2,9 @@ package BotFrameworkBox;
 
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+
+import java.util.Set;
 
 public interface DatabaseEntryType<T> {
     Class<T> getReturnClass();
@@ -9,4 +12,33 @@ public interface DatabaseEntryType<T> {
     JsonDeserializer<T> getDeserializer();
 
     JsonSerializer<T> getSerializer();
+
+    /**
+     * @return an adapter that reads and writes the JSON directly rather than through a tree, used instead of the
+     *         serializer and deserializer if not null. It must produce the same JSON as them
+     */
+    default TypeAdapter<T> getTypeAdapter() {
+        return null;
+    }
+
+    /**
+     * Lets saves that only change a few fields write just those fields (see
+     * {@link DatabaseWrapper#saveData(String, DatabaseEntryType, Object)}). Types that override this are stored as
+     * uncompressed JSON so that their fields can be written in place
+     *
+     * @param previous an earlier value of the same entry
+     * @return the top level JSON keys whose values may differ from previous (including keys that are now left out),
+     *         null if it's unknown
+     */
+    default Set<String> getChangedFields(T previous) {
+        return null;
+    }
+
+    /**
+     * @return the codec to store the type in binary rather than JSON, null to keep using JSON. Existing JSON rows can
+     *         still be read once a codec is added
+     */
+    default BinaryCodec<T> getBinaryCodec() {
+        return null;
+    }
 }
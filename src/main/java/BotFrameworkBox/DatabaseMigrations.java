@@ -0,0 +1,111 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.BadStateException;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Brings the database schema up to date when the database is opened. The version the database is at is kept in the
+ * schema_version table and each {@link Migration} newer than that is run in order, in its own transaction
+ */
+public class DatabaseMigrations {
+    private static final String versionTable = "schema_version";
+
+    /**
+     * @return the version the schema will be at once every migration has run
+     */
+    public static int getLatestVersion() {
+        return Migration.values().length;
+    }
+
+    /**
+     * Runs every migration the database hasn't had yet
+     *
+     * @return the version the database is now at
+     * @throws BadStateException if the database is newer than this code
+     */
+    public static int migrate(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS " + versionTable + " (version int NOT NULL)");
+        }
+        int version = getVersion(connection);
+        if (version > getLatestVersion()) {
+            throw new BadStateException(String.format(
+                    "Database schema is at version %d but only %d is known, has the bot been downgraded?", version,
+                    getLatestVersion()
+            ));
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            for (Migration migration : Migration.values()) {
+                if (migration.getVersion() <= version) {
+                    continue;
+                }
+                try (Statement stmt = connection.createStatement()) {
+                    for (String statement : migration.statements) {
+                        stmt.execute(statement);
+                    }
+                    stmt.execute("DELETE FROM " + versionTable);
+                    stmt.execute("INSERT INTO " + versionTable + " (version) VALUES (" + migration.getVersion() + ")");
+                    connection.commit();
+                }
+                catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+                version = migration.getVersion();
+            }
+        }
+        finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return version;
+    }
+
+    /**
+     * @return the version of the schema, 0 if no migrations have been run
+     */
+    public static int getVersion(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM " + versionTable);
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Every change made to the schema, in the order they're applied. The version of each is its position (starting at
+     * 1). Never edit or reorder a migration once it has been released, add a new one to the end instead
+     */
+    private enum Migration {
+        /**
+         * Uses IF NOT EXISTS as databases from before migrations already have it
+         */
+        CREATE_BLOBS(
+                "CREATE TABLE IF NOT EXISTS blobs ("
+                        + "guildId text NOT NULL,"
+                        + "entryType int NOT NULL,"
+                        + "entry text NOT NULL,"
+                        + "CONSTRAINT PK_blobs PRIMARY KEY(guildId, entryType)"
+                        + ")"
+        ),
+        /**
+         * Which format each row's entry is in (see {@link StoredEntry}), existing rows are all JSON
+         */
+        ADD_ENTRY_FORMAT("ALTER TABLE blobs ADD COLUMN format int NOT NULL DEFAULT 0");
+
+        private final String[] statements;
+
+        Migration(String... statements) {
+            this.statements = statements;
+        }
+
+        int getVersion() {
+            return ordinal() + 1;
+        }
+    }
+}
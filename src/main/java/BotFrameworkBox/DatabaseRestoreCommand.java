@@ -0,0 +1,117 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.BadUserInputException;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Replaces the database with one of its backups, or lists the backups if none is named
+ */
+public class DatabaseRestoreCommand extends AbstractCommand {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HelpCommand.HelpVisibility getHelpVisibility() {
+        return HelpCommand.HelpVisibility.ADMIN;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
+        checkPermission(event.getMember());
+        final List<File> backups = DatabaseWrapper.getBackups();
+        final String name = args.trim();
+        if (name.isEmpty()) {
+            if (backups.isEmpty()) {
+                sendMessage(event.getChannel(), "There are no backups");
+                return;
+            }
+            final StringBuilder sb = new StringBuilder("Backups, newest first:");
+            for (File backup : backups) {
+                sb.append(String.format("\n%s (%.1f KiB)", backup.getName(), backup.length() / 1024.0));
+            }
+            sendMessage(event.getChannel(), sb.toString());
+            return;
+        }
+
+        for (File backup : backups) {
+            if (backup.getName().equals(name)) {
+                restore(backup, event.getJDA());
+                sendMessage(event.getChannel(), "Restored " + name + ", running sessions have been reloaded from it");
+                return;
+            }
+        }
+        throw new BadUserInputException(
+                "There's no backup called " + name + ", use " + Bot.commandPrefix + getCommand() + " to list them");
+    }
+
+
+    /**
+     * Has the commands that keep entries in memory drop them first so that they aren't saved over the backup
+     */
+    private static void restore(File backup, JDA jda) {
+        final List<DatabaseRestoredCommand> restoredCommands = new ArrayList<>();
+        for (AbstractCommand command : Bot.getCommands()) {
+            if (command instanceof DatabaseRestoredCommand) {
+                restoredCommands.add((DatabaseRestoredCommand) command);
+            }
+        }
+        for (DatabaseRestoredCommand command : restoredCommands) {
+            command.onDatabaseRestoring();
+        }
+        try {
+            DatabaseWrapper.restoreBackup(backup);
+        }
+        finally {
+            for (DatabaseRestoredCommand command : restoredCommands) {
+                command.onDatabaseRestored(jda);
+            }
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getArguments() {
+        return "[backup name]";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getCommand() {
+        return "dbRestore";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDescription() {
+        return "replace the database with a backup, lists the backups if no name is given";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Rank getRequiredRank() {
+        return Rank.CREATOR;
+    }
+}
@@ -0,0 +1,20 @@
+package BotFrameworkBox;
+
+import net.dv8tion.jda.api.JDA;
+
+/**
+ * Commands that keep database entries in memory and need to reload them when the database is replaced with a backup
+ * (see {@link DatabaseRestoreCommand})
+ */
+public interface DatabaseRestoredCommand {
+    /**
+     * Called before the backup is restored. Drop anything that's saved from memory, it would overwrite the restored
+     * entries if it were saved after this returns
+     */
+    void onDatabaseRestoring();
+
+    /**
+     * Called once the restore has finished, whether or not it worked
+     */
+    void onDatabaseRestored(JDA jda);
+}
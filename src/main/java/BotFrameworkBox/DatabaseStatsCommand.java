@@ -0,0 +1,56 @@
+package BotFrameworkBox;
+
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import org.jetbrains.annotations.NotNull;
+
+
+/**
+ * Shows the database cache's hit ratio and how long its write-behind flushes take
+ */
+public class DatabaseStatsCommand extends AbstractCommand {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public HelpCommand.HelpVisibility getHelpVisibility() {
+        return HelpCommand.HelpVisibility.ADMIN;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
+        checkPermission(event.getMember());
+        DatabaseCache.Stats stats = DatabaseWrapper.getCacheStats();
+        sendMessage(event.getChannel(), stats == null ? "The database hasn't been opened yet" : stats.toString());
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getCommand() {
+        return "dbStats";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDescription() {
+        return "show database cache hit ratio and flush times";
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Rank getRequiredRank() {
+        return Rank.ADMIN;
+    }
+}
@@ -0,0 +1,262 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.ContactEwaException;
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connections to an SQLite database in WAL mode. All writes are carried out one at a time by a single writer thread
+ * with its own connection, reads borrow one of a small pool of read-only connections. In WAL mode readers don't block
+ * the writer or each other so reads from different threads run in parallel. Thread safe
+ */
+class DatabaseStore {
+    private static final int readerCount = 4;
+    /*
+     * Pragmas for every connection
+     */
+    private static final int busyTimeoutMillis = 5000;
+    /**
+     * Passed to cache_size as a negative number so that it's read as KiB rather than pages
+     */
+    private static final int cacheSizeKib = 8 * 1024;
+    private static final long mmapSizeBytes = 64L * 1024 * 1024;
+
+    private final ExecutorService writerThread = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "database-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final String url;
+    private final CachingConnection writer;
+    private final BlockingQueue<CachingConnection> readers = new ArrayBlockingQueue<>(readerCount);
+    private final List<CachingConnection> allReaders = new ArrayList<>();
+
+    /**
+     * @param url jdbc url of the database, it's created if it doesn't exist
+     * @param initialise run once on the writer before the readers are opened (so that they can see the tables)
+     * @throws SQLException if any of the connections can't be opened
+     */
+    DatabaseStore(String url, SqlFunction<?> initialise) throws SQLException {
+        this.url = url;
+        writer = new CachingConnection(DriverManager.getConnection(url));
+        try {
+            try (Statement stmt = writer.connection.createStatement()) {
+                stmt.execute("PRAGMA journal_mode = WAL");
+                // Safe from corruption in WAL mode, a power cut can only lose the most recent commits
+                stmt.execute("PRAGMA synchronous = NORMAL");
+                setCommonPragmas(stmt);
+            }
+            initialise.apply(writer);
+            for (int i = 0; i < readerCount; i++) {
+                CachingConnection reader = openReader();
+                allReaders.add(reader);
+                readers.add(reader);
+            }
+        }
+        catch (SQLException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private CachingConnection openReader() throws SQLException {
+        SQLiteConfig readOnly = new SQLiteConfig();
+        readOnly.setReadOnly(true);
+        CachingConnection reader = new CachingConnection(DriverManager.getConnection(url, readOnly.toProperties()));
+        try (Statement stmt = reader.connection.createStatement()) {
+            setCommonPragmas(stmt);
+        }
+        catch (SQLException e) {
+            reader.close();
+            throw e;
+        }
+        return reader;
+    }
+
+    private static void setCommonPragmas(Statement stmt) throws SQLException {
+        stmt.execute("PRAGMA busy_timeout = " + busyTimeoutMillis);
+        stmt.execute("PRAGMA cache_size = -" + cacheSizeKib);
+        stmt.execute("PRAGMA mmap_size = " + mmapSizeBytes);
+    }
+
+    /**
+     * Runs the query on a read-only connection, waiting for one to be free if they're all in use
+     */
+    <R> R read(SqlFunction<R> query) throws SQLException {
+        CachingConnection reader;
+        try {
+            reader = readers.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ContactEwaException("Interrupted waiting for a database connection");
+        }
+        try {
+            return query.apply(reader);
+        }
+        finally {
+            readers.add(reader);
+        }
+    }
+
+    /**
+     * Runs the query in one transaction on a read-only connection of its own, so everything it reads is from the same
+     * moment however long it takes. For long queries (e.g. backups) that shouldn't hold up the pool. In WAL mode it
+     * doesn't block the writer but the WAL can't be checkpointed past the snapshot until it's finished
+     */
+    <R> R snapshot(SqlFunction<R> query) throws SQLException {
+        CachingConnection reader = openReader();
+        try {
+            reader.connection.setAutoCommit(false);
+            return query.apply(reader);
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Queues the update on the writer thread and waits for it to finish so that a read straight after will see it
+     */
+    <R> R write(SqlFunction<R> update) throws SQLException {
+        return await(submitWrite(update));
+    }
+
+    /**
+     * Queues the update on the writer thread without waiting for it, e.g. to write to several databases at once
+     *
+     * @see #await(Future)
+     */
+    <R> Future<R> submitWrite(SqlFunction<R> update) {
+        return writerThread.submit(() -> update.apply(writer));
+    }
+
+    /**
+     * Waits for a write from {@link #submitWrite(SqlFunction)}
+     *
+     * @throws SQLException if the write threw one
+     */
+    static <R> R await(Future<R> result) throws SQLException {
+        try {
+            return result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ContactEwaException("Interrupted waiting for a database write");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new ContactEwaException("Database write failed: " + cause);
+        }
+    }
+
+    /**
+     * Waits for queued writes then closes every connection
+     *
+     * @throws ContactEwaException if a connection can't be closed
+     */
+    void close() {
+        writerThread.shutdown();
+        try {
+            writerThread.awaitTermination(busyTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            for (CachingConnection reader : allReaders) {
+                reader.close();
+            }
+            // Closed last so that the WAL is checkpointed into the main file
+            writer.close();
+        }
+        catch (SQLException e) {
+            throw new ContactEwaException("Close connection error");
+        }
+    }
+
+    interface SqlFunction<R> {
+        R apply(CachingConnection connection) throws SQLException;
+    }
+
+    /**
+     * A connection that keeps every statement it has prepared so that each query's SQL is only compiled once per
+     * connection. Only ever used by one thread at a time (the writer thread or whoever has borrowed it from the pool)
+     */
+    static class CachingConnection {
+        /**
+         * More than the distinct SQL the storages use, it stops SQL built from arguments using up memory
+         */
+        private static final int maxStatements = 64;
+
+        private final Connection connection;
+        /**
+         * Least recently used first
+         */
+        private final Map<String, PreparedStatement> statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= maxStatements) {
+                    return false;
+                }
+                try {
+                    eldest.getValue().close();
+                }
+                catch (SQLException e) {
+                    e.printStackTrace();
+                }
+                return true;
+            }
+        };
+
+        private CachingConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return the cached statement for the sql, don't close it. Parameters from its last use are left set
+         */
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        private void close() throws SQLException {
+            for (PreparedStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            connection.close();
+        }
+    }
+}
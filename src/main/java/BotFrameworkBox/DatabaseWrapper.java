@@ -6,15 +6,43 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Modifier;
-import java.sql.*;
+import java.lang.reflect.Type;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 
 public class DatabaseWrapper {
     /**
@@ -22,17 +50,71 @@ public class DatabaseWrapper {
      * as keys are user-defined
      */
     private static final BiMap<Integer, Class> databaseEntryTypes = HashBiMap.create();
+    /**
+     * Everything needed to convert each type, built once when the types are set
+     */
+    private static final Map<Class, EntryCodec> codecs = new ConcurrentHashMap<>();
+    /**
+     * Converts every type to and from JSON, rebuilt when the types are set. Gson caches the adapter it finds for each
+     * type so one instance is shared rather than one per type
+     */
+    private static volatile Gson gson = new Gson();
+    /**
+     * Runs the async methods so that callers (e.g. JDA's event thread) aren't held up by the database
+     */
+    private static final Executor asyncExecutor = Executors.newFixedThreadPool(4, runnable -> {
+        Thread thread = new Thread(runnable, "database-async");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /*
      * Database connection
      */
-    private static final String databaseFileLocation = "Tatsuya.db";
-    private static final String sqlPrefix = "jdbc:sqlite:";
-    // Used to establish the connection to the database
-    private static final String urlPrefix = sqlPrefix + Bot.getPathToTatsuyaBot();
-    private static final String tableName = "blobs";
-    private static String url = urlPrefix + databaseFileLocation;
-    private static Connection connection = null;
+    static final String databaseName = "Tatsuya";
+    // Where the database is kept, the storage type adds its own extension
+    private static final String pathPrefix = Bot.getPathToTatsuyaBot();
+    /**
+     * Guilds per load in {@link #getAll(Iterable, Class, BiConsumer)}
+     */
+    private static final int bulkBatchSize = 500;
+    /**
+     * Keys that can be written on their own with json_set, others need quoting in the path (which older SQLite's
+     * json_set doesn't handle) so are written with the whole entry
+     */
+    private static final Pattern partialKey = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+    private static String path = pathPrefix + databaseName;
+    private static StorageType storageType = StorageType.SQLITE;
+    private static int partitionCount = 4;
+
+    /*
+     * Backups
+     */
+    private static final String backupFolder = "DatabaseBackups/";
+    private static final String backupExtension = ".db";
+    /**
+     * Older backups are deleted once there are more than this many
+     */
+    private static final int backupsKept = 7;
+    private static final Duration backupPeriod = Duration.ofHours(24);
+    private static final DateTimeFormatter backupTimeFormat = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+            .withZone(ZoneOffset.UTC);
+    /**
+     * Runs every backup so that only one is ever in progress
+     */
+    private static final ScheduledExecutorService backupExecutor = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "database-backup");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static boolean backupsScheduled = false;
+    private static volatile BackupReport lastBackup = null;
+    /**
+     * Opened the first time it's needed
+     */
+    private static volatile OpenDatabase database = null;
+    private static boolean shutdownHookAdded = false;
 
     /**
      * Validates all types then stores them
@@ -73,98 +155,498 @@ public class DatabaseWrapper {
                 throw new BadStateException(clazz.getName() + " getDeserializer returns null");
             }
             DatabaseWrapper.databaseEntryTypes.put(entry.getKey(), clazz);
+            codecs.put(clazz, new EntryCodec(entry.getKey(), clazz, instantiation));
+        }
+        GsonBuilder builder = new GsonBuilder();
+        for (EntryCodec codec : codecs.values()) {
+            builder.registerTypeAdapter(codec.type, codec.jsonAdapter);
         }
+        gson = builder.create();
     }
 
     /**
-     * Open a connection to the database, populating {@link #connection}, and create the table if it doesn't already
-     * exist
+     * Open the database, creating it if it doesn't exist (and for SQLite bringing its schema up to date)
      *
-     * @throws ContactEwaException if connection cannot be established
+     * @throws ContactEwaException if the database can't be opened
      */
-    private static void getConnectionAndInitDb() {
-        try {
-            if (connection == null || connection.isClosed()) {
-                /*
-                 * Fetches the existing database or creates a new one
-                 */
-                connection = DriverManager.getConnection(url);
-                if (!new File(databaseFileLocation).exists()) {
-                    connection.getMetaData();
+    private static OpenDatabase getDatabase() {
+        OpenDatabase current = database;
+        if (current != null) {
+            return current;
+        }
+        synchronized (DatabaseWrapper.class) {
+            if (database == null) {
+                Storage storage;
+                try {
+                    storage = storageType.open(path, partitionCount);
+                }
+                catch (SQLException e) {
+                    throw new ContactEwaException("Database connection error");
+                }
+                database = new OpenDatabase(storage, new DatabaseCache(storage::load, storage::write));
+                if (!shutdownHookAdded) {
+                    // So that queued saves aren't lost if the bot is stopped without closing the database
+                    Runtime.getRuntime().addShutdownHook(new Thread(DatabaseWrapper::closeConnection));
+                    shutdownHookAdded = true;
                 }
             }
+            return database;
         }
-        catch (SQLException e) {
-            throw new ContactEwaException("Database connection error");
+    }
+
+    /**
+     * Which backend the database is kept in, closes the database if it's open so that the next call opens the new
+     * one. Entries aren't moved between backends
+     */
+    public static synchronized void setStorageType(StorageType storageType) {
+        setStorageType(storageType, partitionCount);
+    }
+
+    /**
+     * @param partitionCount how many files {@link StorageType#PARTITIONED} spreads guilds over, must match the
+     *                       existing partitions (see {@link #rebalancePartitions(int)})
+     * @see #setStorageType(StorageType)
+     */
+    public static synchronized void setStorageType(StorageType storageType, int partitionCount) {
+        if (storageType == null) {
+            throw new IllegalArgumentException("Cannot be null");
+        }
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("There must be at least one partition");
         }
+        closeConnection();
+        DatabaseWrapper.storageType = storageType;
+        DatabaseWrapper.partitionCount = partitionCount;
+    }
 
-        /*
-         * Create table
-         */
-        try (Statement stmt = connection.createStatement()) {
-            stmt.execute((
-                    "CREATE TABLE IF NOT EXISTS <TBL>"
-                            + " ("
-                            + "guildId text NOT NULL,"
-                            + "entryType int NOT NULL,"
-                            + "entry text NOT NULL,"
-                            + "CONSTRAINT PK_<TBL> PRIMARY KEY(guildId, entryType)"
-                            + ");"
-            ).replaceAll("<TBL>", tableName));
+    /**
+     * Moves every entry into a new set of partitions, see {@link PartitionedStorage#rebalance(String, int)}. Closes
+     * the database first, nothing can use it until it's finished. Afterwards the storage type is
+     * {@link StorageType#PARTITIONED} with the new count
+     *
+     * @return the number of entries moved
+     * @throws BadStateException if it fails, the existing partitions are left as they were
+     */
+    public static synchronized long rebalancePartitions(int partitionCount) {
+        closeConnection();
+        long moved;
+        try {
+            moved = PartitionedStorage.rebalance(path, partitionCount);
         }
-        catch (SQLException e) {
-            throw new ContactEwaException("Table creation error");
+        catch (SQLException | IOException e) {
+            throw new BadStateException("Rebalance failed " + e.getMessage());
         }
+        setStorageType(StorageType.PARTITIONED, partitionCount);
+        return moved;
     }
 
     public static <A extends DatabaseEntryType, T extends DatabaseEntryType> A getData(String guild, Class<T> type) {
-        Class<A> resolvedClass = checkAndResolveClass(type);
-        getConnectionAndInitDb();
+        EntryCodec codec = getCodec(type);
+
+        StoredEntry returnedEntry;
+        try {
+            returnedEntry = getDatabase().cache.get(guild, codec.typeId);
+        }
+        catch (SQLException e) {
+            throw new BadStateException("Database query failed");
+        }
+        if (returnedEntry == null) {
+            return null;
+        }
+
+        //noinspection unchecked: codecs are only built for DatabaseEntryTypes
+        return (A) codec.decode(returnedEntry);
+    }
 
-        String returnedJson;
-        String sql = "SELECT * FROM " + tableName + " WHERE guildId = ? AND entryType = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, guild);
-            ps.setInt(2, databaseEntryTypes.inverse().get(resolvedClass));
-            final ResultSet rs = ps.executeQuery();
-            if (!rs.next()) {
-                return null;
+    /**
+     * {@link #getData(String, Class)} on the database executor. Concurrent gets of an entry that isn't cached share one
+     * query but each gets its own copy
+     */
+    public static <A extends DatabaseEntryType, T extends DatabaseEntryType> CompletableFuture<A> getDataAsync(
+            String guild, Class<T> type
+    ) {
+        getCodec(type);
+        return CompletableFuture.supplyAsync(() -> getData(guild, type), asyncExecutor);
+    }
+
+    /**
+     * @return every entry of the given type mapped by the key it was saved with
+     */
+    public static <A extends DatabaseEntryType, T extends DatabaseEntryType> Map<String, A> getAllData(
+            Class<T> type
+    ) {
+        EntryCodec codec = getCodec(type);
+
+        Map<String, StoredEntry> storedEntries;
+        OpenDatabase open = getDatabase();
+        try {
+            // Queued saves have to be in the database for the query to see them
+            open.cache.flush();
+            storedEntries = open.storage.loadType(codec.typeId, null);
+        }
+        catch (SQLException e) {
+            throw new BadStateException("Database query failed");
+        }
+
+        // Parsed after the load so that other reads aren't held up
+        Map<String, A> entries = new HashMap<>();
+        for (Map.Entry<String, StoredEntry> entry : storedEntries.entrySet()) {
+            //noinspection unchecked: codecs are only built for DatabaseEntryTypes
+            entries.put(entry.getKey(), (A) codec.decode(entry.getValue()));
+        }
+        return entries;
+    }
+
+    /**
+     * Loads the entries of the given type for every guild, {@link #bulkBatchSize} guilds at a time, and passes each to
+     * the consumer. Only one batch is held at a time so memory doesn't grow with the number of guilds. Guilds without
+     * an entry are skipped. Everything loaded is cached (e.g. to warm the cache at startup)
+     *
+     * @param consumer called on this thread with each guild and its entry, not while the storage is being read so it
+     *                 can use the database
+     */
+    public static <A extends DatabaseEntryType, T extends DatabaseEntryType> void getAll(
+            Iterable<String> guilds, Class<T> type, BiConsumer<String, A> consumer
+    ) {
+        EntryCodec codec = getCodec(type);
+        OpenDatabase open = getDatabase();
+        try {
+            // Queued saves have to be in the database for the queries to see them
+            open.cache.flush();
+            Iterator<String> iterator = guilds.iterator();
+            List<String> batch = new ArrayList<>(bulkBatchSize);
+            while (iterator.hasNext()) {
+                batch.clear();
+                while (iterator.hasNext() && batch.size() < bulkBatchSize) {
+                    batch.add(iterator.next());
+                }
+                long loadStartedNanos = System.nanoTime();
+                Map<String, StoredEntry> found = open.storage.loadType(codec.typeId, batch);
+                // Guilds without an entry are cached as absent too
+                Map<DatabaseCache.EntryKey, StoredEntry> loaded = new LinkedHashMap<>();
+                for (String guild : batch) {
+                    loaded.put(new DatabaseCache.EntryKey(guild, codec.typeId), found.get(guild));
+                }
+                open.cache.putLoaded(loaded, loadStartedNanos);
+                for (Map.Entry<DatabaseCache.EntryKey, StoredEntry> entry : loaded.entrySet()) {
+                    if (entry.getValue() != null) {
+                        //noinspection unchecked: codecs are only built for DatabaseEntryTypes
+                        consumer.accept(entry.getKey().guild, (A) codec.decode(entry.getValue()));
+                    }
+                }
             }
-            returnedJson = rs.getString("entry");
-            if (rs.next()) {
-                throw new BadStateException("Database entry not unique");
+        }
+        catch (SQLException e) {
+            throw new BadStateException("Database query failed");
+        }
+    }
+
+    /**
+     * Loads every type of entry saved for the guild. Entries of types that aren't set (e.g. from a newer version of the
+     * bot) are skipped
+     *
+     * @param consumer called with each entry's type and the entry
+     */
+    public static void getAllForGuild(String guild, BiConsumer<Class, DatabaseEntryType> consumer) {
+        OpenDatabase open = getDatabase();
+        Map<DatabaseCache.EntryKey, StoredEntry> loaded;
+        long loadStartedNanos = System.nanoTime();
+        try {
+            open.cache.flush();
+            loaded = new LinkedHashMap<>();
+            for (Map.Entry<Integer, StoredEntry> entry : open.storage.loadGuild(guild).entrySet()) {
+                loaded.put(new DatabaseCache.EntryKey(guild, entry.getKey()), entry.getValue());
             }
         }
         catch (SQLException e) {
             throw new BadStateException("Database query failed");
         }
+        open.cache.putLoaded(loaded, loadStartedNanos);
+        for (Map.Entry<DatabaseCache.EntryKey, StoredEntry> entry : loaded.entrySet()) {
+            Class type = databaseEntryTypes.get(entry.getKey().typeId);
+            if (type == null) {
+                continue;
+            }
+            EntryCodec codec = codecs.get(type);
+            consumer.accept(type, (DatabaseEntryType) codec.decode(entry.getValue()));
+        }
+    }
 
-        return getGson(resolvedClass, instantiate(resolvedClass).getDeserializer()).fromJson(returnedJson,
-                resolvedClass
-        );
+    /**
+     * Queues all the entries to be saved in one transaction, overwriting any existing entries. Written behind, see
+     * {@link DatabaseCache}
+     *
+     * @param entries entries mapped by their guild
+     */
+    public static void saveAll(Map<String, ? extends DatabaseEntryType> entries) {
+        Map<DatabaseCache.EntryKey, StoredEntry> saves = new LinkedHashMap<>();
+        for (Map.Entry<String, ? extends DatabaseEntryType> entry : entries.entrySet()) {
+            EntryCodec codec = getCodec(entry.getValue().getClass());
+            saves.put(new DatabaseCache.EntryKey(entry.getKey(), codec.typeId), codec.encode(entry.getValue()));
+        }
+        getDatabase().cache.putAll(saves);
+    }
+
+    /**
+     * Does nothing if there is no entry for guild/dataType. Written behind, see {@link DatabaseCache}
+     */
+    public static <T extends DatabaseEntryType> void deleteData(String guild, Class<T> type) {
+        EntryCodec codec = getCodec(type);
+        getDatabase().cache.put(guild, codec.typeId, null);
     }
 
     /**
-     * Will overwrite the existing entry in the database for guild/dataType if it exists
+     * @return completed on the database executor once the delete has been written
+     * @see #deleteData(String, Class)
+     */
+    public static <T extends DatabaseEntryType> CompletableFuture<Void> deleteDataAsync(String guild, Class<T> type) {
+        EntryCodec codec = getCodec(type);
+        return onAsyncExecutor(getDatabase().cache.put(guild, codec.typeId, null));
+    }
+
+    /**
+     * Will overwrite the existing entry in the database for guild/dataType if it exists. Written behind, see
+     * {@link DatabaseCache}
      */
     public static <T, A extends DatabaseEntryType> void saveData(String guild, DatabaseEntryType<T> data) {
-        Class<A> resolvedClass = checkAndResolveClass(data.getClass());
-        getConnectionAndInitDb();
-
-        A typeCheckedData = resolvedClass.cast(data);
-        String json = getGson(resolvedClass, typeCheckedData.getSerializer()).toJson(typeCheckedData, resolvedClass);
-        String sql = "REPLACE INTO " + tableName + " (guildId, entryType, entry) VALUES(?,?,?)";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, guild);
-            ps.setInt(2, databaseEntryTypes.inverse().get(resolvedClass));
-            ps.setString(3, json);
-            ps.executeUpdate();
+        queueSave(guild, data);
+    }
+
+    /**
+     * @return completed on the database executor once the save has been written
+     * @see #saveData(String, DatabaseEntryType)
+     */
+    public static <T> CompletableFuture<Void> saveDataAsync(String guild, DatabaseEntryType<T> data) {
+        return onAsyncExecutor(queueSave(guild, data));
+    }
+
+    /**
+     * Like {@link #saveData(String, DatabaseEntryType)} but only writes what's changed. Nothing is written if the
+     * entry is the same as what's stored. For types stored as JSON, the fields that
+     * {@link DatabaseEntryType#getChangedFields(Object)} reports are updated in place rather than the whole entry
+     * being rewritten
+     *
+     * @param previous what was last saved or loaded for guild, null if it isn't known
+     */
+    public static <T> void saveData(String guild, DatabaseEntryType<T> data, T previous) {
+        queueSave(guild, data, previous);
+    }
+
+    /**
+     * @return completed on the database executor once the save has been written (or straight away if it's skipped)
+     * @see #saveData(String, DatabaseEntryType, Object)
+     */
+    public static <T> CompletableFuture<Void> saveDataAsync(String guild, DatabaseEntryType<T> data, T previous) {
+        return onAsyncExecutor(queueSave(guild, data, previous));
+    }
+
+    /**
+     * @return completed by the flusher once the save has been written
+     */
+    private static <T> CompletableFuture<Void> queueSave(String guild, DatabaseEntryType<T> data) {
+        return queueSave(guild, data, null);
+    }
+
+    /**
+     * @param previous null if the whole entry should be written
+     * @return completed by the flusher once the save has been written
+     */
+    private static <T> CompletableFuture<Void> queueSave(String guild, DatabaseEntryType<T> data, T previous) {
+        EntryCodec codec = getCodec(data.getClass());
+
+        // Serialized now so that later changes to data aren't saved
+        StoredEntry entry = codec.encode(data);
+        StoredEntry base = null;
+        if (previous != null && codec.binaryCodec == null && entry.isPlainJson()) {
+            Set<String> changedFields = data.getChangedFields(previous);
+            if (changedFields != null) {
+                // The cache only keeps the changes if base is what's stored
+                base = codec.encode(previous);
+                entry = withChanges(entry, changedFields);
+            }
+        }
+        return getDatabase().cache.put(guild, codec.typeId, entry, base);
+    }
+
+    /**
+     * @param changedFields top level keys of the entry's JSON
+     * @return the entry with the changed fields' new JSON, whole if a key can't be written by itself
+     */
+    private static StoredEntry withChanges(StoredEntry entry, Set<String> changedFields) {
+        JsonObject json = new JsonParser().parse(entry.getJson()).getAsJsonObject();
+        Map<String, String> changes = new LinkedHashMap<>();
+        for (String field : changedFields) {
+            if (!partialKey.matcher(field).matches()) {
+                return entry;
+            }
+            JsonElement value = json.get(field);
+            changes.put(field, value == null ? null : value.toString());
+        }
+        return entry.withChanges(changes);
+    }
+
+    /**
+     * Writes are completed by the flusher, this stops callers' stages running on it and holding up later flushes
+     */
+    private static CompletableFuture<Void> onAsyncExecutor(CompletableFuture<Void> written) {
+        return written.whenCompleteAsync((ignored, e) -> { }, asyncExecutor);
+    }
+
+    /**
+     * Writes all queued saves to the database straight away
+     *
+     * @throws BadStateException if the write fails (the saves stay queued)
+     */
+    public static void flush() {
+        OpenDatabase open = database;
+        if (open == null) {
+            return;
+        }
+        try {
+            open.cache.flush();
         }
         catch (SQLException e) {
             throw new BadStateException("Database query failed " + e.getMessage());
         }
     }
 
+    /**
+     * @return the cache's stats since the database was opened, null if it isn't open
+     */
+    public static DatabaseCache.Stats getCacheStats() {
+        OpenDatabase open = database;
+        return open == null ? null : open.cache.getStats();
+    }
+
+    /**
+     * Backs the database up every {@link #backupPeriod}, starting one period from now. Only the last
+     * {@link #backupsKept} backups are kept. Does nothing if they're already scheduled
+     */
+    public static synchronized void scheduleBackups() {
+        if (backupsScheduled) {
+            return;
+        }
+        backupExecutor.scheduleAtFixedRate(() -> {
+            try {
+                backup();
+            }
+            catch (RuntimeException e) {
+                // Kept scheduled, the next one might work
+                e.printStackTrace();
+            }
+        }, backupPeriod.toMillis(), backupPeriod.toMillis(), TimeUnit.MILLISECONDS);
+        backupsScheduled = true;
+    }
+
+    /**
+     * Backs the database up on the backup thread. Writes carry on while it's in progress, the backup is of the
+     * database as it was when the backup started (queued saves are flushed first)
+     *
+     * @return completed with the report once the backup is written, exceptionally with a {@link BadStateException} if
+     *         it fails or the storage type can't be backed up
+     */
+    public static CompletableFuture<BackupReport> backupAsync() {
+        return CompletableFuture.supplyAsync(DatabaseWrapper::backup, backupExecutor);
+    }
+
+    /**
+     * Must be run on {@link #backupExecutor}
+     */
+    private static BackupReport backup() {
+        File folder = new File(pathPrefix + backupFolder);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new BadStateException("Couldn't create " + folder);
+        }
+        String name = new File(path).getName() + "-" + backupTimeFormat.format(Instant.now()) + backupExtension;
+        File destination = new File(folder, name);
+        long startNanos = System.nanoTime();
+        OpenDatabase open = getDatabase();
+        try {
+            open.cache.flush();
+            open.storage.backup(destination);
+        }
+        catch (SQLException e) {
+            throw new BadStateException("Database backup failed " + e.getMessage());
+        }
+        BackupReport report = new BackupReport(name, System.nanoTime() - startNanos, destination.length());
+        lastBackup = report;
+
+        List<File> backups = getBackups();
+        for (File old : backups.subList(Math.min(backupsKept, backups.size()), backups.size())) {
+            //noinspection ResultOfMethodCallIgnored: it'll be tried again after the next backup
+            old.delete();
+        }
+        return report;
+    }
+
+    /**
+     * @return the most recent backup made since the bot started, null if there hasn't been one
+     */
+    public static BackupReport getLastBackup() {
+        return lastBackup;
+    }
+
+    /**
+     * @return the backups of the current database (live or test), newest first
+     */
+    public static List<File> getBackups() {
+        String prefix = new File(path).getName() + "-";
+        File[] files = new File(pathPrefix + backupFolder).listFiles(
+                file -> file.isFile() && file.getName().startsWith(prefix) && file.getName().endsWith(backupExtension));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        List<File> backups = new ArrayList<>(List.of(files));
+        // The time in the name sorts the same as the time it was made
+        backups.sort(Comparator.comparing(File::getName).reversed());
+        return backups;
+    }
+
+    /**
+     * Replaces the database with a backup. Queued saves are written first then lost, nothing can use the database
+     * until it's finished. Runs on the backup thread so that it can't overlap a backup
+     *
+     * @param backup one of {@link #getBackups()}
+     * @throws BadStateException if the backup can't be restored, the database is left as it was
+     */
+    public static void restoreBackup(File backup) {
+        if (!getBackups().contains(backup)) {
+            throw new IllegalArgumentException(backup.getName() + " is not a backup of this database");
+        }
+        try {
+            CompletableFuture.runAsync(() -> restore(backup), backupExecutor).join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Must be run on {@link #backupExecutor}
+     */
+    private static void restore(File backup) {
+        closeConnection();
+        Storage storage;
+        try {
+            storage = storageType.open(path, partitionCount);
+        }
+        catch (SQLException e) {
+            throw new ContactEwaException("Database connection error");
+        }
+        try {
+            storage.restore(backup);
+        }
+        catch (SQLException e) {
+            throw new BadStateException("Database restore failed " + e.getMessage());
+        }
+        finally {
+            storage.close();
+        }
+    }
+
     /**
      * Ensures that the provided class is in {@link #databaseEntryTypes} Uses the immediate superclass if the provided
      * class is anonymous
@@ -172,23 +654,26 @@ public class DatabaseWrapper {
     public static <A extends DatabaseEntryType, T extends DatabaseEntryType> Class<A> checkAndResolveClass(
             Class<T> clazz
     ) {
+        //noinspection unchecked: codecs are only built for DatabaseEntryTypes
+        return getCodec(clazz).type;
+    }
+
+    /**
+     * @see #checkAndResolveClass(Class)
+     */
+    private static EntryCodec getCodec(Class clazz) {
         if (clazz == null) {
             throw new IllegalArgumentException("Cannot be null");
         }
-
-        Class returnClass = null;
-        if (databaseEntryTypes.containsValue(clazz)) {
-            returnClass = clazz;
-        }
-        else if (clazz.isAnonymousClass() && databaseEntryTypes.containsValue(clazz.getSuperclass())) {
-            returnClass = clazz.getSuperclass();
+        EntryCodec codec = codecs.get(clazz);
+        if (codec == null && clazz.isAnonymousClass()) {
+            codec = codecs.get(clazz.getSuperclass());
         }
-        if (returnClass == null || !DatabaseEntryType.class.isAssignableFrom(returnClass)) {
+        if (codec == null) {
             throw new BadStateException(clazz.getName()
                     + " not recognised as a database entry type, make sure it's set with setDatabaseEntryTypes");
         }
-        //noinspection unchecked: Type is checked in above if statement
-        return returnClass;
+        return codec;
     }
 
     private static <T extends DatabaseEntryType> T instantiate(Class<T> type) {
@@ -200,53 +685,180 @@ public class DatabaseWrapper {
         }
     }
 
-    /**
-     * @param type the type which will be converted from/to
-     * @param typeAdapter either a JsonSerializer or a JsonDeserializer
-     */
-    private static <T> Gson getGson(Class<T> type, Object typeAdapter) {
-        if (!(typeAdapter instanceof JsonSerializer || typeAdapter instanceof JsonDeserializer)) {
-            throw new BadStateException("TypeAdapter is incorrect type");
-        }
-        return new GsonBuilder().registerTypeAdapter(type, typeAdapter).create();
-    }
-
     public static boolean deleteDatabase() {
         if (!isInTestMode()) {
             throw new IllegalStateException("Cannot delete database unless in test mode.");
         }
         closeConnection();
-        File dbFile = new File(url.substring(sqlPrefix.length()));
-        return !dbFile.exists() || dbFile.delete();
+        return storageType.delete(path);
     }
 
     /**
      * Change the database mode so that testing doesn't affect live data
      */
     public static void setTestMode() {
-        url = urlPrefix + "Test" + databaseFileLocation;
+        if (!isInTestMode()) {
+            closeConnection();
+        }
+        path = pathPrefix + "Test" + databaseName;
     }
 
     /**
      * Used as a sanity check
      */
     public static boolean isInTestMode() {
-        return !url.equals(urlPrefix + databaseFileLocation);
+        return !path.equals(pathPrefix + databaseName);
     }
 
     /**
+     * Writes all queued saves then closes the database
+     *
      * @throws ContactEwaException if an SQLException occurs
      */
-    private static void closeConnection() {
-        if (connection == null) {
+    public static synchronized void closeConnection() {
+        if (database == null) {
             return;
         }
+        OpenDatabase closing = database;
+        database = null;
         try {
-            connection.close();
-            connection = null;
+            closing.cache.close();
         }
         catch (SQLException e) {
-            throw new ContactEwaException("Close connection error");
+            throw new ContactEwaException("Failed to write queued saves: " + e.getMessage());
+        }
+        finally {
+            closing.storage.close();
+        }
+    }
+
+    public static class BackupReport {
+        public final String name;
+        public final long durationNanos;
+        public final long sizeBytes;
+
+        private BackupReport(String name, long durationNanos, long sizeBytes) {
+            this.name = name;
+            this.durationNanos = durationNanos;
+            this.sizeBytes = sizeBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Backup %s: %.1f KiB in %.2f s", name, sizeBytes / 1024.0, durationNanos / 1e9);
+        }
+    }
+
+    private static class OpenDatabase {
+        private final Storage storage;
+        private final DatabaseCache cache;
+
+        private OpenDatabase(Storage storage, DatabaseCache cache) {
+            this.storage = storage;
+            this.cache = cache;
+        }
+    }
+
+    /**
+     * A database entry type's id and everything that converts it (Gson is thread safe, binary codecs have to be)
+     */
+    private static class EntryCodec {
+        private final int typeId;
+        private final Class type;
+        /**
+         * The type's {@link TypeAdapter} or its serializer and deserializer, registered with {@link #gson}
+         */
+        private final Object jsonAdapter;
+        /**
+         * Null if the type is stored as JSON
+         */
+        private final BinaryCodec binaryCodec;
+        /**
+         * True if the type is stored as JSON and reports its changed fields, it's then never compressed so that the
+         * changes can be written in place
+         */
+        private final boolean partialWrites;
+
+        private EntryCodec(int typeId, Class type, DatabaseEntryType instantiation) {
+            this.typeId = typeId;
+            this.type = type;
+            TypeAdapter typeAdapter = instantiation.getTypeAdapter();
+            this.jsonAdapter = typeAdapter != null ? typeAdapter
+                    : new TreeAdapter(instantiation.getSerializer(), instantiation.getDeserializer());
+            this.binaryCodec = instantiation.getBinaryCodec();
+            this.partialWrites = binaryCodec == null && overridesChangedFields(type);
+        }
+
+        private static boolean overridesChangedFields(Class type) {
+            try {
+                // The override's bridge method is declared on the type rather than the interface
+                return type.getMethod("getChangedFields", Object.class).getDeclaringClass()
+                        != DatabaseEntryType.class;
+            }
+            catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @return the value in binary if the type has a binary codec, otherwise JSON
+         */
+        private StoredEntry encode(Object value) {
+            if (binaryCodec != null) {
+                BinaryWriter out = new BinaryWriter();
+                out.writeRawVarint(binaryCodec.getVersion());
+                //noinspection unchecked: the codec comes from an instance of type
+                binaryCodec.write(type.cast(value), out);
+                return StoredEntry.fromBinary(out.toByteArray());
+            }
+            String json = gson.toJson(type.cast(value), type);
+            return partialWrites ? StoredEntry.fromUncompressedJson(json) : StoredEntry.fromJson(json);
+        }
+
+        /**
+         * Reads either format so that rows written before a type had a binary codec can still be read
+         *
+         * @throws BadStateException if the entry is binary and the type doesn't have a codec that can read it
+         */
+        private Object decode(StoredEntry entry) {
+            if (!entry.isBinary()) {
+                return gson.fromJson(entry.getJson(), type);
+            }
+            if (binaryCodec == null) {
+                throw new BadStateException(type.getName() + " entry is binary but the type has no binary codec");
+            }
+            BinaryReader in = new BinaryReader(entry.getBinary());
+            long version = in.readRawVarint();
+            if (version > binaryCodec.getVersion()) {
+                throw new BadStateException(String.format("%s entry is binary version %d but only %d is known",
+                        type.getName(), version, binaryCodec.getVersion()
+                ));
+            }
+            return binaryCodec.read(in, (int) version);
+        }
+    }
+
+    /**
+     * A type's serializer and deserializer as one object so that each {@link EntryCodec} has a single adapter to
+     * register
+     */
+    private static class TreeAdapter<T> implements JsonSerializer<T>, JsonDeserializer<T> {
+        private final JsonSerializer<T> serializer;
+        private final JsonDeserializer<T> deserializer;
+
+        private TreeAdapter(JsonSerializer<T> serializer, JsonDeserializer<T> deserializer) {
+            this.serializer = serializer;
+            this.deserializer = deserializer;
+        }
+
+        @Override
+        public JsonElement serialize(T src, Type typeOfSrc, JsonSerializationContext context) {
+            return serializer.serialize(src, typeOfSrc, context);
+        }
+
+        @Override
+        public T deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) {
+            return deserializer.deserialize(json, typeOfT, context);
         }
     }
 }
@@ -2,6 +2,7 @@ package BotFrameworkBox;
 
 import com.vdurmont.emoji.EmojiManager;
 import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageChannel;
 import net.dv8tion.jda.api.entities.MessageReaction;
 
 import java.util.*;
@@ -206,4 +207,8 @@ public enum Emoji {
     public void addAsReaction(Message message) {
         message.addReaction(unicodeFullString).queue();
     }
+
+    public void addAsReaction(MessageChannel channel, long messageId) {
+        channel.addReactionById(messageId, unicodeFullString).queue();
+    }
 }
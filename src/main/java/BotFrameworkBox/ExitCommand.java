@@ -24,6 +24,7 @@ public class ExitCommand extends AbstractCommand {
     public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
         checkPermission(event.getMember());
         sendMessage(event.getChannel(), "Bye bye :c");
+        DatabaseWrapper.closeConnection();
         System.exit(0);
     }
 
@@ -0,0 +1,504 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.BadStateException;
+import ExceptionsBox.ContactEwaException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A log-structured store (like Bitcask): every save and delete is appended to a memory-mapped file and an in-memory
+ * index holds where each entry's latest save is, so a read is a lookup and a copy out of the mapping and a write never
+ * moves what's already there. Each batch is followed by a commit record and forced to disk. When the file is opened
+ * it's read up to the last commit so a batch that was cut off by a crash is dropped.
+ * <p>
+ * Overwritten and deleted entries leave dead records behind. Once they're most of a large enough log, the log is
+ * compacted in the background: the live records are copied to a new file which then replaces it. Reads carry on from
+ * the old mapping while it's compacting, writes wait for it to finish.
+ * <p>
+ * Record: body length (int), CRC32 of the body (int), body. Body: kind (byte) then for saves and deletes the type id
+ * (int), guild length (unsigned short) and guild (UTF-8), then for saves the format (byte), data length (int) and data
+ */
+class LogStorage implements Storage {
+    /**
+     * Added to the log's path for the file being compacted into
+     */
+    static final String compactingSuffix = ".compacting";
+    private static final int magic = 0x54424C47;
+    private static final int version = 1;
+    private static final int headerBytes = 8;
+    private static final int recordHeaderBytes = 8;
+    private static final int initialCapacityBytes = 1 << 20;
+    /**
+     * Logs shorter than this aren't compacted however much of them is dead
+     */
+    private static final int compactionMinBytes = 1 << 20;
+    /*
+     * Record kinds
+     */
+    private static final byte kindSave = 1;
+    private static final byte kindDelete = 2;
+    private static final byte kindCommit = 3;
+
+    private final File file;
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Held by writes and compaction so that only one of them is appending or replacing the log at a time. Guards
+     * {@link #tail}, {@link #compacting} and {@link #closed}
+     */
+    private final Object appendLock = new Object();
+    private int tail;
+    private boolean compacting = false;
+    private boolean closed = false;
+    /**
+     * Guards the fields below it. Reads hold the read lock, swapping the mapping or updating the index once a batch is
+     * committed holds the write lock. Only changed while holding {@link #appendLock} too
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private MappedByteBuffer mapping;
+    /**
+     * Where each entry's latest save is
+     */
+    private Map<DatabaseCache.EntryKey, Integer> index = new HashMap<>();
+    /**
+     * Total length of the records in the index
+     */
+    private long liveBytes = 0;
+
+    /**
+     * Opens the log, creating it if it doesn't exist
+     *
+     * @throws SQLException if it can't be opened or isn't a log
+     */
+    LogStorage(String path) throws SQLException {
+        file = new File(path);
+        try {
+            // Left by a compaction that didn't finish, the log itself is still whole
+            Files.deleteIfExists(new File(path + compactingSuffix).toPath());
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE
+            );
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new SQLException(path + " is too large");
+            }
+            mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(initialCapacityBytes, size));
+            if (size == 0) {
+                mapping.putInt(0, magic);
+                mapping.putInt(4, version);
+                mapping.force();
+                tail = headerBytes;
+            }
+            else {
+                if (mapping.getInt(0) != magic || mapping.getInt(4) != version) {
+                    throw new SQLException(path + " isn't a version " + version + " log");
+                }
+                recover();
+            }
+        }
+        catch (IOException | SQLException e) {
+            compactor.shutdown();
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e instanceof SQLException ? (SQLException) e : new SQLException("Couldn't open " + path, e);
+        }
+    }
+
+    /**
+     * Rebuilds the index from the log up to the last commit and clears everything after it
+     */
+    private void recover() {
+        tail = headerBytes;
+        int position = headerBytes;
+        List<Integer> uncommitted = new ArrayList<>();
+        int length;
+        while ((length = validRecordLength(mapping, position)) > 0) {
+            if (mapping.get(position + recordHeaderBytes) == kindCommit) {
+                for (int offset : uncommitted) {
+                    apply(readKey(mapping, offset), mapping.get(offset + recordHeaderBytes) == kindSave ? offset : -1);
+                }
+                uncommitted.clear();
+                tail = position + length;
+            }
+            else {
+                uncommitted.add(position);
+            }
+            position += length;
+        }
+        // So that an old record after the end can't be read as part of a later batch
+        ByteBuffer clear = mapping.duplicate();
+        clear.position(tail);
+        byte[] zeros = new byte[4096];
+        while (clear.hasRemaining()) {
+            clear.put(zeros, 0, Math.min(zeros.length, clear.remaining()));
+        }
+        mapping.force();
+    }
+
+    /**
+     * @return the length of the record at position, 0 if there isn't a whole record there (the end of the log or a
+     *         torn write)
+     */
+    private static int validRecordLength(ByteBuffer buffer, int position) {
+        if (position > buffer.capacity() - recordHeaderBytes) {
+            return 0;
+        }
+        int bodyLength = buffer.getInt(position);
+        if (bodyLength <= 0 || bodyLength > buffer.capacity() - position - recordHeaderBytes) {
+            return 0;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.limit(position + recordHeaderBytes + bodyLength).position(position + recordHeaderBytes);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+            return 0;
+        }
+        return recordHeaderBytes + bodyLength;
+    }
+
+    /**
+     * Points the index at a save or removes the entry. Must hold {@link #appendLock}, and the write lock unless the
+     * log is still being opened
+     *
+     * @param offset the save's record, -1 to delete
+     */
+    private void apply(DatabaseCache.EntryKey key, int offset) {
+        Integer previous = offset < 0 ? index.remove(key) : index.put(key, offset);
+        if (previous != null) {
+            liveBytes -= recordHeaderBytes + mapping.getInt(previous);
+        }
+        if (offset >= 0) {
+            liveBytes += recordHeaderBytes + mapping.getInt(offset);
+        }
+    }
+
+    private static DatabaseCache.EntryKey readKey(ByteBuffer buffer, int offset) {
+        int position = offset + recordHeaderBytes + 1;
+        int typeId = buffer.getInt(position);
+        byte[] guild = new byte[buffer.getShort(position + 4) & 0xFFFF];
+        read(buffer, position + 6, guild);
+        return new DatabaseCache.EntryKey(new String(guild, StandardCharsets.UTF_8), typeId);
+    }
+
+    private static StoredEntry readEntry(ByteBuffer buffer, int offset) {
+        int position = offset + recordHeaderBytes + 1 + 4;
+        position += 2 + (buffer.getShort(position) & 0xFFFF);
+        int format = buffer.get(position);
+        byte[] data = new byte[buffer.getInt(position + 1)];
+        read(buffer, position + 5, data);
+        return StoredEntry.fromStored(format, data);
+    }
+
+    /**
+     * Copies without moving the buffer's position so that it can be shared between threads
+     */
+    private static void read(ByteBuffer buffer, int position, byte[] into) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(into);
+    }
+
+    /**
+     * @param key null for a commit
+     * @param entry null for a delete or commit
+     */
+    private static byte[] encodeRecord(byte kind, DatabaseCache.EntryKey key, StoredEntry entry) {
+        byte[] guild = key == null ? new byte[0] : key.guild.getBytes(StandardCharsets.UTF_8);
+        if (guild.length > 0xFFFF) {
+            throw new BadStateException("Guild is too long to store: " + key.guild);
+        }
+        byte[] data = entry == null ? new byte[0] : entry.getStoredBytes();
+        int bodyLength = 1 + (key == null ? 0 : 4 + 2 + guild.length) + (entry == null ? 0 : 1 + 4 + data.length);
+        ByteBuffer record = ByteBuffer.allocate(recordHeaderBytes + bodyLength);
+        record.putInt(bodyLength);
+        record.putInt(0);
+        record.put(kind);
+        if (key != null) {
+            record.putInt(key.typeId);
+            record.putShort((short) guild.length);
+            record.put(guild);
+        }
+        if (entry != null) {
+            record.put((byte) entry.getFormat());
+            record.putInt(data.length);
+            record.put(data);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), recordHeaderBytes, bodyLength);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    @Override
+    public StoredEntry load(String guild, int typeId) {
+        lock.readLock().lock();
+        try {
+            Integer offset = index.get(new DatabaseCache.EntryKey(guild, typeId));
+            return offset == null ? null : readEntry(mapping, offset);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, StoredEntry> loadType(int typeId, Collection<String> guilds) {
+        Map<String, StoredEntry> found = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            if (guilds == null) {
+                for (Map.Entry<DatabaseCache.EntryKey, Integer> entry : index.entrySet()) {
+                    if (entry.getKey().typeId == typeId) {
+                        found.put(entry.getKey().guild, readEntry(mapping, entry.getValue()));
+                    }
+                }
+                return found;
+            }
+            for (String guild : guilds) {
+                Integer offset = index.get(new DatabaseCache.EntryKey(guild, typeId));
+                if (offset != null) {
+                    found.put(guild, readEntry(mapping, offset));
+                }
+            }
+            return found;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<Integer, StoredEntry> loadGuild(String guild) {
+        Map<Integer, StoredEntry> found = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<DatabaseCache.EntryKey, Integer> entry : index.entrySet()) {
+                if (entry.getKey().guild.equals(guild)) {
+                    found.put(entry.getKey().typeId, readEntry(mapping, entry.getValue()));
+                }
+            }
+            return found;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the batch and a commit then forces it to disk, reads only see the batch once it's all there
+     */
+    @Override
+    public void write(Map<DatabaseCache.EntryKey, StoredEntry> entries) throws SQLException {
+        synchronized (appendLock) {
+            if (closed) {
+                throw new BadStateException("Log is closed");
+            }
+            List<byte[]> records = new ArrayList<>(entries.size() + 1);
+            long batchBytes = 0;
+            for (Map.Entry<DatabaseCache.EntryKey, StoredEntry> entry : entries.entrySet()) {
+                byte[] record = encodeRecord(entry.getValue() == null ? kindDelete : kindSave, entry.getKey(),
+                        entry.getValue()
+                );
+                records.add(record);
+                batchBytes += record.length;
+            }
+            byte[] commit = encodeRecord(kindCommit, null, null);
+            batchBytes += commit.length;
+
+            try {
+                ensureCapacity(batchBytes);
+            }
+            catch (IOException e) {
+                throw new SQLException("Couldn't grow " + file, e);
+            }
+            ByteBuffer out = mapping.duplicate();
+            out.position(tail);
+            int[] offsets = new int[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                offsets[i] = out.position();
+                out.put(records.get(i));
+            }
+            out.put(commit);
+            mapping.force();
+
+            lock.writeLock().lock();
+            try {
+                int i = 0;
+                for (Map.Entry<DatabaseCache.EntryKey, StoredEntry> entry : entries.entrySet()) {
+                    apply(entry.getKey(), entry.getValue() == null ? -1 : offsets[i]);
+                    i++;
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+            tail = out.position();
+
+            if (!compacting && tail >= compactionMinBytes && liveBytes * 2 < tail - headerBytes) {
+                compacting = true;
+                compactor.execute(this::compact);
+            }
+        }
+    }
+
+    /**
+     * Remaps the file larger (at least doubling it) if the bytes won't fit after the tail. Must hold
+     * {@link #appendLock}
+     */
+    private void ensureCapacity(long bytes) throws IOException {
+        long needed = tail + bytes;
+        if (needed <= mapping.capacity()) {
+            return;
+        }
+        if (needed > Integer.MAX_VALUE) {
+            throw new BadStateException(file + " is full");
+        }
+        MappedByteBuffer grown = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * mapping.capacity()))
+        );
+        lock.writeLock().lock();
+        try {
+            // Reads that already have the old mapping can carry on using it
+            mapping = grown;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the live records to a new file then swaps it in
+     */
+    private void compact() {
+        synchronized (appendLock) {
+            try {
+                if (!closed) {
+                    compactNow();
+                }
+            }
+            catch (IOException | RuntimeException e) {
+                // The log is still whole, it'll be tried again after a later write
+                e.printStackTrace();
+            }
+            finally {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Must hold {@link #appendLock}
+     */
+    private void compactNow() throws IOException {
+        File compacted = new File(file.getPath() + compactingSuffix);
+        FileChannel newChannel = FileChannel.open(compacted.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+        );
+        try {
+            byte[] commit = encodeRecord(kindCommit, null, null);
+            long needed = headerBytes + liveBytes + commit.length;
+            // Room to carry on appending without growing straight away
+            MappedByteBuffer newMapping = newChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.min(Integer.MAX_VALUE, Math.max(initialCapacityBytes, needed + needed / 2))
+            );
+            newMapping.putInt(0, magic);
+            newMapping.putInt(4, version);
+            ByteBuffer out = newMapping.duplicate();
+            out.position(headerBytes);
+            // Nothing else changes the index while the append lock is held
+            Map<DatabaseCache.EntryKey, Integer> newIndex = new HashMap<>();
+            for (Map.Entry<DatabaseCache.EntryKey, Integer> entry : index.entrySet()) {
+                int offset = entry.getValue();
+                ByteBuffer record = mapping.duplicate();
+                record.limit(offset + recordHeaderBytes + mapping.getInt(offset)).position(offset);
+                newIndex.put(entry.getKey(), out.position());
+                out.put(record);
+            }
+            out.put(commit);
+            newMapping.force();
+            Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+
+            FileChannel oldChannel;
+            lock.writeLock().lock();
+            try {
+                oldChannel = channel;
+                channel = newChannel;
+                mapping = newMapping;
+                index = newIndex;
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+            tail = out.position();
+            // The old mapping stays readable until it's garbage collected
+            oldChannel.close();
+        }
+        catch (IOException | RuntimeException e) {
+            newChannel.close();
+            Files.deleteIfExists(compacted.toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for a compaction in progress then closes the file
+     *
+     * @throws ContactEwaException if the file can't be closed
+     */
+    @Override
+    public void close() {
+        synchronized (appendLock) {
+            closed = true;
+        }
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            try {
+                mapping.force();
+                channel.close();
+            }
+            catch (IOException e) {
+                throw new ContactEwaException("Close log error");
+            }
+        }
+    }
+}
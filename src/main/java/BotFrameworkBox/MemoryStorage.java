@@ -0,0 +1,110 @@
+package BotFrameworkBox;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Entries in a map. Each path's storage is kept until it's deleted so that closing and reopening the database keeps
+ * the entries like a file would. Reads run in parallel, writes lock out reads so that a batch is seen all at once
+ */
+class MemoryStorage implements Storage {
+    private static final Map<String, MemoryStorage> storages = new HashMap<>();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<DatabaseCache.EntryKey, StoredEntry> entries = new HashMap<>();
+
+    private MemoryStorage() { }
+
+    /**
+     * @return the storage for the path, empty if it's new
+     */
+    static synchronized MemoryStorage open(String path) {
+        return storages.computeIfAbsent(path, key -> new MemoryStorage());
+    }
+
+    static synchronized void delete(String path) {
+        storages.remove(path);
+    }
+
+    @Override
+    public StoredEntry load(String guild, int typeId) {
+        lock.readLock().lock();
+        try {
+            return entries.get(new DatabaseCache.EntryKey(guild, typeId));
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, StoredEntry> loadType(int typeId, Collection<String> guilds) {
+        Map<String, StoredEntry> found = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            if (guilds == null) {
+                for (Map.Entry<DatabaseCache.EntryKey, StoredEntry> entry : entries.entrySet()) {
+                    if (entry.getKey().typeId == typeId) {
+                        found.put(entry.getKey().guild, entry.getValue());
+                    }
+                }
+                return found;
+            }
+            for (String guild : guilds) {
+                StoredEntry entry = entries.get(new DatabaseCache.EntryKey(guild, typeId));
+                if (entry != null) {
+                    found.put(guild, entry);
+                }
+            }
+            return found;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<Integer, StoredEntry> loadGuild(String guild) {
+        Map<Integer, StoredEntry> found = new LinkedHashMap<>();
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<DatabaseCache.EntryKey, StoredEntry> entry : entries.entrySet()) {
+                if (entry.getKey().guild.equals(guild)) {
+                    found.put(entry.getKey().typeId, entry.getValue());
+                }
+            }
+            return found;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void write(Map<DatabaseCache.EntryKey, StoredEntry> writes) {
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<DatabaseCache.EntryKey, StoredEntry> write : writes.entrySet()) {
+                if (write.getValue() == null) {
+                    entries.remove(write.getKey());
+                }
+                else {
+                    entries.put(write.getKey(), write.getValue().withoutChanges());
+                }
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Nothing to release, the entries are kept for when it's opened again
+     */
+    @Override
+    public void close() { }
+}
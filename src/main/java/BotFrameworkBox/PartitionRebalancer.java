@@ -0,0 +1,26 @@
+package BotFrameworkBox;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Offline tool for changing how many partitions the database is spread over (see {@link StorageType#PARTITIONED}).
+ * The bot must be stopped while it runs. Also splits an unpartitioned database into partitions the first time.
+ * <p>
+ * Usage: {@code PartitionRebalancer <partition count> [path to TatsuyaBot]}, then start the bot with the same count
+ */
+public class PartitionRebalancer {
+    public static void main(String[] args) throws SQLException, IOException {
+        final int partitionCount = args.length == 0 ? 0 : Bot.parsePartitionCount(args[0]);
+        if (partitionCount < 1 || args.length > 2) {
+            System.err.println("Usage: PartitionRebalancer <partition count (at least 1)> [path to TatsuyaBot]");
+            System.exit(1);
+        }
+        final String folder = args.length > 1 ? args[1] : Bot.getPathToTatsuyaBot();
+        final long startNanos = System.nanoTime();
+        final long moved = PartitionedStorage.rebalance(folder + DatabaseWrapper.databaseName, partitionCount);
+        System.out.println(String.format("Moved %d entries into %d partitions in %.1f s", moved, partitionCount,
+                (System.nanoTime() - startNanos) / 1e9
+        ));
+    }
+}
@@ -0,0 +1,298 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.BadStateException;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Guilds spread over several SQLite databases by a hash of their id, each with its own writer so that a flush writes to
+ * all of them at once. A guild's entries are always in the same partition so saves to one guild are still written
+ * together, but a batch across guilds in different partitions isn't: after a crash some partitions can have it and
+ * others not.
+ * <p>
+ * Partition i of n is kept in {@code <path>-p<i>.db} and records n in its user_version so that it can't be opened with
+ * a different count. The count is changed offline with {@link PartitionRebalancer}
+ */
+class PartitionedStorage implements Storage {
+    private static final String partitionSeparator = "-p";
+    private static final String extension = ".db";
+    /**
+     * WAL mode keeps the write-ahead log and its index next to the database
+     */
+    private static final String[] walSuffixes = {"-wal", "-shm"};
+    /**
+     * Entries per write when copying between partitions
+     */
+    private static final int rebalanceBatchSize = 1000;
+
+    private final SqliteStorage[] partitions;
+
+    /**
+     * Opens the partitions, creating any that don't exist
+     *
+     * @throws BadStateException if the partitions were made with a different count
+     */
+    PartitionedStorage(String path, int partitionCount) throws SQLException {
+        if (partitionCount < 1) {
+            throw new IllegalArgumentException("There must be at least one partition");
+        }
+        partitions = new SqliteStorage[partitionCount];
+        try {
+            for (int i = 0; i < partitionCount; i++) {
+                partitions[i] = new SqliteStorage(getPartitionPath(path, i));
+                int storedCount = partitions[i].getUserVersion();
+                if (storedCount == 0) {
+                    partitions[i].setUserVersion(partitionCount);
+                }
+                else if (storedCount != partitionCount) {
+                    throw new BadStateException(String.format(
+                            "%s is from %d partitions not %d, change the count with PartitionRebalancer",
+                            getPartitionPath(path, i), storedCount, partitionCount
+                    ));
+                }
+            }
+        }
+        catch (SQLException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static String getPartitionPath(String path, int partition) {
+        return path + partitionSeparator + partition + extension;
+    }
+
+    /**
+     * Consistent hashing so that changing the count only moves the guilds that have to move (about 1 in the new
+     * count when adding a partition)
+     */
+    static int getPartition(String guild, int partitionCount) {
+        return Hashing.consistentHash(Hashing.murmur3_32().hashString(guild, StandardCharsets.UTF_8), partitionCount);
+    }
+
+    private SqliteStorage getStorage(String guild) {
+        return partitions[getPartition(guild, partitions.length)];
+    }
+
+    @Override
+    public StoredEntry load(String guild, int typeId) throws SQLException {
+        return getStorage(guild).load(guild, typeId);
+    }
+
+    /**
+     * Scans every partition if guilds is null, otherwise only asks each partition for its own guilds
+     */
+    @Override
+    public Map<String, StoredEntry> loadType(int typeId, Collection<String> guilds) throws SQLException {
+        Map<String, StoredEntry> entries = new HashMap<>();
+        if (guilds == null) {
+            for (SqliteStorage partition : partitions) {
+                entries.putAll(partition.loadType(typeId, null));
+            }
+            return entries;
+        }
+        List<List<String>> partitionGuilds = new ArrayList<>(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            partitionGuilds.add(new ArrayList<>());
+        }
+        for (String guild : guilds) {
+            partitionGuilds.get(getPartition(guild, partitions.length)).add(guild);
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            if (!partitionGuilds.get(i).isEmpty()) {
+                entries.putAll(partitions[i].loadType(typeId, partitionGuilds.get(i)));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public Map<Integer, StoredEntry> loadGuild(String guild) throws SQLException {
+        return getStorage(guild).loadGuild(guild);
+    }
+
+    /**
+     * Splits the entries by partition and writes them all at once, each partition in one transaction
+     *
+     * @throws SQLException the first partition's error once every partition has finished (the others are still
+     *         written)
+     */
+    @Override
+    public void write(Map<DatabaseCache.EntryKey, StoredEntry> entries) throws SQLException {
+        List<Map<DatabaseCache.EntryKey, StoredEntry>> partitionEntries = new ArrayList<>(partitions.length);
+        for (int i = 0; i < partitions.length; i++) {
+            partitionEntries.add(new LinkedHashMap<>());
+        }
+        for (Map.Entry<DatabaseCache.EntryKey, StoredEntry> entry : entries.entrySet()) {
+            partitionEntries.get(getPartition(entry.getKey().guild, partitions.length))
+                    .put(entry.getKey(), entry.getValue());
+        }
+        List<Future<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < partitions.length; i++) {
+            if (!partitionEntries.get(i).isEmpty()) {
+                writes.add(partitions[i].submitWrite(partitionEntries.get(i)));
+            }
+        }
+        SQLException firstError = null;
+        for (Future<Void> write : writes) {
+            try {
+                DatabaseStore.await(write);
+            }
+            catch (SQLException e) {
+                if (firstError == null) {
+                    firstError = e;
+                }
+            }
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (SqliteStorage partition : partitions) {
+            if (partition != null) {
+                partition.close();
+            }
+        }
+    }
+
+    /**
+     * @return the partition files at the path (without their -wal and -shm files) mapped by partition number
+     */
+    static Map<Integer, File> findPartitions(String path) {
+        File base = new File(path);
+        File folder = base.getAbsoluteFile().getParentFile();
+        Pattern partitionName = Pattern.compile(Pattern.quote(base.getName() + partitionSeparator) + "(\\d+)"
+                + Pattern.quote(extension));
+        Map<Integer, File> found = new HashMap<>();
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return found;
+        }
+        for (File file : files) {
+            Matcher matcher = partitionName.matcher(file.getName());
+            if (matcher.matches()) {
+                found.put(Integer.parseInt(matcher.group(1)), file);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Deletes every partition at the path, whatever the count, it must be closed
+     *
+     * @return false if something couldn't be deleted
+     */
+    static boolean delete(String path) {
+        boolean deleted = true;
+        for (File partition : findPartitions(path).values()) {
+            for (String suffix : walSuffixes) {
+                File file = new File(partition.getPath() + suffix);
+                deleted &= !file.exists() || file.delete();
+            }
+            deleted &= !partition.exists() || partition.delete();
+        }
+        return deleted;
+    }
+
+    /**
+     * Moves a partition along with its write-ahead log and index, replacing whatever is at the destination
+     */
+    private static void move(File partition, String destination) throws IOException {
+        for (String suffix : walSuffixes) {
+            File from = new File(partition.getPath() + suffix);
+            File to = new File(destination + suffix);
+            if (from.exists()) {
+                Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            else {
+                // A stale log would be applied to the moved database when it's next opened
+                Files.deleteIfExists(to.toPath());
+            }
+        }
+        Files.move(partition.toPath(), new File(destination).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Copies every entry into a new set of partitions then swaps them in, each with its -wal and -shm files. If there
+     * are no partitions at the path the unpartitioned SQLite database ({@code <path>.db}) is split up instead and left
+     * as it is (it can't be opened as {@link StorageType#SQLITE} while there are partitions). Nothing else can be
+     * using the database.
+     * <p>
+     * The existing partitions are only changed once the new ones are complete. If it's stopped while they're being
+     * swapped the old partitions are left as {@code <path>-old-p<i>.db}
+     *
+     * @return the number of entries copied
+     * @throws BadStateException if the existing partitions are incomplete
+     */
+    static long rebalance(String path, int partitionCount) throws SQLException, IOException {
+        Map<Integer, File> existing = findPartitions(path);
+        List<String> sources = new ArrayList<>();
+        if (existing.isEmpty()) {
+            if (new File(path + extension).exists()) {
+                sources.add(path + extension);
+            }
+        }
+        else {
+            for (int i = 0; i < existing.size(); i++) {
+                if (!existing.containsKey(i)) {
+                    throw new BadStateException("Partition " + i + " of " + existing.size() + " is missing");
+                }
+                sources.add(existing.get(i).getPath());
+            }
+        }
+
+        String newPath = path + "-rebalancing";
+        delete(newPath);
+        long[] copied = {0};
+        PartitionedStorage target = new PartitionedStorage(newPath, partitionCount);
+        try {
+            for (String source : sources) {
+                SqliteStorage sourceStorage = new SqliteStorage(source);
+                try {
+                    sourceStorage.loadAll(rebalanceBatchSize, batch -> {
+                        target.write(batch);
+                        copied[0] += batch.size();
+                    });
+                }
+                finally {
+                    sourceStorage.close();
+                }
+            }
+        }
+        catch (SQLException | RuntimeException e) {
+            target.close();
+            delete(newPath);
+            throw e;
+        }
+        target.close();
+
+        String oldPath = path + "-old";
+        delete(oldPath);
+        for (Map.Entry<Integer, File> partition : existing.entrySet()) {
+            move(partition.getValue(), getPartitionPath(oldPath, partition.getKey()));
+        }
+        for (Map.Entry<Integer, File> partition : findPartitions(newPath).entrySet()) {
+            move(partition.getValue(), getPartitionPath(path, partition.getKey()));
+        }
+        delete(oldPath);
+        return copied[0];
+    }
+}
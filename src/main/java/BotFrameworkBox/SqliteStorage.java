@@ -0,0 +1,429 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.BadStateException;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Entries in the blobs table of an SQLite database (see {@link DatabaseMigrations} for the schema), one row per guild
+ * and type
+ */
+class SqliteStorage implements Storage {
+    private static final String sqlPrefix = "jdbc:sqlite:";
+    private static final String tableName = "blobs";
+    private static final String selectSql = "SELECT entry, format FROM " + tableName
+            + " WHERE guildId = ? AND entryType = ?";
+    private static final String selectAllSql = "SELECT guildId, entry, format FROM " + tableName
+            + " WHERE entryType = ?";
+    private static final String selectGuildSql = "SELECT entryType, entry, format FROM " + tableName
+            + " WHERE guildId = ?";
+    /**
+     * Guilds per query in {@link #loadType(int, Collection)}, SQLite allows at most 999 parameters
+     */
+    private static final int batchSize = 500;
+    /**
+     * Batches are padded to batchSize so that this is the only SQL the connection caches a statement for
+     */
+    private static final String selectBatchSql = selectAllSql + " AND guildId IN ("
+            + String.join(",", Collections.nCopies(batchSize, "?")) + ")";
+    private static final String deleteSql = "DELETE FROM " + tableName + " WHERE guildId = ? AND entryType = ?";
+    private static final String saveSql = "REPLACE INTO " + tableName
+            + " (guildId, entryType, entry, format) VALUES(?,?,?,?)";
+
+    /*
+     * Backups
+     */
+    /**
+     * Added to a backup's file name until it's complete
+     */
+    private static final String partialSuffix = ".partial";
+    /**
+     * Rows copied per step, each step is committed then followed by a pause so that the backup's I/O is spread out
+     */
+    private static final int backupStepRows = 200;
+    private static final long backupStepPauseMillis = 20;
+
+    private final DatabaseStore store;
+
+    /**
+     * Opens the database, creating it if it doesn't exist and bringing its schema up to date
+     */
+    SqliteStorage(String path) throws SQLException {
+        store = new DatabaseStore(sqlPrefix + path,
+                connection -> DatabaseMigrations.migrate(connection.getConnection())
+        );
+    }
+
+    @Override
+    public StoredEntry load(String guild, int typeId) throws SQLException {
+        return store.read(connection -> {
+            PreparedStatement ps = connection.prepare(selectSql);
+            ps.setString(1, guild);
+            ps.setInt(2, typeId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                StoredEntry entry = StoredEntry.fromRow(rs);
+                if (rs.next()) {
+                    throw new BadStateException("Database entry not unique");
+                }
+                return entry;
+            }
+        });
+    }
+
+    @Override
+    public Map<String, StoredEntry> loadType(int typeId, Collection<String> guilds) throws SQLException {
+        Map<String, StoredEntry> entries = new HashMap<>();
+        if (guilds == null) {
+            store.read(connection -> {
+                PreparedStatement ps = connection.prepare(selectAllSql);
+                ps.setInt(1, typeId);
+                readGuildEntries(ps, entries);
+                return null;
+            });
+            return entries;
+        }
+
+        Iterator<String> iterator = guilds.iterator();
+        List<String> batch = new ArrayList<>(batchSize);
+        while (iterator.hasNext()) {
+            batch.clear();
+            while (iterator.hasNext() && batch.size() < batchSize) {
+                batch.add(iterator.next());
+            }
+            store.read(connection -> {
+                PreparedStatement ps = connection.prepare(selectBatchSql);
+                ps.setInt(1, typeId);
+                // Repeating the last guild doesn't change the result
+                for (int i = 0; i < batchSize; i++) {
+                    ps.setString(i + 2, batch.get(Math.min(i, batch.size() - 1)));
+                }
+                readGuildEntries(ps, entries);
+                return null;
+            });
+        }
+        return entries;
+    }
+
+    private static void readGuildEntries(PreparedStatement ps, Map<String, StoredEntry> entries) throws SQLException {
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                entries.put(rs.getString("guildId"), StoredEntry.fromRow(rs));
+            }
+        }
+    }
+
+    @Override
+    public Map<Integer, StoredEntry> loadGuild(String guild) throws SQLException {
+        return store.read(connection -> {
+            Map<Integer, StoredEntry> entries = new LinkedHashMap<>();
+            PreparedStatement ps = connection.prepare(selectGuildSql);
+            ps.setString(1, guild);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    entries.put(rs.getInt("entryType"), StoredEntry.fromRow(rs));
+                }
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * In one transaction. Entries with changes only have their changed keys updated
+     */
+    @Override
+    public void write(Map<DatabaseCache.EntryKey, StoredEntry> entries) throws SQLException {
+        DatabaseStore.await(submitWrite(entries));
+    }
+
+    /**
+     * {@link #write(Map)} without waiting for it
+     *
+     * @see DatabaseStore#await(Future)
+     */
+    Future<Void> submitWrite(Map<DatabaseCache.EntryKey, StoredEntry> entries) {
+        return store.submitWrite(connection -> {
+            Connection raw = connection.getConnection();
+            PreparedStatement save = connection.prepare(saveSql);
+            PreparedStatement delete = connection.prepare(deleteSql);
+            raw.setAutoCommit(false);
+            try {
+                // Each key is only in entries once so the saves and deletes can be done in either order
+                for (Map.Entry<DatabaseCache.EntryKey, StoredEntry> entry : entries.entrySet()) {
+                    if (entry.getValue() != null && entry.getValue().getChanges() != null
+                            && writeChanges(connection, entry.getKey(), entry.getValue().getChanges())) {
+                        continue;
+                    }
+                    PreparedStatement ps = entry.getValue() == null ? delete : save;
+                    ps.setString(1, entry.getKey().guild);
+                    ps.setInt(2, entry.getKey().typeId);
+                    if (entry.getValue() != null) {
+                        entry.getValue().bind(ps, 3, 4);
+                    }
+                    ps.addBatch();
+                }
+                save.executeBatch();
+                delete.executeBatch();
+                raw.commit();
+            }
+            catch (SQLException | RuntimeException e) {
+                save.clearBatch();
+                delete.clearBatch();
+                raw.rollback();
+                throw e;
+            }
+            finally {
+                raw.setAutoCommit(true);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Passes every entry to the consumer, a batch at a time so that they don't all have to be held at once
+     *
+     * @param consumer called with up to batchSize entries at a time, on this thread
+     */
+    void loadAll(int batchSize, DatabaseCache.Writer consumer) throws SQLException {
+        store.snapshot(connection -> {
+            try (Statement stmt = connection.getConnection().createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT guildId, entryType, entry, format FROM " + tableName)) {
+                Map<DatabaseCache.EntryKey, StoredEntry> batch = new LinkedHashMap<>();
+                while (rs.next()) {
+                    batch.put(new DatabaseCache.EntryKey(rs.getString("guildId"), rs.getInt("entryType")),
+                            StoredEntry.fromRow(rs)
+                    );
+                    if (batch.size() >= batchSize) {
+                        consumer.write(batch);
+                        batch = new LinkedHashMap<>();
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    consumer.write(batch);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return the database's user_version pragma, 0 if it's never been set. Free for whoever owns the file to use
+     */
+    int getUserVersion() throws SQLException {
+        return store.read(connection -> {
+            try (Statement stmt = connection.getConnection().createStatement();
+                 ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        });
+    }
+
+    void setUserVersion(int userVersion) throws SQLException {
+        store.write(connection -> {
+            try (Statement stmt = connection.getConnection().createStatement()) {
+                stmt.execute("PRAGMA user_version = " + userVersion);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Updates only the changed keys of a JSON entry: json_remove for removed keys then json_set for the rest
+     *
+     * @return false if the row isn't stored as JSON (e.g. it's been deleted) so the whole entry has to be written
+     */
+    private static boolean writeChanges(DatabaseStore.CachingConnection connection, DatabaseCache.EntryKey key,
+            Map<String, String> changes
+    ) throws SQLException
+    {
+        List<String> removed = new ArrayList<>();
+        List<Map.Entry<String, String>> set = new ArrayList<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                removed.add(change.getKey());
+            }
+            else {
+                set.add(change);
+            }
+        }
+        String entry = "entry";
+        if (!removed.isEmpty()) {
+            entry = "json_remove(" + entry + ", ?" + ", ?".repeat(removed.size() - 1) + ")";
+        }
+        if (!set.isEmpty()) {
+            entry = "json_set(" + entry + ", ?, json(?)".repeat(set.size()) + ")";
+        }
+        PreparedStatement ps = connection.prepare("UPDATE " + tableName + " SET entry = " + entry
+                + " WHERE guildId = ? AND entryType = ? AND format = " + StoredEntry.formatJson);
+        int index = 1;
+        for (String removedKey : removed) {
+            ps.setString(index++, "$." + removedKey);
+        }
+        for (Map.Entry<String, String> change : set) {
+            ps.setString(index++, "$." + change.getKey());
+            ps.setString(index++, change.getValue());
+        }
+        ps.setString(index++, key.guild);
+        ps.setInt(index, key.typeId);
+        return ps.executeUpdate() > 0;
+    }
+
+    /**
+     * Copies the schema and rows from a snapshot (see {@link DatabaseStore#snapshot(DatabaseStore.SqlFunction)}) in
+     * steps of {@link #backupStepRows}, pausing between them. The copy is synced then renamed into place
+     */
+    @Override
+    public void backup(File destination) throws SQLException {
+        File partial = new File(destination.getPath() + partialSuffix);
+        try {
+            Files.deleteIfExists(partial.toPath());
+            try (Connection target = DriverManager.getConnection(sqlPrefix + partial.getPath())) {
+                try (Statement stmt = target.createStatement()) {
+                    // It's thrown away if the backup fails so it doesn't need a journal, it's synced once it's done
+                    stmt.execute("PRAGMA journal_mode = OFF");
+                    stmt.execute("PRAGMA synchronous = OFF");
+                }
+                store.snapshot(source -> {
+                    copyDatabase(source.getConnection(), target);
+                    return null;
+                });
+            }
+            try (FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(partial.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE
+            );
+        }
+        catch (IOException e) {
+            throw new SQLException("Backup to " + destination + " failed", e);
+        }
+        finally {
+            //noinspection ResultOfMethodCallIgnored: only there if the backup failed
+            partial.delete();
+        }
+    }
+
+    /**
+     * Tables and their rows first, then indexes and triggers so that they're built once rather than row by row
+     */
+    private static void copyDatabase(Connection source, Connection target) throws SQLException {
+        List<String> tables = new ArrayList<>();
+        List<String> laterSchema = new ArrayList<>();
+        try (Statement stmt = source.createStatement(); ResultSet rs = stmt.executeQuery(
+                "SELECT type, name, sql FROM sqlite_master WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite_%'")) {
+            while (rs.next()) {
+                if (rs.getString("type").equals("table")) {
+                    tables.add(rs.getString("name"));
+                    try (Statement create = target.createStatement()) {
+                        create.execute(rs.getString("sql"));
+                    }
+                }
+                else {
+                    laterSchema.add(rs.getString("sql"));
+                }
+            }
+        }
+        target.setAutoCommit(false);
+        for (String table : tables) {
+            copyTable(source, target, table);
+        }
+        try (Statement stmt = target.createStatement()) {
+            for (String sql : laterSchema) {
+                stmt.execute(sql);
+            }
+        }
+        target.commit();
+    }
+
+    private static void copyTable(Connection source, Connection target, String table) throws SQLException {
+        try (Statement select = source.createStatement();
+             ResultSet rs = select.executeQuery("SELECT * FROM \"" + table + "\"")) {
+            int columns = rs.getMetaData().getColumnCount();
+            try (PreparedStatement insert = target.prepareStatement("INSERT INTO \"" + table + "\" VALUES ("
+                    + String.join(",", Collections.nCopies(columns, "?")) + ")")) {
+                int rows = 0;
+                while (rs.next()) {
+                    for (int i = 1; i <= columns; i++) {
+                        insert.setObject(i, rs.getObject(i));
+                    }
+                    insert.addBatch();
+                    rows++;
+                    if (rows % backupStepRows == 0) {
+                        insert.executeBatch();
+                        target.commit();
+                        pauseBackup();
+                    }
+                }
+                insert.executeBatch();
+                target.commit();
+            }
+        }
+    }
+
+    private static void pauseBackup() throws SQLException {
+        try {
+            Thread.sleep(backupStepPauseMillis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Backup interrupted");
+        }
+    }
+
+    /**
+     * Checks the backup then copies it over the database with SQLite's backup API on the writer. The schema is brought
+     * up to date next time the database is opened
+     */
+    @Override
+    public void restore(File backup) throws SQLException {
+        SQLiteConfig readOnly = new SQLiteConfig();
+        readOnly.setReadOnly(true);
+        try (Connection check = DriverManager.getConnection(sqlPrefix + backup.getPath(), readOnly.toProperties());
+             Statement stmt = check.createStatement()) {
+            ResultSet rs = stmt.executeQuery("PRAGMA quick_check");
+            if (!rs.next() || !rs.getString(1).equals("ok")) {
+                throw new BadStateException(backup.getName() + " is corrupt");
+            }
+            if (DatabaseMigrations.getVersion(check) > DatabaseMigrations.getLatestVersion()) {
+                throw new BadStateException(backup.getName() + " is from a newer version of the bot");
+            }
+        }
+        store.write(connection -> {
+            int result = ((SQLiteConnection) connection.getConnection()).db().restore("main", backup.getPath(), null);
+            if (result != 0) {
+                throw new SQLException("Restore from " + backup + " failed with code " + result);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        store.close();
+    }
+}
@@ -0,0 +1,63 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.BadStateException;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Where {@link DatabaseWrapper} keeps its entries, chosen with {@link StorageType}. Entries are looked up by guild and
+ * type id and are stored exactly as given (format and data). Implementations must be thread safe: reads come from any
+ * thread while writes come one batch at a time from the {@link DatabaseCache}'s flusher
+ */
+interface Storage {
+    /**
+     * @return the entry, null if there isn't one
+     */
+    StoredEntry load(String guild, int typeId) throws SQLException;
+
+    /**
+     * @param guilds null for every guild
+     * @return the entries of the type mapped by guild, guilds without one are left out
+     */
+    Map<String, StoredEntry> loadType(int typeId, Collection<String> guilds) throws SQLException;
+
+    /**
+     * @return every entry saved for the guild mapped by type id
+     */
+    Map<Integer, StoredEntry> loadGuild(String guild) throws SQLException;
+
+    /**
+     * Saves and deletes all the entries together: after a crash either all or none of them are there. Entries' changes
+     * ({@link StoredEntry#getChanges()}) can be used to write less, they can also be ignored
+     *
+     * @param entries null entries to delete
+     */
+    void write(Map<DatabaseCache.EntryKey, StoredEntry> entries) throws SQLException;
+
+    /**
+     * Copies everything to a new file without holding up writes. The copy is of the storage as it was when the backup
+     * started, the file is only created once it's complete
+     *
+     * @throws BadStateException if the storage can't be backed up
+     */
+    default void backup(File destination) throws SQLException {
+        throw new BadStateException(getClass().getSimpleName() + " can't be backed up");
+    }
+
+    /**
+     * Replaces everything with a backup made by {@link #backup(File)}. Nothing else should be using the storage
+     *
+     * @throws BadStateException if the backup can't be used
+     */
+    default void restore(File backup) throws SQLException {
+        throw new BadStateException(getClass().getSimpleName() + " can't be restored");
+    }
+
+    /**
+     * Waits for anything in progress then releases the storage's files
+     */
+    void close();
+}
@@ -0,0 +1,101 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.BadStateException;
+
+import java.io.File;
+import java.sql.SQLException;
+
+/**
+ * The backends {@link DatabaseWrapper} can keep its entries in, see {@link DatabaseWrapper#setStorageType(StorageType)}
+ */
+public enum StorageType {
+    /**
+     * An SQLite database file, the default
+     */
+    SQLITE {
+        /**
+         * @throws BadStateException if the database has been split into partitions, the file left at the path is
+         *         from before the split
+         */
+        @Override
+        Storage open(String path, int partitionCount) throws SQLException {
+            if (!PartitionedStorage.findPartitions(path).isEmpty()) {
+                throw new BadStateException(path + " has been partitioned, start the bot with its partition count");
+            }
+            return new SqliteStorage(path + ".db");
+        }
+
+        @Override
+        boolean delete(String path) {
+            // WAL mode keeps the write-ahead log and its index next to the database
+            return deleteFiles(path + ".db", "-wal", "-shm", "");
+        }
+    },
+    /**
+     * Kept in memory until it's deleted (closing and reopening the database keeps the entries). For tests and
+     * benchmarks
+     */
+    IN_MEMORY {
+        @Override
+        Storage open(String path, int partitionCount) {
+            return MemoryStorage.open(path);
+        }
+
+        @Override
+        boolean delete(String path) {
+            MemoryStorage.delete(path);
+            return true;
+        }
+    },
+    /**
+     * An append-only, memory-mapped log file, see {@link LogStorage}
+     */
+    LOG_STRUCTURED {
+        @Override
+        Storage open(String path, int partitionCount) throws SQLException {
+            return new LogStorage(path + ".log");
+        }
+
+        @Override
+        boolean delete(String path) {
+            return deleteFiles(path + ".log", LogStorage.compactingSuffix, "");
+        }
+    },
+    /**
+     * Several SQLite database files with guilds spread over them by a hash of their id, see
+     * {@link PartitionedStorage}
+     */
+    PARTITIONED {
+        @Override
+        Storage open(String path, int partitionCount) throws SQLException {
+            return new PartitionedStorage(path, partitionCount);
+        }
+
+        @Override
+        boolean delete(String path) {
+            return PartitionedStorage.delete(path);
+        }
+    };
+
+    /**
+     * @param path where to keep the entries, without an extension
+     * @param partitionCount only used by {@link #PARTITIONED}
+     */
+    abstract Storage open(String path, int partitionCount) throws SQLException;
+
+    /**
+     * Deletes everything that's stored at the path, it must be closed
+     *
+     * @return false if something couldn't be deleted
+     */
+    abstract boolean delete(String path);
+
+    private static boolean deleteFiles(String path, String... suffixes) {
+        boolean deleted = true;
+        for (String suffix : suffixes) {
+            File file = new File(path + suffix);
+            deleted &= !file.exists() || file.delete();
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,260 @@
+package BotFrameworkBox;
+
+import ExceptionsBox.BadStateException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An entry as it's stored in a row of the blobs table: the format column's tag and the entry column's data. Only
+ * uncompressed JSON is stored as text (so that it stays readable), everything else is bytes. Uncompressed JSON can
+ * also carry the top level keys that changed since the entry it replaces so that only they are written. Immutable
+ */
+final class StoredEntry {
+    static final int formatJson = 0;
+    /**
+     * The version of the type's {@link BinaryCodec} as a varint then the codec's fields
+     */
+    static final int formatBinary = 1;
+    /**
+     * Set in the format if the data is deflated
+     */
+    static final int compressedFlag = 2;
+    /**
+     * Entries larger than this are deflated if it makes them smaller
+     */
+    static final int compressionThresholdBytes = 256;
+
+    private final int format;
+    private final String text;
+    private final byte[] bytes;
+    /**
+     * Changed top level keys and their new JSON, null for keys that were removed. Null if the whole entry has to be
+     * written
+     */
+    private final Map<String, String> changes;
+
+    private StoredEntry(int format, String text, byte[] bytes) {
+        this(format, text, bytes, null);
+    }
+
+    private StoredEntry(int format, String text, byte[] bytes, Map<String, String> changes) {
+        this.format = format;
+        this.text = text;
+        this.bytes = bytes;
+        this.changes = changes;
+    }
+
+    static StoredEntry fromJson(String json) {
+        if (json.length() > compressionThresholdBytes) {
+            byte[] raw = json.getBytes(StandardCharsets.UTF_8);
+            byte[] compressed = deflate(raw);
+            if (compressed.length < raw.length) {
+                return new StoredEntry(formatJson | compressedFlag, null, compressed);
+            }
+        }
+        return new StoredEntry(formatJson, json, null);
+    }
+
+    /**
+     * For entries that have their changes written in place, which can only be done to uncompressed JSON
+     */
+    static StoredEntry fromUncompressedJson(String json) {
+        return new StoredEntry(formatJson, json, null);
+    }
+
+    static StoredEntry fromBinary(byte[] binary) {
+        if (binary.length > compressionThresholdBytes) {
+            byte[] compressed = deflate(binary);
+            if (compressed.length < binary.length) {
+                return new StoredEntry(formatBinary | compressedFlag, null, compressed);
+            }
+        }
+        return new StoredEntry(formatBinary, null, binary);
+    }
+
+    /**
+     * @param rs positioned on a row with entry and format columns
+     */
+    static StoredEntry fromRow(ResultSet rs) throws SQLException {
+        int format = rs.getInt("format");
+        if (format == formatJson) {
+            return new StoredEntry(format, rs.getString("entry"), null);
+        }
+        return new StoredEntry(format, null, rs.getBytes("entry"));
+    }
+
+    /**
+     * @param data as returned by {@link #getStoredBytes()}
+     */
+    static StoredEntry fromStored(int format, byte[] data) {
+        if (format == formatJson) {
+            return new StoredEntry(format, new String(data, StandardCharsets.UTF_8), null);
+        }
+        return new StoredEntry(format, null, data);
+    }
+
+    void bind(PreparedStatement ps, int entryIndex, int formatIndex) throws SQLException {
+        if (text != null) {
+            ps.setString(entryIndex, text);
+        }
+        else {
+            ps.setBytes(entryIndex, bytes);
+        }
+        ps.setInt(formatIndex, format);
+    }
+
+    int getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the entry column's data as bytes (UTF-8 for text), don't modify it
+     */
+    byte[] getStoredBytes() {
+        return text != null ? text.getBytes(StandardCharsets.UTF_8) : bytes;
+    }
+
+    /**
+     * @param changes see {@link #getChanges()}
+     * @return a copy which only needs the changes written, this if the entry isn't uncompressed JSON
+     */
+    StoredEntry withChanges(Map<String, String> changes) {
+        if (!isPlainJson()) {
+            return this;
+        }
+        return new StoredEntry(format, text, null, Collections.unmodifiableMap(new LinkedHashMap<>(changes)));
+    }
+
+    /**
+     * @return a copy that has to be written whole
+     */
+    StoredEntry withoutChanges() {
+        return changes == null ? this : new StoredEntry(format, text, bytes);
+    }
+
+    /**
+     * @param earlier the entry this replaces before earlier was written, its changes are relative to what's written
+     * @return this with earlier's changes included so that it can be written in place of both, whole if either has
+     *         to be written whole
+     */
+    StoredEntry mergeChanges(StoredEntry earlier) {
+        if (changes == null || earlier == null || earlier.changes == null) {
+            return withoutChanges();
+        }
+        Map<String, String> merged = new LinkedHashMap<>(earlier.changes);
+        merged.putAll(changes);
+        return new StoredEntry(format, text, null, Collections.unmodifiableMap(merged));
+    }
+
+    /**
+     * @return top level keys that changed since the entry this replaces mapped to their new JSON (null if the key was
+     *         removed), null if the whole entry has to be written
+     */
+    Map<String, String> getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return true if the entry is stored as JSON text, the only format that can be partially updated
+     */
+    boolean isPlainJson() {
+        return format == formatJson;
+    }
+
+    boolean isBinary() {
+        return (format & ~compressedFlag) == formatBinary;
+    }
+
+    String getJson() {
+        if (isBinary()) {
+            throw new BadStateException("Entry is binary");
+        }
+        return text != null ? text : new String(inflate(bytes), StandardCharsets.UTF_8);
+    }
+
+    byte[] getBinary() {
+        if (!isBinary()) {
+            throw new BadStateException("Entry is JSON");
+        }
+        return (format & compressedFlag) != 0 ? inflate(bytes) : bytes;
+    }
+
+    /**
+     * @return bytes used in the entry column
+     */
+    int getStoredSize() {
+        return getStoredBytes().length;
+    }
+
+    /**
+     * Compares what's stored, not the changes
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StoredEntry)) {
+            return false;
+        }
+        StoredEntry other = (StoredEntry) o;
+        return format == other.format && Objects.equals(text, other.text) && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Objects.hash(format, text) + Arrays.hashCode(bytes);
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] chunk = new byte[512];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] chunk = new byte[512];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(chunk);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new BadStateException("Compressed entry is truncated");
+                }
+                out.write(chunk, 0, inflated);
+            }
+            return out.toByteArray();
+        }
+        catch (DataFormatException e) {
+            throw new BadStateException("Compressed entry is corrupt");
+        }
+        finally {
+            inflater.end();
+        }
+    }
+}
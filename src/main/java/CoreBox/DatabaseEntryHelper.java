@@ -5,38 +5,88 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Provides useful functions for converting objects to and from the database's JSON format and the database in general
  */
 public class DatabaseEntryHelper {
+    /**
+     * Each enum's constants by name, see {@link #getEnumConstant(Class, String)}
+     */
+    private static final Map<Class, Map<String, Enum>> enumConstants = new ConcurrentHashMap<>();
+
     /**
      * @return Map of the key that will be used in the database to a class that extends DatabaseEntryType
      */
     public static BiMap<Integer, Class> getAllTypes() {
         BiMap<Integer, Class> types = HashBiMap.create();
         types.put(0, PomodoroSettings.class);
+        types.put(1, PomodoroSessionSnapshot.class);
+        types.put(2, PomodoroGuildBans.class);
         return types;
     }
 
-    public static <T extends Enum<T>> Set<T> parseEnumArray(JsonArray array, Class<T> clazz) {
-        Set<T> set = new HashSet<>();
+    /**
+     * @throws BadStateException if a value isn't one of clazz's constants
+     */
+    public static <T extends Enum<T>> EnumSet<T> parseEnumArray(JsonArray array, Class<T> clazz) {
+        EnumSet<T> set = EnumSet.noneOf(clazz);
         for (JsonElement element : array) {
-            String settingString = element.getAsString();
-            try {
-                set.add(T.valueOf(clazz, settingString.toUpperCase()));
-            }
-            catch (IllegalArgumentException e) {
-                throw new BadStateException(
-                        "Json parse error: unknown " + clazz.getName() + " setting: " + settingString);
-            }
+            set.add(getEnumConstant(clazz, element.getAsString()));
+        }
+        return set;
+    }
+
+    /**
+     * Streaming version of {@link #parseEnumArray(JsonArray, Class)}, reads the array in's next value
+     *
+     * @throws BadStateException if a value isn't one of clazz's constants
+     */
+    public static <T extends Enum<T>> EnumSet<T> readEnumArray(JsonReader in, Class<T> clazz) throws IOException {
+        EnumSet<T> set = EnumSet.noneOf(clazz);
+        in.beginArray();
+        while (in.hasNext()) {
+            set.add(getEnumConstant(clazz, in.nextString()));
         }
+        in.endArray();
         return set;
     }
 
+    /**
+     * Looks the name up rather than using {@link Enum#valueOf(Class, String)} so unknown names don't cost an exception
+     * being thrown and caught
+     *
+     * @param name case insensitive
+     * @throws BadStateException if name isn't one of clazz's constants
+     */
+    public static <T extends Enum<T>> T getEnumConstant(Class<T> clazz, String name) {
+        Map<String, Enum> constants = enumConstants.computeIfAbsent(clazz, key -> {
+            Map<String, Enum> byName = new HashMap<>();
+            for (T constant : clazz.getEnumConstants()) {
+                byName.put(constant.name(), constant);
+            }
+            return byName;
+        });
+        Enum constant = constants.get(name);
+        if (constant == null) {
+            constant = constants.get(name.toUpperCase());
+        }
+        if (constant == null) {
+            throw new BadStateException("Json parse error: unknown " + clazz.getName() + " setting: " + name);
+        }
+        return clazz.cast(constant);
+    }
+
     public static Set<String> parseStringArray(JsonArray array) {
         Set<String> set = new HashSet<>();
         for (JsonElement element : array) {
@@ -52,4 +102,15 @@ public class DatabaseEntryHelper {
         }
         return array;
     }
+
+    /**
+     * Streaming version of {@link #toJsonArray(Iterable)}
+     */
+    public static <T> void writeArray(JsonWriter out, Iterable<T> set) throws IOException {
+        out.beginArray();
+        for (T item : set) {
+            out.value(item.toString());
+        }
+        out.endArray();
+    }
 }
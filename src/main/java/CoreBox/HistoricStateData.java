@@ -0,0 +1,186 @@
+package CoreBox;
+
+import CoreBox.PomodoroSession.SessionState;
+import ExceptionsBox.BadStateException;
+
+import java.util.Arrays;
+
+import static CoreBox.PomodoroSession.minutesToDisplayString;
+
+/**
+ * Information on previous states and their timings so that information such as total work time can be calculated.
+ * Running totals are kept as items are added so that none of the queries need to walk the items
+ */
+public class HistoricStateData {
+    /**
+     * Number of low bits of a packed item used to store the state's ordinal
+     */
+    private static final int stateBits = 3;
+    private static final int stateMask = (1 << stateBits) - 1;
+    private static final SessionState[] states = SessionState.values();
+
+    static {
+        if (states.length > stateMask + 1) {
+            throw new BadStateException("Too many session states to pack into " + stateBits + " bits");
+        }
+    }
+
+    /**
+     * Each item is packed as (time << {@link #stateBits}) | state ordinal. Data is added to the end (later items are
+     * more recent)
+     */
+    private int[] completedItems = new int[16];
+    private int completedItemsSize = 0;
+    /**
+     * Incremented every time an item is added
+     */
+    private int version = 0;
+
+    /*
+     * Running aggregates
+     */
+    /**
+     * Total minutes spent in each state, indexed by ordinal
+     */
+    private final int[] minutesByState = new int[states.length];
+    /**
+     * A run is a group of WORK items with no other active state between them (e.g. WORK PAUSE WORK is 1 run)
+     */
+    private int workRuns = 0;
+    private int workRunsSinceLongBreak = 0;
+    /**
+     * The state of the most recent active item and the total time of the items in its run (inactive items are
+     * ignored). This is the time already spent in a state that was paused and is to be resumed
+     */
+    private SessionState lastActiveState = null;
+    private int lastActiveRunTime = 0;
+
+    /**
+     * @param packedItems from {@link #getPackedItems()}
+     * @return data with the given items (aggregates are rebuilt from them)
+     */
+    public static HistoricStateData fromPackedItems(int[] packedItems) {
+        HistoricStateData data = new HistoricStateData();
+        for (int item : packedItems) {
+            int stateOrdinal = item & stateMask;
+            if (stateOrdinal >= states.length || item < 0) {
+                throw new BadStateException("Unknown packed completed item: " + item);
+            }
+            data.addCompletedItem(item >>> stateBits, states[stateOrdinal]);
+        }
+        return data;
+    }
+
+    /**
+     * @return a copy of the completed items in their packed form (see {@link #completedItems})
+     */
+    public int[] getPackedItems() {
+        return Arrays.copyOf(completedItems, completedItemsSize);
+    }
+
+    public void addCompletedItem(int time, SessionState state) {
+        if (state == SessionState.NOT_STARTED || state == SessionState.FINISHED) {
+            time = 0;
+        }
+        if (time < 0) {
+            throw new BadStateException("Completed item cannot have a negative time");
+        }
+        if (completedItemsSize == completedItems.length) {
+            completedItems = Arrays.copyOf(completedItems, completedItemsSize * 2);
+        }
+        completedItems[completedItemsSize++] = (time << stateBits) | state.ordinal();
+        version++;
+
+        minutesByState[state.ordinal()] += time;
+        if (!state.isActiveState()) {
+            return;
+        }
+        if (state == SessionState.LONG_BREAK) {
+            workRunsSinceLongBreak = 0;
+        }
+        if (state == lastActiveState) {
+            lastActiveRunTime += time;
+            return;
+        }
+        if (state == SessionState.WORK) {
+            workRuns++;
+            workRunsSinceLongBreak++;
+        }
+        lastActiveState = state;
+        lastActiveRunTime = time;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getCompletedItemsCount() {
+        return completedItemsSize;
+    }
+
+    public int getCompletedItemTime(int index) {
+        checkIndex(index);
+        return completedItems[index] >>> stateBits;
+    }
+
+    public SessionState getCompletedItemState(int index) {
+        checkIndex(index);
+        return states[completedItems[index] & stateMask];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= completedItemsSize) {
+            throw new BadStateException("No completed item at index " + index);
+        }
+    }
+
+    /**
+     * @return total minutes of all completed WORK items
+     */
+    public int getTotalWorkTime() {
+        return minutesByState[SessionState.WORK.ordinal()];
+    }
+
+    /**
+     * Paused sessions will only be counted once, e.g. WORK PAUSE WORK counts as 1
+     *
+     * @param countSinceLongBreak false: count all work session, true: work sessions since last long break
+     * @param currentState if the current work state is WORK and the only data was WORK, PAUSED then the count
+     *         should be 0 as the current work session is not counted and the current state is just a resumed work
+     *         session
+     */
+    public int countWorkSessions(boolean countSinceLongBreak, SessionState currentState) {
+        int count = countSinceLongBreak ? workRunsSinceLongBreak : workRuns;
+        // The last run is still going if the current state is continuing it
+        if (currentState == SessionState.WORK && lastActiveState == SessionState.WORK && count > 0) {
+            count--;
+        }
+        return count;
+    }
+
+    /**
+     * @return a display string of completed work sessions and total study time
+     */
+    public String getCompletedStatsString(int timeInCurrentState, SessionState currentState) {
+        int workTimeElapsed = getTotalWorkTime();
+        if (currentState == SessionState.WORK) {
+            workTimeElapsed += timeInCurrentState;
+        }
+
+        String returnString = "Completed work sessions: " + countWorkSessions(false, currentState);
+        returnString += "\nTotal study time: " + minutesToDisplayString(workTimeElapsed);
+        return returnString;
+    }
+
+    /**
+     * @return the time the next state should be elapsed for (adjusts if for example a work session was paused and is
+     *         to be resumed)
+     */
+    public int getNextStateDurationAdjusted(SessionState nextState, PomodoroSettings settings) {
+        int timeRemaining = settings.getStateDuration(nextState);
+        if (!nextState.isActiveState() || nextState != lastActiveState) {
+            return timeRemaining;
+        }
+        return timeRemaining - lastActiveRunTime;
+    }
+}
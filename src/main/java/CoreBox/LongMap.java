@@ -0,0 +1,228 @@
+package CoreBox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hash map from primitive long keys (Discord snowflakes) to values. Keys are stored in a flat array using open
+ * addressing with linear probing, so there is no boxing and no entry object per mapping. Removal shifts later entries
+ * back rather than leaving tombstones. Iteration order is not defined. Not thread safe
+ */
+public class LongMap<V> {
+    private static final int minCapacity = 4;
+    /*
+     * 0 marks an empty slot so the 0 key is held separately
+     */
+    private long[] keys;
+    private Object[] values;
+    private boolean hasZeroKey = false;
+    private V zeroKeyValue = null;
+    /**
+     * Number of non-zero keys in {@link #keys}
+     */
+    private int slotsUsed = 0;
+
+    public LongMap() {
+        this(minCapacity);
+    }
+
+    /**
+     * @param expectedSize number of mappings that can be held without resizing
+     */
+    public LongMap(int expectedSize) {
+        int capacity = minCapacity;
+        while (capacity * 3 / 4 < expectedSize) {
+            capacity *= 2;
+        }
+        keys = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * Snowflakes share their high (timestamp) bits so everything is mixed into the low bits
+     */
+    private static int hash(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    /**
+     * @return the slot holding the key, or -1 if it's not in the map
+     */
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return slotsUsed + (hasZeroKey ? 1 : 0);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        return findSlot(key) != -1;
+    }
+
+    /**
+     * @return the value mapped to the key, null if there isn't one
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        if (key == 0) {
+            return zeroKeyValue;
+        }
+        int slot = findSlot(key);
+        return slot == -1 ? null : (V) values[slot];
+    }
+
+    /**
+     * @return the previous value mapped to the key, null if there wasn't one
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (key == 0) {
+            V previous = zeroKeyValue;
+            hasZeroKey = true;
+            zeroKeyValue = value;
+            return previous;
+        }
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != 0) {
+            if (keys[slot] == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        slotsUsed++;
+        if (slotsUsed > keys.length * 3 / 4) {
+            resize(keys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * @return the value that was mapped to the key, null if there wasn't one
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        if (key == 0) {
+            V previous = zeroKeyValue;
+            hasZeroKey = false;
+            zeroKeyValue = null;
+            return previous;
+        }
+        int gap = findSlot(key);
+        if (gap == -1) {
+            return null;
+        }
+        V previous = (V) values[gap];
+        slotsUsed--;
+
+        // Shift back any following entries that would no longer be found past the gap
+        int mask = keys.length - 1;
+        int slot = (gap + 1) & mask;
+        while (keys[slot] != 0) {
+            int idealSlot = hash(keys[slot]) & mask;
+            if (((slot - idealSlot) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = keys[slot];
+                values[gap] = values[slot];
+                gap = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+        return previous;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        slotsUsed = 0;
+        hasZeroKey = false;
+        zeroKeyValue = null;
+    }
+
+    /**
+     * The map must not be changed by the action
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<V> action) {
+        if (hasZeroKey) {
+            action.accept(0, zeroKeyValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                action.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of all keys in the map
+     */
+    public long[] keys() {
+        long[] copy = new long[size()];
+        int i = 0;
+        if (hasZeroKey) {
+            copy[i++] = 0;
+        }
+        for (long key : keys) {
+            if (key != 0) {
+                copy[i++] = key;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return a copy of all values in the map
+     */
+    public List<V> values() {
+        List<V> copy = new ArrayList<>(size());
+        forEach((key, value) -> copy.add(value));
+        return copy;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) {
+                continue;
+            }
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+}
@@ -0,0 +1,183 @@
+package CoreBox;
+
+import BotFrameworkBox.BinaryCodec;
+import BotFrameworkBox.BinaryReader;
+import BotFrameworkBox.BinaryWriter;
+import BotFrameworkBox.DatabaseEntryType;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonSerializer;
+
+import java.util.Arrays;
+
+/**
+ * The members of a guild who are banned from posting statuses in pomodoro sessions. Held as a sorted array of member
+ * ids so that checking a member is a binary search and a guild with hundreds of bans is a few kilobytes. Stored in the
+ * database with the guild id as the key. Not thread safe
+ */
+public class PomodoroGuildBans implements DatabaseEntryType<PomodoroGuildBans> {
+    private static final long[] noIds = new long[0];
+    /**
+     * Each id is written as the difference from the one before it
+     */
+    private static final BinaryCodec<PomodoroGuildBans> binaryCodec = new BinaryCodec<>() {
+        private static final int memberIdDeltaField = 1;
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public void write(PomodoroGuildBans value, BinaryWriter out) {
+            long previous = 0;
+            for (long memberId : value.memberIds) {
+                out.writeLong(memberIdDeltaField, memberId - previous);
+                previous = memberId;
+            }
+        }
+
+        @Override
+        public PomodoroGuildBans read(BinaryReader in, int version) {
+            long[] ids = new long[16];
+            int count = 0;
+            long previous = 0;
+            while (in.nextField()) {
+                if (in.getField() != memberIdDeltaField) {
+                    in.skipField();
+                    continue;
+                }
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                }
+                previous += in.readLong();
+                ids[count++] = previous;
+            }
+            PomodoroGuildBans bans = new PomodoroGuildBans();
+            bans.memberIds = sortedDistinct(Arrays.copyOf(ids, count));
+            return bans;
+        }
+    };
+    /**
+     * Sorted, no duplicates
+     */
+    private long[] memberIds = noIds;
+
+    public PomodoroGuildBans() { }
+
+    /**
+     * @return a sorted copy of the ids without duplicates
+     */
+    private static long[] sortedDistinct(long[] ids) {
+        long[] sorted = Arrays.copyOf(ids, ids.length);
+        Arrays.sort(sorted);
+        int length = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[length++] = sorted[i];
+            }
+        }
+        return length == sorted.length ? sorted : Arrays.copyOf(sorted, length);
+    }
+
+    public boolean contains(long memberId) {
+        return Arrays.binarySearch(memberIds, memberId) >= 0;
+    }
+
+    /**
+     * Merges the ids in rather than inserting them one at a time so a large ban is a single pass over the existing bans
+     *
+     * @return number of members that weren't already banned
+     */
+    public int addAll(long[] ids) {
+        long[] toAdd = sortedDistinct(ids);
+        long[] merged = new long[memberIds.length + toAdd.length];
+        int i = 0;
+        int j = 0;
+        int length = 0;
+        while (i < memberIds.length && j < toAdd.length) {
+            if (memberIds[i] < toAdd[j]) {
+                merged[length++] = memberIds[i++];
+            }
+            else if (memberIds[i] > toAdd[j]) {
+                merged[length++] = toAdd[j++];
+            }
+            else {
+                merged[length++] = memberIds[i++];
+                j++;
+            }
+        }
+        while (i < memberIds.length) {
+            merged[length++] = memberIds[i++];
+        }
+        while (j < toAdd.length) {
+            merged[length++] = toAdd[j++];
+        }
+        int added = length - memberIds.length;
+        memberIds = length == merged.length ? merged : Arrays.copyOf(merged, length);
+        return added;
+    }
+
+    /**
+     * @return number of members that were banned
+     */
+    public int removeAll(long[] ids) {
+        long[] toRemove = sortedDistinct(ids);
+        long[] kept = new long[memberIds.length];
+        int length = 0;
+        for (long memberId : memberIds) {
+            if (Arrays.binarySearch(toRemove, memberId) < 0) {
+                kept[length++] = memberId;
+            }
+        }
+        int removed = memberIds.length - length;
+        if (removed > 0) {
+            memberIds = length == 0 ? noIds : Arrays.copyOf(kept, length);
+        }
+        return removed;
+    }
+
+    public int size() {
+        return memberIds.length;
+    }
+
+    public boolean isEmpty() {
+        return memberIds.length == 0;
+    }
+
+    @Override
+    public Class<PomodoroGuildBans> getReturnClass() {
+        return PomodoroGuildBans.class;
+    }
+
+    @Override
+    public JsonDeserializer<PomodoroGuildBans> getDeserializer() {
+        return (json, typeOfT, context) -> {
+            JsonArray array = json.getAsJsonArray();
+            long[] ids = new long[array.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = array.get(i).getAsLong();
+            }
+            PomodoroGuildBans bans = new PomodoroGuildBans();
+            // Sorted when saved but don't rely on it for the binary search
+            bans.memberIds = sortedDistinct(ids);
+            return bans;
+        };
+    }
+
+    @Override
+    public BinaryCodec<PomodoroGuildBans> getBinaryCodec() {
+        return binaryCodec;
+    }
+
+    @Override
+    public JsonSerializer<PomodoroGuildBans> getSerializer() {
+        return (src, typeOfSrc, context) -> {
+            JsonArray array = new JsonArray();
+            for (long memberId : src.memberIds) {
+                array.add(memberId);
+            }
+            return array;
+        };
+    }
+}
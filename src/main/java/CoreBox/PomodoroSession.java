@@ -1,27 +1,33 @@
 package CoreBox;
 
 import BotFrameworkBox.Emoji;
+import CoreBox.PomodoroStateMachine.Effect;
 import ExceptionsBox.BadStateException;
 import ExceptionsBox.BadUserInputException;
 import TatsuyaCommands.PomodoroCommand;
 import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.*;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
+import net.dv8tion.jda.api.requests.ErrorResponse;
 
 import java.awt.*;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 import static BotFrameworkBox.Bot.commandPrefix;
+import static CoreBox.PomodoroStateMachine.minutesBetweenTwoTimes;
 
 /**
- * Information about an active pomodoro session
+ * Information about an active pomodoro session. The timeline itself is held in a {@link PomodoroStateMachine}, this
+ * carries out the resulting {@link Effect}s on Discord.
+ * <p>
+ * A session can be mirrored into other channels. Mirrors share the host's state machine, settings, and the common
+ * parts of the embed. Each mirror has its own participants and messages. Actions on a mirror are carried out by the
+ * host which then carries out the effects on every view
  */
 public class PomodoroSession {
     /*
@@ -31,43 +37,190 @@ public class PomodoroSession {
      * Maps participants who wish to be pinged to a message of what they're doing
      */
     private final Participants participants = new Participants();
-    private final PomodoroSettings settings = new PomodoroSettings();
 
     /*
      * Fixed Info
      */
-    private final Member author;
-    private final MessageChannel channel;
-    private final HistoricStateData historicStateData = new HistoricStateData();
-    private Instant timeSessionStarted = null;
+    private final String authorName;
+    /**
+     * Only ids are kept so that JDA's cache objects aren't held onto (they're replaced on reconnects). The channel is
+     * looked up in the cache each time it's needed
+     */
+    private final JDA jda;
+    private final long channelId;
+    private final long guildId;
+    private final PomodoroStateMachine stateMachine;
+    /**
+     * The session whose timeline this view shows (itself if this isn't a mirror). Also used as the lock for the group
+     */
+    private final PomodoroSession host;
+    /**
+     * Only used on the host: itself followed by its mirrors
+     */
+    private final List<PomodoroSession> views = new ArrayList<>();
+    /**
+     * The message containing the current timer info, 0 if there is no main message
+     */
+    private long mainMessageId = 0;
+    /**
+     * The last ping message (kept so that it can be deleted next time a ping message is sent), 0 if there isn't one
+     */
+    private long pingMessageId = 0;
+    /**
+     * The embed currently displayed on the main message (used to skip edits which wouldn't change anything)
+     */
+    private MessageEmbed mainMessageEmbed = null;
+    /**
+     * Main and ping messages which have been replaced but not yet deleted
+     */
+    private final List<Long> oldMessageIds = new ArrayList<>();
+    /**
+     * Effects from timer updates which are waiting on the {@link TransitionPacer} (never includes pings)
+     */
+    private int pendingEffects = 0;
+    private Instant pendingEffectsTime = null;
+    /**
+     * When a user last did something with this session (used to find idle sessions to move out of memory)
+     */
+    private volatile Instant lastTouched;
+
     /*
-     * Current state information
+     * Render cache (rebuilt only when the versions of the things they were rendered from change)
      */
-    private Instant timeCurrentStateStarted = null;
-    private SessionState sessionState = SessionState.NOT_STARTED;
+    private MessageEmbed cachedEmbed = null;
+    private CommonRender cachedEmbedCommon = null;
+    private int cachedParticipantsVersion = -1;
+    private String cachedParticipantList = null;
+    private String cachedWorkingOnList = null;
+    /*
+     * Render cache for the parts of the embed shared by all views (only used on the host)
+     */
+    private final RenderKey cachedCommonKey = new RenderKey();
+    private CommonRender cachedCommon = null;
+    private int cachedSettingsVersion = -1;
+    private String cachedSettingsString = null;
+    private final RenderKey cachedStatsKey = new RenderKey();
+    private String cachedStatsString = null;
     /**
-     * If the current state is 'paused', resume to this state
+     * Number of times {@link #buildEmbed(Instant)} was called, how many of those had to build a new embed, and how
+     * many times the common parts were rendered
+     */
+    private long embedRequests = 0;
+    private long embedBuilds = 0;
+    private long commonBuilds = 0;
+
+    /*
+     * What was last written to a snapshot
      */
-    private SessionState resumeState = null;
-    private Instant timeCurrentStateEnds = null;
+    private int savedMachineVersion = -1;
+    private int savedParticipantsVersion = -1;
+    private int savedSettingsVersion = -1;
+    private long savedMainMessageId = -1;
+    private long savedPingMessageId = -1;
     /**
-     * The message containing the current timer info
+     * The last snapshot taken (or restored from), what's in the database
      */
-    private Message mainMessage = null;
+    private PomodoroSessionSnapshot savedSnapshot = null;
+
+    public PomodoroSession(Member author, TextChannel channel, String args, Instant currentTime) {
+        this(author, channel, PomodoroSettings.getDefault(), args, currentTime);
+    }
+
     /**
-     * The last ping message (kept so that it can be deleted next time a ping message is sent)
+     * @param defaults the settings that args are applied on top of (e.g. the guild's defaults)
      */
-    private Message pingMessage = null;
+    public PomodoroSession(Member author, TextChannel channel, PomodoroSettings defaults, String args,
+            Instant currentTime
+    ) {
+        this.authorName = author.getEffectiveName();
+        this.jda = channel.getJDA();
+        this.channelId = channel.getIdLong();
+        this.guildId = channel.getGuild().getIdLong();
+        this.stateMachine = new PomodoroStateMachine(defaults.withArgs(args));
+        this.lastTouched = currentTime;
+        this.host = this;
+        views.add(this);
+        participants.addParticipant(author, true);
+        executeEffects(Effect.POST_MAIN.mask | Effect.REFRESH_REACTIONS.mask, currentTime);
+    }
 
-    public PomodoroSession(Member author, MessageChannel channel, String args, Instant currentTime) {
-        this.author = author;
-        this.channel = channel;
-        settings.setFromArgs(args);
+    /**
+     * Mirror host's session into another channel
+     *
+     * @param host the session to mirror (if it's a mirror itself, its host will be used)
+     */
+    public PomodoroSession(PomodoroSession host, Member author, TextChannel channel, Instant currentTime) {
+        this.host = host.host;
+        this.authorName = this.host.authorName;
+        this.jda = channel.getJDA();
+        this.channelId = channel.getIdLong();
+        this.guildId = channel.getGuild().getIdLong();
+        this.stateMachine = this.host.stateMachine;
+        this.lastTouched = currentTime;
         participants.addParticipant(author, true);
-        channel.sendMessage(buildEmbed(currentTime)).queue(createdMessage -> {
-            mainMessage = createdMessage;
-            updateMessageEmojis();
-        });
+        synchronized (this.host) {
+            this.host.views.add(this);
+            executeViewEffects(Effect.POST_MAIN.mask | Effect.REFRESH_REACTIONS.mask, currentTime);
+        }
+    }
+
+    /**
+     * Restore a session from a snapshot. Nothing is sent to Discord: the existing main message is edited by its id
+     * when it's next needed
+     */
+    public PomodoroSession(PomodoroSessionSnapshot snapshot, TextChannel channel) {
+        this(snapshot, channel, null);
+    }
+
+    /**
+     * Restore a mirror from a snapshot
+     *
+     * @param host the restored host (if null the mirror is restored as an independent session)
+     */
+    public PomodoroSession(PomodoroSessionSnapshot snapshot, TextChannel channel, PomodoroSession host) {
+        this.authorName = snapshot.authorName;
+        this.jda = channel.getJDA();
+        this.channelId = snapshot.channelId;
+        this.guildId = snapshot.guildId;
+        this.lastTouched = Instant.now();
+        if (host != null) {
+            this.host = host.host;
+            this.stateMachine = this.host.stateMachine;
+            synchronized (this.host) {
+                this.host.views.add(this);
+            }
+        }
+        else {
+            this.host = this;
+            views.add(this);
+            this.stateMachine = new PomodoroStateMachine(snapshot.settings,
+                    HistoricStateData.fromPackedItems(snapshot.completedItems), snapshot.sessionState,
+                    snapshot.resumeState, snapshot.timeSessionStarted, snapshot.timeCurrentStateStarted,
+                    snapshot.timeCurrentStateEnds
+            );
+        }
+        this.mainMessageId = snapshot.mainMessageId;
+        this.pingMessageId = snapshot.pingMessageId;
+
+        Guild guild = channel.getGuild();
+        for (int i = 0; i < snapshot.participantIds.length; i++) {
+            boolean ping = snapshot.participantPings[i];
+            String workingOn = snapshot.participantWorkingOn[i];
+            if (snapshot.participantNames[i] != null) {
+                participants.addParticipant(snapshot.participantIds[i], snapshot.participantNames[i], ping,
+                        workingOn
+                );
+                continue;
+            }
+            // Snapshots saved before names were stored
+            guild.retrieveMemberById(snapshot.participantIds[i]).queue(member -> {
+                synchronized (this.host) {
+                    participants.addParticipant(member.getIdLong(), member.getEffectiveName(), ping, workingOn);
+                }
+            });
+        }
+        savedSnapshot = snapshot;
+        markSaved(participants.getVersion());
     }
 
     /**
@@ -99,88 +252,291 @@ public class PomodoroSession {
         return finalString;
     }
 
-    public void setMessage(Message message) {
-        this.mainMessage = message;
-    }
-
     public SessionState getSessionState() {
-        return sessionState;
+        return stateMachine.getSessionState();
     }
 
-    public String getMessageId() {
-        return mainMessage.getId();
+    public long getMessageIdLong() {
+        return mainMessageId;
     }
 
+    /**
+     * @return the channel id as it's used for database keys
+     */
     public String getChannelId() {
-        return channel.getId();
+        return Long.toUnsignedString(channelId);
+    }
+
+    public long getChannelIdLong() {
+        return channelId;
+    }
+
+    /**
+     * @return the channel from JDA's cache, null if it's not currently cached (e.g. it was deleted or the bot has lost
+     *         access)
+     */
+    public TextChannel getChannel() {
+        return jda.getTextChannelById(channelId);
     }
 
     public PomodoroSettings getSettings() {
-        return settings;
+        return stateMachine.getSettings();
+    }
+
+    /**
+     * Action triggered by user
+     *
+     * @param args {@link PomodoroCommand#getArgumentFormat()}
+     * @throws BadUserInputException if args is invalid (the settings are left unchanged)
+     */
+    public void userUpdateSettings(String args) {
+        synchronized (host) {
+            stateMachine.setSettings(getSettings().withArgs(args));
+        }
     }
 
     public Participants getParticipants() {
         return participants;
     }
 
+    public PomodoroStateMachine getStateMachine() {
+        return stateMachine;
+    }
+
+    public long getGuildId() {
+        return guildId;
+    }
+
+    public boolean isMirror() {
+        return host != this;
+    }
+
+    public PomodoroSession getHost() {
+        return host;
+    }
+
+    /**
+     * @return the host followed by its mirrors
+     */
+    public List<PomodoroSession> getViews() {
+        synchronized (host) {
+            return new ArrayList<>(host.views);
+        }
+    }
+
+    /**
+     * Record that a user has done something with the session
+     */
+    public void touch(Instant currentTime) {
+        lastTouched = currentTime;
+    }
+
+    public Instant getLastTouched() {
+        return lastTouched;
+    }
+
+    /**
+     * Stop this channel's view of a mirrored session (the host and other mirrors carry on)
+     *
+     * @throws BadStateException if this is the host
+     */
+    public void unlink() {
+        if (!isMirror()) {
+            throw new BadStateException("Only a mirror can be unlinked");
+        }
+        synchronized (host) {
+            host.views.remove(this);
+        }
+    }
+
+    /**
+     * @return true if something that's stored in a snapshot has changed since the last {@link #takeSnapshot()}
+     */
+    public boolean hasUnsavedChanges() {
+        synchronized (host) {
+            return savedMachineVersion != stateMachine.getVersion() || savedParticipantsVersion != participants
+                    .getVersion() || savedSettingsVersion != stateMachine.getSettingsVersion()
+                    || savedMainMessageId != mainMessageId || savedPingMessageId != pingMessageId;
+        }
+    }
+
+    /**
+     * @return everything needed to restore this session
+     */
+    public PomodoroSessionSnapshot takeSnapshot() {
+        synchronized (host) {
+            return createSnapshot();
+        }
+    }
+
+    private PomodoroSessionSnapshot createSnapshot() {
+        PomodoroSessionSnapshot snapshot = new PomodoroSessionSnapshot();
+        snapshot.guildId = guildId;
+        snapshot.channelId = channelId;
+        snapshot.hostChannelId = isMirror() ? host.channelId : 0;
+        snapshot.mainMessageId = mainMessageId;
+        snapshot.pingMessageId = pingMessageId;
+        snapshot.authorName = authorName;
+        snapshot.settings = getSettings();
+        snapshot.sessionState = stateMachine.getSessionState();
+        snapshot.resumeState = stateMachine.getResumeState();
+        snapshot.timeSessionStarted = stateMachine.getTimeSessionStarted();
+        snapshot.timeCurrentStateStarted = stateMachine.getTimeCurrentStateStarted();
+        snapshot.timeCurrentStateEnds = stateMachine.getTimeCurrentStateEnds();
+        snapshot.completedItems = stateMachine.getHistoricStateData().getPackedItems();
+
+        // Members can join while this is running as they don't need the host
+        int participantsVersion = participants.snapshotInto(snapshot);
+        savedSnapshot = snapshot;
+        markSaved(participantsVersion);
+        return snapshot;
+    }
+
+    /**
+     * @return the last snapshot taken (or restored from), null if there hasn't been one
+     */
+    public PomodoroSessionSnapshot getSavedSnapshot() {
+        synchronized (host) {
+            return savedSnapshot;
+        }
+    }
+
     /**
-     * @return the embed that will act as the {@link #mainMessage}
+     * @param participantsVersion the participants' version when they were saved
+     */
+    private void markSaved(int participantsVersion) {
+        savedMachineVersion = stateMachine.getVersion();
+        savedParticipantsVersion = participantsVersion;
+        savedSettingsVersion = stateMachine.getSettingsVersion();
+        savedMainMessageId = mainMessageId;
+        savedPingMessageId = pingMessageId;
+    }
+
+    /**
+     * @return how many calls to {@link #buildEmbed(Instant)} could reuse the previous embed and how many had to
+     *         build a new one, and how many times the host rendered the parts common to all views: {requests, builds,
+     *         common builds}
+     */
+    public long[] getEmbedCacheStats() {
+        return new long[]{embedRequests, embedBuilds, host.commonBuilds};
+    }
+
+    /**
+     * Embeds (and the strings that make up their fields) are cached and only rebuilt when something that is displayed
+     * changes. This means ticks within the same displayed minute reuse the same embed and a tick which only changes the
+     * countdown will only rebuild the description and stats. The parts which aren't about participants are rendered
+     * once by the host and shared by all of its views
+     *
+     * @return the embed that will act as the main message
      */
     public MessageEmbed buildEmbed(Instant timeNow) {
-        int timeInCurrentState = 0;
-        if (timeCurrentStateStarted != null) {
-            timeInCurrentState = minutesBetweenTwoTimes(timeCurrentStateStarted, timeNow);
+        embedRequests++;
+        CommonRender common = host.getCommonRender(timeNow);
+        boolean participantsChanged = cachedParticipantsVersion != participants.getVersion();
+        if (cachedEmbed != null && cachedEmbedCommon == common && !participantsChanged) {
+            return cachedEmbed;
         }
+        embedBuilds++;
+        if (participantsChanged) {
+            cachedParticipantList = participants.getParticipantList();
+            cachedWorkingOnList = participants.getWorkingOnList();
+            cachedParticipantsVersion = participants.getVersion();
+        }
+
         EmbedBuilder embedBuilder = new EmbedBuilder();
-        embedBuilder.setTitle(String.format("Pomodoro Timer - %s", sessionState.stateTitle));
-        embedBuilder.setDescription(getCurrentStateString(timeNow));
-        embedBuilder.addField("Ping party" + (!settings.getBooleanSetting(BooleanSetting.PINGS) ? " (off)" : ""),
-                participants.getParticipantList(), true
-        );
-        embedBuilder.addField("People are working on", participants.getWorkingOnList(), true);
+        embedBuilder.setTitle(common.title);
+        embedBuilder.setDescription(common.description);
+        embedBuilder.addField(common.participantsTitle, cachedParticipantList, true);
+        embedBuilder.addField("People are working on", cachedWorkingOnList, true);
         // Blank field to fill last column (inline fields are in a 3-wide grid)
         embedBuilder.addField("", "", true);
-        embedBuilder.addField("Completed Stats", getSessionStartTimeString() + "\n" + historicStateData
-                .getCompletedStatsString(timeInCurrentState, sessionState), true);
-        embedBuilder.addField("Session Settings", getSessionSettingsString(true), true);
+        embedBuilder.addField("Completed Stats", common.stats, true);
+        embedBuilder.addField("Session Settings", common.settings, true);
         embedBuilder.setFooter(String.format("%shelp", commandPrefix));
-        if (sessionState.defaultColour != null) {
-            embedBuilder.setColor(sessionState.defaultColour);
+        if (common.colour != null) {
+            embedBuilder.setColor(common.colour);
         }
-        if (sessionState.defaultImage != null && settings.getBooleanSetting(BooleanSetting.IMAGES)) {
-            embedBuilder.setImage(settings.getStateImage(sessionState));
+        if (common.image != null) {
+            embedBuilder.setImage(common.image);
         }
-        return embedBuilder.build();
+        cachedEmbed = embedBuilder.build();
+        cachedEmbedCommon = common;
+        return cachedEmbed;
     }
 
-    private String getSessionStartTimeString() {
-        String string = "Started: ";
-        if (timeSessionStarted == null) {
-            return string + "--:--";
+    /**
+     * Host only
+     *
+     * @return the parts of the embed which are the same for every view (the same instance is returned until something
+     *         in it changes)
+     */
+    private CommonRender getCommonRender(Instant timeNow) {
+        SessionState sessionState = stateMachine.getSessionState();
+        HistoricStateData historicStateData = stateMachine.getHistoricStateData();
+        int timeInCurrentState = 0;
+        if (stateMachine.getTimeCurrentStateStarted() != null) {
+            timeInCurrentState = minutesBetweenTwoTimes(stateMachine.getTimeCurrentStateStarted(), timeNow);
         }
-        return string + ZonedDateTime.ofInstant(timeSessionStarted, ZoneId.systemDefault())
-                .format(settings.getDateTimeFormatter());
-    }
+        int timeUntilStateEnds = -1;
+        if (stateMachine.getTimeCurrentStateEnds() != null && sessionState.isActiveState) {
+            timeUntilStateEnds = minutesBetweenTwoTimes(stateMachine.getTimeCurrentStateEnds(), timeNow);
+        }
+        if (cachedCommon != null && cachedCommonKey
+                .matches(timeInCurrentState, timeUntilStateEnds, 0, stateMachine.getSettingsVersion(),
+                        historicStateData.getVersion()
+                )) {
+            return cachedCommon;
+        }
+        commonBuilds++;
 
-    private int minutesBetweenTwoTimes(Instant timeA, Instant timeB) {
-        if (timeA == null || timeB == null) {
-            throw new BadStateException("Instant cannot be null");
+        if (cachedSettingsVersion != stateMachine.getSettingsVersion()) {
+            cachedSettingsString = getSessionSettingsString(true);
+            cachedSettingsVersion = stateMachine.getSettingsVersion();
+        }
+        // Work time in the current state is only displayed while working
+        int statsTimeInCurrentState = sessionState == SessionState.WORK ? timeInCurrentState : 0;
+        if (cachedStatsString == null || !cachedStatsKey.matches(statsTimeInCurrentState, 0, 0,
+                stateMachine.getSettingsVersion(), historicStateData.getVersion())) {
+            cachedStatsString = getSessionStartTimeString() + "\n" + historicStateData
+                    .getCompletedStatsString(timeInCurrentState, sessionState);
+            cachedStatsKey.set(statsTimeInCurrentState, 0, 0, stateMachine.getSettingsVersion(),
+                    historicStateData.getVersion());
         }
-        long milliDifference = Math.abs(timeA.toEpochMilli() - timeB.toEpochMilli());
-        long conversion = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
-        double diff = Math.ceil((double) milliDifference / conversion);
-        if (diff > Integer.MAX_VALUE) {
-            throw new BadStateException("Time difference too large");
+
+        CommonRender common = new CommonRender();
+        common.title = String.format("Pomodoro Timer - %s", sessionState.stateTitle);
+        common.description = getCurrentStateString(timeNow);
+        common.participantsTitle = "Ping party"
+                + (!getSettings().getBooleanSetting(BooleanSetting.PINGS) ? " (off)" : "");
+        common.stats = cachedStatsString;
+        common.settings = cachedSettingsString;
+        common.colour = sessionState.defaultColour;
+        if (sessionState.defaultImage != null && getSettings().getBooleanSetting(BooleanSetting.IMAGES)) {
+            common.image = getSettings().getStateImage(sessionState);
+        }
+        cachedCommon = common;
+        cachedCommonKey.set(timeInCurrentState, timeUntilStateEnds, 0, stateMachine.getSettingsVersion(),
+                historicStateData.getVersion()
+        );
+        return cachedCommon;
+    }
+
+    private String getSessionStartTimeString() {
+        String string = "Started: ";
+        if (stateMachine.getTimeSessionStarted() == null) {
+            return string + "--:--";
         }
-        return (int) diff;
+        return string + ZonedDateTime.ofInstant(stateMachine.getTimeSessionStarted(), ZoneId.systemDefault())
+                .format(getSettings().getDateTimeFormatter());
     }
 
     /**
      * @return information about the current session state and, if appropriate, when the next state will begin
      */
     private String getCurrentStateString(Instant timeNow) {
+        SessionState sessionState = stateMachine.getSessionState();
         if (sessionState == SessionState.PAUSED) {
-            return "Session is paused. Resume to continue " + resumeState.stateDisplayTitle;
+            return "Session is paused. Resume to continue " + stateMachine.getResumeState().stateDisplayTitle;
         }
         if (sessionState == SessionState.FINISHED) {
             return "Session completed";
@@ -192,15 +548,16 @@ public class PomodoroSession {
             return "Session is currently suspended";
         }
 
-        SessionState nextState = getNextState();
-        Integer workSessionsBeforeLongBreak = settings.getWorkSessionsBeforeLongBreak();
-        String returnString = String
-                .format("%s until %s", minutesToDisplayString(minutesBetweenTwoTimes(timeCurrentStateEnds, timeNow)),
-                        nextState.stateDisplayTitle
-                );
+        SessionState nextState = stateMachine.getNextState();
+        Integer workSessionsBeforeLongBreak = getSettings().getWorkSessionsBeforeLongBreak();
+        String returnString = String.format("%s until %s",
+                minutesToDisplayString(minutesBetweenTwoTimes(stateMachine.getTimeCurrentStateEnds(), timeNow)),
+                nextState.stateDisplayTitle
+        );
         if (workSessionsBeforeLongBreak != null && sessionState != SessionState.LONG_BREAK
                 && nextState != SessionState.LONG_BREAK) {
-            int untilNextBreak = workSessionsBeforeLongBreak - historicStateData.countWorkSessions(true, sessionState);
+            int untilNextBreak = workSessionsBeforeLongBreak
+                    - stateMachine.getHistoricStateData().countWorkSessions(true, sessionState);
             if (sessionState == SessionState.WORK) {
                 untilNextBreak--;
             }
@@ -226,14 +583,14 @@ public class PomodoroSession {
          * Timings
          */
         sb.append(String.format("Work: %s, Break: %s",
-                minutesToDisplayString(settings.getStateDuration(SessionState.WORK)),
-                minutesToDisplayString(settings.getStateDuration(SessionState.BREAK))
+                minutesToDisplayString(getSettings().getStateDuration(SessionState.WORK)),
+                minutesToDisplayString(getSettings().getStateDuration(SessionState.BREAK))
         ));
-        Integer workSessionsBeforeLongBreak = settings.getWorkSessionsBeforeLongBreak();
+        Integer workSessionsBeforeLongBreak = getSettings().getWorkSessionsBeforeLongBreak();
         if (workSessionsBeforeLongBreak != null) {
             sb.append(
                     String.format("\nWork sessions before long break: %d, Long break: %s", workSessionsBeforeLongBreak,
-                            minutesToDisplayString(settings.getStateDuration(SessionState.LONG_BREAK))
+                            minutesToDisplayString(getSettings().getStateDuration(SessionState.LONG_BREAK))
                     ));
         }
         else {
@@ -243,7 +600,7 @@ public class PomodoroSession {
         /*
          * Author
          */
-        sb.append("\nSession created by: ").append(author.getEffectiveName());
+        sb.append("\nSession created by: ").append(authorName);
 
         if (!shortVersion) {
             /*
@@ -253,7 +610,7 @@ public class PomodoroSession {
             boolean firstSetting = true;
             for (BooleanSetting setting : BooleanSetting.values()) {
                 String formatting = "";
-                if (!settings.getBooleanSetting(setting)) {
+                if (!getSettings().getBooleanSetting(setting)) {
                     formatting = "~~";
                 }
                 if (!firstSetting) {
@@ -269,251 +626,241 @@ public class PomodoroSession {
     }
 
     /**
-     * @return work, break, or long break
-     */
-    private SessionState getNextState() {
-        if (sessionState != SessionState.WORK) {
-            return SessionState.WORK;
-        }
-        Integer workSessionsBeforeLongBreak = settings.getWorkSessionsBeforeLongBreak();
-        if (workSessionsBeforeLongBreak != null
-                && historicStateData.countWorkSessions(true, sessionState) + 1 >= workSessionsBeforeLongBreak) {
-            return SessionState.LONG_BREAK;
-        }
-        return SessionState.BREAK;
-    }
-
-    /**
-     * Refreshes the {@link #mainMessage}, moving to the next state if the appropriate time has elapsed
+     * Refreshes the main message, moving to the next state if the appropriate time has elapsed
      *
      * @param forceNextState forcefully move to the next state whether the appropriate time has elapsed or not
      * @throws BadUserInputException if session is suspended and forceNextState is true
      */
     public void update(Instant currentTime, boolean forceNextState) {
-        if (forceNextState || (timeCurrentStateEnds != null && timeCurrentStateEnds.isBefore(currentTime))) {
-            if (forceNextState && !sessionState.isActiveState) {
-                throw new BadUserInputException("Session is currently suspended, try starting it first");
-            }
-            SessionState nextState;
-            if (!sessionState.isActiveState) {
-                // Time out
-                nextState = SessionState.FINISHED;
+        synchronized (host) {
+            if (forceNextState) {
+                executeEffects(stateMachine.skip(currentTime), currentTime);
             }
             else {
-                nextState = getNextState();
-            }
-            boolean forceSendPings = false;
-            if (!settings.getBooleanSetting(BooleanSetting.AUTO) && !forceNextState) {
-                resumeState = nextState;
-                nextState = SessionState.PAUSED;
-                forceSendPings = true;
+                executeEffects(stateMachine.tick(currentTime), currentTime);
             }
-            update(nextState, currentTime, forceSendPings);
         }
-        else if (mainMessage != null) {
-            mainMessage.editMessage(buildEmbed(currentTime)).queue();
+    }
+
+    /**
+     * Timer update: as {@link #update(Instant, boolean)} but only pings are sent straight away, everything else is
+     * left to the pacer. If there is already work waiting, the new work is merged into it. Mirrored sessions are
+     * scheduled once for all their views
+     */
+    public void update(Instant currentTime, TransitionPacer pacer) {
+        synchronized (host) {
+            int effects = stateMachine.tick(currentTime);
+            if (Effect.PING.isIn(effects)) {
+                for (PomodoroSession view : host.views) {
+                    view.executeViewEffects(Effect.PING.mask, currentTime);
+                }
+                effects &= ~Effect.PING.mask;
+            }
+            boolean alreadyScheduled = host.pendingEffects != 0;
+            host.pendingEffects |= effects;
+            host.pendingEffectsTime = currentTime;
+            if (!alreadyScheduled && host.pendingEffects != 0) {
+                pacer.schedule(host);
+            }
         }
     }
 
     /**
-     * @see #update(SessionState, Instant, boolean)
+     * Carry out work left by {@link #update(Instant, TransitionPacer)} (does nothing if it has already been done)
      */
-    private void update(SessionState nextState, Instant currentTime) {
-        update(nextState, currentTime, true);
+    public void runPendingEffects() {
+        synchronized (host) {
+            if (host.pendingEffects != 0) {
+                executeEffects(0, host.pendingEffectsTime);
+            }
+        }
     }
 
     /**
-     * Update the current state, update the message, ping if moving to an active state
+     * Carries out the Discord side of the given effects on every view of the session. Effects from several actions can
+     * be combined and will be coalesced into the fewest calls (e.g. one post of the latest embed rather than an edit
+     * then a post)
+     *
+     * Any work still waiting on the pacer is carried out first so that a session's work always happens in order
      *
-     * @param forceSendPings ping even if not moving to an active state (mostly important when auto is off so
-     *         after a work session, the next state will be paused until someone starts the break)
+     * @param effects bitmask of {@link Effect}s
      */
-    private void update(SessionState nextState, Instant currentTime, boolean forceSendPings) {
-        /*
-         * Update times
-         */
-        if (timeCurrentStateStarted != null) {
-            historicStateData
-                    .addCompletedItem(minutesBetweenTwoTimes(timeCurrentStateStarted, currentTime), sessionState);
+    public void executeEffects(int effects, Instant currentTime) {
+        synchronized (host) {
+            effects |= host.pendingEffects;
+            host.pendingEffects = 0;
+            for (PomodoroSession view : host.views) {
+                view.executeViewEffects(effects, currentTime);
+            }
         }
-        timeCurrentStateEnds = currentTime
-                .plus(historicStateData.getNextStateDurationAdjusted(nextState), ChronoUnit.MINUTES);
-        timeCurrentStateStarted = currentTime;
+    }
 
-        /*
-         * Update states
-         */
-        if (sessionState.isActiveState) {
-            resumeState = sessionState;
+    /**
+     * Carries out the effects on this view's channel only. If the channel isn't in JDA's cache the effects are dropped,
+     * the next one will carry on from the current state
+     */
+    private void executeViewEffects(int effects, Instant currentTime) {
+        TextChannel channel = getChannel();
+        if (channel == null) {
+            return;
         }
-        sessionState = nextState;
-
-        /*
-         * Update messages and send pings
-         */
-        if (sessionState.isActiveState || forceSendPings) {
-            /*
-             * Build messages
-             */
-            StringBuilder pingString = new StringBuilder(":clap: *Bangs Pots* :clap:");
-            if (settings.getBooleanSetting(BooleanSetting.PINGS)) {
-                String mentionString = participants.getMentionList();
-                //noinspection ConstantConditions
-                if (mentionString != null && !mentionString.isBlank()) {
-                    pingString.append("\n");
-                    pingString.append(mentionString);
-                }
+        if (Effect.PING.isIn(effects)) {
+            sendPing(channel);
+        }
+        if (Effect.POST_MAIN.isIn(effects)) {
+            if (mainMessageId != 0) {
+                oldMessageIds.add(mainMessageId);
             }
-            pingString.append(String.format("\nIt's %s time!", sessionState.stateDisplayTitle));
-
-            /*
-             * Send messages
-             */
-            Message oldPingMessage = pingMessage;
-            channel.sendMessage(pingString.toString()).queue(createdMessage -> pingMessage = createdMessage);
-            Message oldMainMessage = mainMessage;
-            channel.sendMessage(buildEmbed(currentTime)).queue(createdMessage -> {
-                mainMessage = createdMessage;
-                updateMessageEmojis();
+            MessageEmbed embed = buildEmbed(currentTime);
+            boolean refreshReactions = Effect.REFRESH_REACTIONS.isIn(effects);
+            channel.sendMessage(embed).queue(createdMessage -> {
+                synchronized (host) {
+                    mainMessageId = createdMessage.getIdLong();
+                    mainMessageEmbed = embed;
+                    if (refreshReactions) {
+                        updateMessageEmojis(channel, mainMessageId);
+                    }
+                }
             });
+        }
+        else if (Effect.EDIT_MAIN.isIn(effects) && mainMessageId != 0) {
+            MessageEmbed embed = buildEmbed(currentTime);
+            boolean refreshReactions = Effect.REFRESH_REACTIONS.isIn(effects);
+            if (embed != mainMessageEmbed) {
+                mainMessageEmbed = embed;
+                editMainMessage(channel, embed, refreshReactions);
+            }
+            else if (refreshReactions) {
+                updateMessageEmojis(channel, mainMessageId);
+            }
+        }
+        if (Effect.DELETE_OLD.isIn(effects)) {
+            for (long messageId : oldMessageIds) {
+                channel.deleteMessageById(messageId).queue();
+            }
+        }
+        if (Effect.DELETE_OLD.isIn(effects) || Effect.POST_MAIN.isIn(effects)) {
+            oldMessageIds.clear();
+        }
+    }
 
-            /*
-             * Clean up
-             */
-            if (settings.getBooleanSetting(BooleanSetting.DELETE)) {
-                if (oldMainMessage != null) {
-                    oldMainMessage.delete().queue();
+    /**
+     * Edits the main message by its id. If it no longer exists a new main message is posted instead, if the edit fails
+     * for any other reason the message is kept and the edit is tried again on the next update
+     */
+    private void editMainMessage(TextChannel channel, MessageEmbed embed, boolean refreshReactions) {
+        long messageId = mainMessageId;
+        channel.editMessageById(messageId, embed).queue(edited -> {
+            if (refreshReactions) {
+                updateMessageEmojis(channel, messageId);
+            }
+        }, failure -> {
+            synchronized (host) {
+                if (mainMessageId != messageId) {
+                    return;
                 }
-                if (oldPingMessage != null) {
-                    oldPingMessage.delete().queue();
+                mainMessageEmbed = null;
+                if (failure instanceof ErrorResponseException
+                        && ((ErrorResponseException) failure).getErrorResponse() == ErrorResponse.UNKNOWN_MESSAGE) {
+                    mainMessageId = 0;
+                    executeViewEffects(Effect.POST_MAIN.mask | Effect.REFRESH_REACTIONS.mask, Instant.now());
                 }
             }
+        });
+    }
+
+    private void sendPing(TextChannel channel) {
+        StringBuilder pingString = new StringBuilder(":clap: *Bangs Pots* :clap:");
+        if (getSettings().getBooleanSetting(BooleanSetting.PINGS)) {
+            String mentionString = participants.getMentionList();
+            //noinspection ConstantConditions
+            if (mentionString != null && !mentionString.isBlank()) {
+                pingString.append("\n");
+                pingString.append(mentionString);
+            }
         }
-        else if (mainMessage != null) {
-            mainMessage.editMessage(buildEmbed(currentTime)).queue(message -> updateMessageEmojis());
+        pingString.append(String.format("\nIt's %s time!", stateMachine.getSessionState().stateDisplayTitle));
+
+        if (pingMessageId != 0) {
+            oldMessageIds.add(pingMessageId);
         }
+        channel.sendMessage(pingString.toString()).queue(createdMessage -> {
+            synchronized (host) {
+                pingMessageId = createdMessage.getIdLong();
+            }
+        });
     }
 
-    private void updateMessageEmojis() {
-        mainMessage.clearReactions().queue();
-        for (Emoji emoji : PomodoroCommand.getAvailableEmojis(sessionState)) {
-            emoji.addAsReaction(mainMessage);
+    private void updateMessageEmojis(TextChannel channel, long messageId) {
+        channel.clearReactionsById(messageId).queue();
+        for (Emoji emoji : PomodoroCommand.getAvailableEmojis(stateMachine.getSessionState())) {
+            emoji.addAsReaction(channel, messageId);
         }
     }
 
     public void removeEmoji(String emote, User user) {
-        mainMessage.removeReaction(emote, user).queue();
+        TextChannel channel = getChannel();
+        if (channel != null && mainMessageId != 0) {
+            channel.removeReactionById(mainMessageId, emote, user).queue();
+        }
     }
 
     /**
      * Action triggered by user
      */
     public void userStartSession(Instant currentTime) {
-        if (sessionState != SessionState.NOT_STARTED) {
-            throw new BadUserInputException("Session is already started");
+        synchronized (host) {
+            executeEffects(stateMachine.start(currentTime), currentTime);
         }
-        timeSessionStarted = currentTime;
-        update(SessionState.WORK, currentTime);
     }
 
     /**
      * Action triggered by user
      */
     public void userPauseSession(Instant currentTime) {
-        if (sessionState == SessionState.NOT_STARTED) {
-            throw new BadUserInputException("Session not started");
+        synchronized (host) {
+            executeEffects(stateMachine.pause(currentTime), currentTime);
         }
-        if (!sessionState.isActiveState) {
-            throw new BadUserInputException("Session is already suspended");
-        }
-        update(SessionState.PAUSED, currentTime);
     }
 
     /**
      * Action triggered by user
      */
     public void userResumeSession(Instant currentTime) {
-        if (sessionState != SessionState.PAUSED) {
-            throw new BadUserInputException("Session isn't paused so cannot resume");
-        }
-        if (resumeState == null) {
-            throw new BadStateException("Uh oh, I don't remember what we were doing... Sorry");
+        synchronized (host) {
+            executeEffects(stateMachine.resume(currentTime), currentTime);
         }
-        update(resumeState, currentTime);
     }
 
     /**
      * Action triggered by user
      */
     public void userStopSession(Instant currentTime) {
-        if (sessionState == SessionState.FINISHED) {
-            throw new BadUserInputException("Session is already stopped");
+        synchronized (host) {
+            executeEffects(stateMachine.stop(currentTime), currentTime);
         }
-        update(SessionState.FINISHED, currentTime);
     }
 
     public String getCurrentStateTimeLeftAsString(Instant currentTime) {
-        if (timeCurrentStateEnds == null) {
-            if (sessionState == SessionState.NOT_STARTED) {
-                throw new BadUserInputException("Session not started");
-            }
-            if (sessionState.isActiveState) {
-                throw new BadStateException("Uh oh, someone forgot to set the timer, bad Tatsuya");
-            }
-            throw new BadUserInputException("Session is currently suspended");
-        }
-        return minutesToDisplayString(minutesBetweenTwoTimes(currentTime, timeCurrentStateEnds)) + " until "
-                + sessionState.stateDisplayTitle;
+        return stateMachine.getCurrentStateTimeLeftAsString(currentTime);
     }
 
     public void resetTimeOnCurrentState(Instant currentTime) {
-        if (!sessionState.isActiveState) {
-            throw new BadUserInputException("Session is currently suspended");
-        }
-
-        timeCurrentStateEnds = currentTime.plus(settings.getStateDuration(sessionState), ChronoUnit.MINUTES);
-        if (mainMessage != null) {
-            mainMessage.editMessage(buildEmbed(currentTime)).queue();
+        synchronized (host) {
+            executeEffects(stateMachine.resetTimeOnCurrentState(currentTime), currentTime);
         }
     }
 
     public void addTimeToCurrentState(int minutes, Instant currentTime) {
-        if (!sessionState.isActiveState) {
-            throw new BadUserInputException("Session is currently suspended");
-        }
-        if (minutes <= 0) {
-            throw new BadUserInputException("Please enter a number of minutes greater than 0");
-        }
-        int timeRemaining = minutesBetweenTwoTimes(currentTime, timeCurrentStateEnds);
-        if (timeRemaining + minutes >= PomodoroSettings.maxDuration) {
-            int maxIncrease = PomodoroSettings.maxDuration - timeRemaining;
-            throw new BadUserInputException(
-                    String.format("Max duration is %s. Can increase the current timer by up to %s (%s min%s)",
-                            minutesToDisplayString(PomodoroSettings.maxDuration),
-                            minutesToDisplayString(maxIncrease),
-                            maxIncrease,
-                            maxIncrease > 1 ? "s" : ""
-                    ));
+        synchronized (host) {
+            executeEffects(stateMachine.addTimeToCurrentState(minutes, currentTime), currentTime);
         }
-        timeCurrentStateEnds = timeCurrentStateEnds.plus(minutes, ChronoUnit.MINUTES);
-        update(currentTime, false);
     }
 
     public void removeTimeFromCurrentState(int minutes, Instant currentTime) {
-        if (!sessionState.isActiveState) {
-            throw new BadUserInputException("Session is currently suspended");
-        }
-        if (minutes <= 0) {
-            throw new BadUserInputException("Please enter a number of minutes greater than 0");
+        synchronized (host) {
+            executeEffects(stateMachine.removeTimeFromCurrentState(minutes, currentTime), currentTime);
         }
-        int timeDiff = minutesBetweenTwoTimes(currentTime, timeCurrentStateEnds);
-        if (timeDiff < minutes + 1) {
-            throw new BadUserInputException(
-                    "There's only " + minutesToDisplayString(timeDiff) + " left! Can lower it by a maximum of "
-                            + minutesToDisplayString(timeDiff - 1));
-        }
-        timeCurrentStateEnds = timeCurrentStateEnds.minus(minutes, ChronoUnit.MINUTES);
-        update(currentTime, false);
     }
 
     /**
@@ -603,186 +950,213 @@ public class PomodoroSession {
         }
     }
 
+    /**
+     * Participants are held by member id with the name they had when they joined so that Member objects aren't kept.
+     * The lists displayed in the embed and ping message are kept up to date as participants join and leave. Members
+     * join and leave on JDA's thread while the lists are rendered on the update thread so every access is synchronized
+     */
     public static class Participants {
-        private final Map<Member, ParticipantDetail> participants = new HashMap<>();
+        private final LongMap<ParticipantDetail> participants = new LongMap<>();
+        private final RenderedList<ParticipantDetail> participantList = new RenderedList<>("\n", "No one yet",
+                MessageEmbed.VALUE_MAX_LENGTH
+        );
+        private final RenderedList<ParticipantDetail> workingOnList = new RenderedList<>("\n", "Nothing submitted",
+                MessageEmbed.VALUE_MAX_LENGTH
+        );
+        /**
+         * Leaves space in the ping message for the text around the mentions
+         */
+        private final RenderedList<ParticipantDetail> mentionList = new RenderedList<>(" ", "",
+                Message.MAX_CONTENT_LENGTH - 100
+        );
+        /**
+         * Incremented every time a participant joins or leaves
+         */
+        private int version = 0;
 
         public void removeParticipant(Member participant) {
-            participants.remove(participant);
-        }
-
-        public void addParticipant(Member participant, boolean ping, String studying) {
-            participants.put(participant, new ParticipantDetail(ping, studying));
+            removeParticipant(participant.getIdLong());
         }
 
-        public void addParticipant(Member participant, boolean ping) {
-            participants.put(participant, new ParticipantDetail(ping));
+        public synchronized void removeParticipant(long memberId) {
+            ParticipantDetail detail = participants.remove(memberId);
+            if (detail != null) {
+                unlink(detail);
+                version++;
+            }
         }
 
         /**
-         * @return a newline-separated list of participants
+         * @throws BadUserInputException if the session is full and the member isn't already participating
          */
-        private String getParticipantList() {
-            if (participants.isEmpty()) {
-                return "No one yet";
+        public synchronized void addParticipant(Member participant, boolean ping, String studying) {
+            long memberId = participant.getIdLong();
+            if (participants.size() >= SessionLimits.getMaxParticipants() && !participants.containsKey(memberId)) {
+                throw new BadUserInputException(String.format(
+                        "This session is full (%d participants), try starting another one",
+                        SessionLimits.getMaxParticipants()
+                ));
             }
-            StringBuilder sb = new StringBuilder();
-            for (Map.Entry<Member, ParticipantDetail> entry : participants.entrySet()) {
-                if (sb.length() > 0) {
-                    sb.append("\n");
-                }
-                sb.append(entry.getKey().getEffectiveName());
-                if (!entry.getValue().ping) {
-                    sb.append(" ");
-                    sb.append(Emoji.ZIPPER_MOUTH.getDiscordAlias());
-                }
-            }
-            return sb.toString();
+            addParticipant(memberId, participant.getEffectiveName(), ping, studying);
         }
 
         /**
-         * @return a newline-separated list of what members are working on
+         * If the member is already participating their details are replaced and they move to the end of the lists
+         *
+         * @param name the member's display name (not updated if they change it)
          */
-        private String getWorkingOnList() {
-            StringBuilder sb = new StringBuilder();
-            for (Map.Entry<Member, ParticipantDetail> entry : participants.entrySet()) {
-                String workingOn = entry.getValue().workingOn;
-
-                if (workingOn != null && !workingOn.isBlank()) {
-                    if (sb.length() > 0) {
-                        sb.append("\n");
-                    }
-                    sb.append(workingOn);
-                }
+        public synchronized void addParticipant(long memberId, String name, boolean ping, String studying) {
+            ParticipantDetail detail = new ParticipantDetail(memberId, name, ping, studying);
+            ParticipantDetail previous = participants.put(memberId, detail);
+            if (previous != null) {
+                unlink(previous);
+            }
+            detail.participantNode = participantList
+                    .add(detail, ping ? name : name + " " + Emoji.ZIPPER_MOUTH.getDiscordAlias());
+            if (studying != null && !studying.isBlank()) {
+                detail.workingOnNode = workingOnList.add(detail, studying);
             }
-            if (sb.length() == 0) {
-                return "Nothing submitted";
+            if (ping) {
+                detail.mentionNode = mentionList.add(detail, "<@" + Long.toUnsignedString(memberId) + ">");
             }
-            return sb.toString();
+            version++;
         }
 
-        /**
-         * @return a space-separated list of all members who want pings as pings
-         */
-        private String getMentionList() {
-            StringBuilder sb = new StringBuilder();
-            for (Map.Entry<Member, ParticipantDetail> entry : participants.entrySet()) {
-                if (entry.getValue().ping) {
-                    if (sb.length() > 0) {
-                        sb.append(" ");
-                    }
-                    sb.append(entry.getKey().getAsMention());
-                }
+        public void addParticipant(Member participant, boolean ping) {
+            addParticipant(participant, ping, null);
+        }
+
+        private void unlink(ParticipantDetail detail) {
+            participantList.remove(detail.participantNode);
+            if (detail.workingOnNode != null) {
+                workingOnList.remove(detail.workingOnNode);
+            }
+            if (detail.mentionNode != null) {
+                mentionList.remove(detail.mentionNode);
             }
-            return sb.toString();
         }
 
-        private static class ParticipantDetail {
-            boolean ping;
-            String workingOn = null;
+        public synchronized boolean isParticipant(long memberId) {
+            return participants.containsKey(memberId);
+        }
 
-            public ParticipantDetail(boolean ping, String workingOn) {
-                this.ping = ping;
-                this.workingOn = workingOn;
-            }
+        public synchronized int size() {
+            return participants.size();
+        }
 
-            public ParticipantDetail(boolean ping) {
-                this.ping = ping;
-            }
+        public synchronized int getVersion() {
+            return version;
         }
-    }
 
-    /**
-     * Information on previous states and their timings so that information such as total work time can be calculated
-     */
-    private class HistoricStateData {
         /**
-         * Data is added to the end (later items are more recent)
+         * @return a newline-separated list of participants
          */
-        private final List<DataItem> completedItems = new ArrayList<>();
-
-        void addCompletedItem(int time, SessionState state) {
-            if (state == SessionState.NOT_STARTED || state == SessionState.FINISHED) {
-                time = 0;
-            }
-            completedItems.add(new DataItem(time, state));
+        private synchronized String getParticipantList() {
+            return participantList.getRendered();
         }
 
         /**
-         * Paused sessions will only be counted once, e.g. WORK PAUSE WORK counts as 1
-         *
-         * @param countSinceLongBreak false: count all work session, true: work sessions since last long break
-         * @param currentState if the current work state is WORK and the only data was WORK, PAUSED then the
-         *         count should be 0 as the current work session is not counted and the current state is just a resumed
-         *         work session
+         * @return a newline-separated list of what members are working on
          */
-        int countWorkSessions(boolean countSinceLongBreak, SessionState currentState) {
-            SessionState lastActiveState = currentState.isActiveState ? currentState : null;
-            int count = 0;
-            for (int i = completedItems.size() - 1; i >= 0; i--) {
-                DataItem item = completedItems.get(i);
-                if (item.state == SessionState.LONG_BREAK && countSinceLongBreak) {
-                    break;
-                }
-                else if (item.state == SessionState.WORK && lastActiveState != SessionState.WORK) {
-                    count++;
-                }
-                if (item.state.isActiveState) {
-                    lastActiveState = item.state;
-                }
-            }
-            return count;
+        private synchronized String getWorkingOnList() {
+            return workingOnList.getRendered();
         }
 
         /**
-         * @return a display string of completed work sessions and total study time
+         * @return a space-separated list of all members who want pings as pings
          */
-        private String getCompletedStatsString(int timeInCurrentState, SessionState currentState) {
-            int workTimeElapsed = 0;
-            for (DataItem dataItem : completedItems) {
-                if (dataItem.state == SessionState.WORK) {
-                    workTimeElapsed += dataItem.time;
-                }
-            }
-            if (currentState == SessionState.WORK) {
-                workTimeElapsed += timeInCurrentState;
-            }
-
-            String returnString = "Completed work sessions: " + countWorkSessions(false, sessionState);
-            returnString += "\nTotal study time: " + minutesToDisplayString(workTimeElapsed);
-            return returnString;
+        private synchronized String getMentionList() {
+            return mentionList.getRendered();
         }
 
         /**
-         * @return the time the next state should be elapsed for (adjusts if for example a work session was paused and
-         *         is to be resumed)
+         * Copies the participants into the snapshot in the order they joined
+         *
+         * @return the version that was copied
          */
-        private int getNextStateDurationAdjusted(SessionState nextState) {
-            int timeRemaining = settings.getStateDuration(nextState);
-            if (!nextState.isActiveState) {
-                return timeRemaining;
-            }
-            for (int i = completedItems.size() - 1; i >= 0; i--) {
-                DataItem item = completedItems.get(i);
-                if (item.state == nextState) {
-                    timeRemaining -= item.time;
-                    continue;
-                }
-                if (!item.state.isActiveState) {
-                    continue;
-                }
-                break;
+        private synchronized int snapshotInto(PomodoroSessionSnapshot snapshot) {
+            int participantCount = participants.size();
+            snapshot.participantIds = new long[participantCount];
+            snapshot.participantPings = new boolean[participantCount];
+            snapshot.participantWorkingOn = new String[participantCount];
+            snapshot.participantNames = new String[participantCount];
+            int[] i = {0};
+            participantList.forEach(detail -> {
+                snapshot.participantIds[i[0]] = detail.id;
+                snapshot.participantNames[i[0]] = detail.name;
+                snapshot.participantPings[i[0]] = detail.ping;
+                snapshot.participantWorkingOn[i[0]] = detail.workingOn;
+                i[0]++;
+            });
+            return version;
+        }
+
+        private static class ParticipantDetail {
+            final long id;
+            final String name;
+            final boolean ping;
+            final String workingOn;
+            RenderedList.Node<ParticipantDetail> participantNode = null;
+            RenderedList.Node<ParticipantDetail> workingOnNode = null;
+            RenderedList.Node<ParticipantDetail> mentionNode = null;
+
+            public ParticipantDetail(long id, String name, boolean ping, String workingOn) {
+                this.id = id;
+                this.name = name;
+                this.ping = ping;
+                this.workingOn = workingOn;
             }
-            return timeRemaining;
         }
+    }
+
+    /**
+     * The parts of the embed which are the same for every view of a session
+     */
+    private static class CommonRender {
+        private String title;
+        private String description;
+        private String participantsTitle;
+        private String stats;
+        private String settings;
+        private Color colour;
+        private String image = null;
+    }
 
-        class DataItem {
-            int time;
-            SessionState state;
+    /**
+     * The values a cached render was built from. The session state, resume state, and whether the session has started
+     * are also recorded as they change independently of the versions
+     */
+    private class RenderKey {
+        private int timeInCurrentState;
+        private int timeUntilStateEnds;
+        private int participantsVersion;
+        private int settingsVersion;
+        private int historicVersion;
+        private SessionState sessionState;
+        private SessionState resumeState;
+        private boolean sessionStarted;
+
+        private boolean matches(int timeInCurrentState, int timeUntilStateEnds, int participantsVersion,
+                int settingsVersion, int historicVersion
+        ) {
+            return this.timeInCurrentState == timeInCurrentState && this.timeUntilStateEnds == timeUntilStateEnds
+                    && this.participantsVersion == participantsVersion && this.settingsVersion == settingsVersion
+                    && this.historicVersion == historicVersion && this.sessionState == stateMachine.getSessionState()
+                    && this.resumeState == stateMachine.getResumeState()
+                    && this.sessionStarted == (stateMachine.getTimeSessionStarted() != null);
+        }
 
-            public DataItem(int time, SessionState state) {
-                this.time = time;
-                this.state = state;
-            }
+        private void set(int timeInCurrentState, int timeUntilStateEnds, int participantsVersion, int settingsVersion,
+                int historicVersion
+        ) {
+            this.timeInCurrentState = timeInCurrentState;
+            this.timeUntilStateEnds = timeUntilStateEnds;
+            this.participantsVersion = participantsVersion;
+            this.settingsVersion = settingsVersion;
+            this.historicVersion = historicVersion;
+            this.sessionState = stateMachine.getSessionState();
+            this.resumeState = stateMachine.getResumeState();
+            this.sessionStarted = stateMachine.getTimeSessionStarted() != null;
         }
     }
 }
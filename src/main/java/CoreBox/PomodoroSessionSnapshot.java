@@ -0,0 +1,254 @@
+package CoreBox;
+
+import BotFrameworkBox.DatabaseEntryType;
+import CoreBox.PomodoroSession.SessionState;
+import ExceptionsBox.BadStateException;
+import com.google.gson.*;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Everything needed to bring a running {@link PomodoroSession} back after a restart. Discord entities are stored as ids
+ * and times as epoch milliseconds. Stored in the database with the channel id as the key
+ */
+public class PomodoroSessionSnapshot implements DatabaseEntryType<PomodoroSessionSnapshot> {
+    long guildId;
+    long channelId;
+    /**
+     * The channel of the session this mirrors, 0 if it isn't a mirror
+     */
+    long hostChannelId;
+    /**
+     * 0 if there is no message
+     */
+    long mainMessageId;
+    long pingMessageId;
+    String authorName;
+    PomodoroSettings settings;
+    SessionState sessionState;
+    SessionState resumeState;
+    Instant timeSessionStarted;
+    Instant timeCurrentStateStarted;
+    Instant timeCurrentStateEnds;
+    /**
+     * {@link HistoricStateData#getPackedItems()}
+     */
+    int[] completedItems;
+    long[] participantIds;
+    boolean[] participantPings;
+    /**
+     * Null entries for participants who aren't working on anything
+     */
+    String[] participantWorkingOn;
+    /**
+     * Display names when the participants joined. Null entries if the snapshot was saved before names were stored
+     */
+    String[] participantNames;
+
+    public PomodoroSessionSnapshot() { }
+
+    public long getGuildId() {
+        return guildId;
+    }
+
+    public long getChannelId() {
+        return channelId;
+    }
+
+    public long getHostChannelId() {
+        return hostChannelId;
+    }
+
+    public long getMainMessageId() {
+        return mainMessageId;
+    }
+
+    public SessionState getSessionState() {
+        return sessionState;
+    }
+
+    private static JsonElement instantToJson(Instant instant) {
+        return instant == null ? JsonNull.INSTANCE : new JsonPrimitive(instant.toEpochMilli());
+    }
+
+    private static Instant instantFromJson(JsonElement element) {
+        return element.isJsonNull() ? null : Instant.ofEpochMilli(element.getAsLong());
+    }
+
+    private static SessionState parseState(JsonElement element) {
+        if (element == null || element.isJsonNull()) {
+            return null;
+        }
+        try {
+            return SessionState.valueOf(element.getAsString());
+        }
+        catch (IllegalArgumentException e) {
+            throw new BadStateException("Json parse error: unknown session state: " + element.getAsString());
+        }
+    }
+
+    @Override
+    public Class<PomodoroSessionSnapshot> getReturnClass() {
+        return PomodoroSessionSnapshot.class;
+    }
+
+    @Override
+    public JsonDeserializer<PomodoroSessionSnapshot> getDeserializer() {
+        return (json, typeOfT, context) -> {
+            PomodoroSessionSnapshot snapshot = new PomodoroSessionSnapshot();
+            JsonObject main = json.getAsJsonObject();
+
+            /*
+             * Ids
+             */
+            snapshot.guildId = main.get("guild").getAsLong();
+            snapshot.channelId = main.get("channel").getAsLong();
+            if (main.has("host")) {
+                snapshot.hostChannelId = main.get("host").getAsLong();
+            }
+            snapshot.mainMessageId = main.get("main").getAsLong();
+            snapshot.pingMessageId = main.get("ping").getAsLong();
+            snapshot.authorName = main.get("author").getAsString();
+            snapshot.settings = new PomodoroSettings().getDeserializer()
+                    .deserialize(main.get("settings"), PomodoroSettings.class, context);
+
+            /*
+             * Timeline
+             */
+            snapshot.sessionState = parseState(main.get("state"));
+            if (snapshot.sessionState == null) {
+                throw new BadStateException("Json parse error: session state missing");
+            }
+            snapshot.resumeState = parseState(main.get("resume"));
+            JsonArray times = main.getAsJsonArray("times");
+            snapshot.timeSessionStarted = instantFromJson(times.get(0));
+            snapshot.timeCurrentStateStarted = instantFromJson(times.get(1));
+            snapshot.timeCurrentStateEnds = instantFromJson(times.get(2));
+            JsonArray history = main.getAsJsonArray("history");
+            snapshot.completedItems = new int[history.size()];
+            for (int i = 0; i < history.size(); i++) {
+                snapshot.completedItems[i] = history.get(i).getAsInt();
+            }
+
+            /*
+             * Participants: [id, ping (0/1), working on (optional, null if there's a name), name (optional)]
+             */
+            JsonArray participants = main.getAsJsonArray("participants");
+            snapshot.participantIds = new long[participants.size()];
+            snapshot.participantPings = new boolean[participants.size()];
+            snapshot.participantWorkingOn = new String[participants.size()];
+            snapshot.participantNames = new String[participants.size()];
+            for (int i = 0; i < participants.size(); i++) {
+                JsonArray participant = participants.get(i).getAsJsonArray();
+                snapshot.participantIds[i] = participant.get(0).getAsLong();
+                snapshot.participantPings[i] = participant.get(1).getAsInt() != 0;
+                if (participant.size() > 2 && !participant.get(2).isJsonNull()) {
+                    snapshot.participantWorkingOn[i] = participant.get(2).getAsString();
+                }
+                if (participant.size() > 3) {
+                    snapshot.participantNames[i] = participant.get(3).getAsString();
+                }
+            }
+            return snapshot;
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getChangedFields(PomodoroSessionSnapshot previous) {
+        Set<String> changed = new HashSet<>();
+        if (guildId != previous.guildId) {
+            changed.add("guild");
+        }
+        if (channelId != previous.channelId) {
+            changed.add("channel");
+        }
+        if (hostChannelId != previous.hostChannelId) {
+            changed.add("host");
+        }
+        if (mainMessageId != previous.mainMessageId) {
+            changed.add("main");
+        }
+        if (pingMessageId != previous.pingMessageId) {
+            changed.add("ping");
+        }
+        if (!Objects.equals(authorName, previous.authorName)) {
+            changed.add("author");
+        }
+        if (!settings.getChangedFields(previous.settings).isEmpty()) {
+            changed.add("settings");
+        }
+        if (sessionState != previous.sessionState) {
+            changed.add("state");
+        }
+        if (resumeState != previous.resumeState) {
+            changed.add("resume");
+        }
+        if (!Objects.equals(timeSessionStarted, previous.timeSessionStarted) || !Objects
+                .equals(timeCurrentStateStarted, previous.timeCurrentStateStarted) || !Objects
+                .equals(timeCurrentStateEnds, previous.timeCurrentStateEnds)) {
+            changed.add("times");
+        }
+        if (!Arrays.equals(completedItems, previous.completedItems)) {
+            changed.add("history");
+        }
+        if (!Arrays.equals(participantIds, previous.participantIds) || !Arrays
+                .equals(participantPings, previous.participantPings) || !Arrays
+                .equals(participantWorkingOn, previous.participantWorkingOn) || !Arrays
+                .equals(participantNames, previous.participantNames)) {
+            changed.add("participants");
+        }
+        return changed;
+    }
+
+    @Override
+    public JsonSerializer<PomodoroSessionSnapshot> getSerializer() {
+        return (src, typeOfSrc, context) -> {
+            JsonObject main = new JsonObject();
+            main.addProperty("guild", src.guildId);
+            main.addProperty("channel", src.channelId);
+            if (src.hostChannelId != 0) {
+                main.addProperty("host", src.hostChannelId);
+            }
+            main.addProperty("main", src.mainMessageId);
+            main.addProperty("ping", src.pingMessageId);
+            main.addProperty("author", src.authorName);
+            main.add("settings",
+                    src.settings.getSerializer().serialize(src.settings, PomodoroSettings.class, context)
+            );
+
+            main.addProperty("state", src.sessionState.toString());
+            if (src.resumeState != null) {
+                main.addProperty("resume", src.resumeState.toString());
+            }
+            JsonArray times = new JsonArray();
+            times.add(instantToJson(src.timeSessionStarted));
+            times.add(instantToJson(src.timeCurrentStateStarted));
+            times.add(instantToJson(src.timeCurrentStateEnds));
+            main.add("times", times);
+            JsonArray history = new JsonArray();
+            for (int item : src.completedItems) {
+                history.add(item);
+            }
+            main.add("history", history);
+
+            JsonArray participants = new JsonArray();
+            for (int i = 0; i < src.participantIds.length; i++) {
+                JsonArray participant = new JsonArray();
+                participant.add(src.participantIds[i]);
+                participant.add(src.participantPings[i] ? 1 : 0);
+                participant.add(src.participantWorkingOn[i]);
+                participant.add(src.participantNames[i]);
+                participants.add(participant);
+            }
+            main.add("participants", participants);
+            return main;
+        };
+    }
+}
@@ -1,5 +1,8 @@
 package CoreBox;
 
+import BotFrameworkBox.BinaryCodec;
+import BotFrameworkBox.BinaryReader;
+import BotFrameworkBox.BinaryWriter;
 import BotFrameworkBox.DatabaseEntryType;
 import CoreBox.PomodoroSession.BooleanSetting;
 import CoreBox.PomodoroSession.SessionState;
@@ -7,9 +10,13 @@ import ExceptionsBox.BadStateException;
 import ExceptionsBox.BadUserInputException;
 import TatsuyaCommands.PomodoroCommand;
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import net.dv8tion.jda.api.Permission;
 
 import java.awt.*;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.*;
@@ -17,7 +24,10 @@ import java.util.*;
 import static CoreBox.PomodoroSession.minutesToDisplayString;
 
 /**
- * Settings such as work/study split for a particular pomodoro session
+ * Settings such as work/study split for a particular pomodoro session.
+ * <p>
+ * Settings are immutable: changing a setting creates a new instance (see {@link #withArgs(String)}). Instances are
+ * interned so that all sessions with the same settings share one
  */
 public class PomodoroSettings implements DatabaseEntryType<PomodoroSettings> {
     /*
@@ -36,7 +46,7 @@ public class PomodoroSettings implements DatabaseEntryType<PomodoroSettings> {
     public static final String boolSettingDeliminator = ":";
     public static final String boolSettingOn = "on";
     public static final String boolSettingOff = "off";
-    private static final Map<SessionState, StateInfo> defaultStates = new HashMap<>() {
+    private static final EnumMap<SessionState, StateInfo> defaultStates = new EnumMap<>(SessionState.class) {
         {
             put(SessionState.WORK,
                     new StateInfo(SessionState.WORK, 25, Color.BLUE, SessionState.WORK.getDefaultImage())
@@ -58,46 +68,343 @@ public class PomodoroSettings implements DatabaseEntryType<PomodoroSettings> {
             );
         }
     };
-    private static final Set<Permission> defaultAdminPermissions = new HashSet<>() {
-        {
-            add(Permission.MANAGE_SERVER);
-            add(Permission.ADMINISTRATOR);
-            add(Permission.MANAGE_CHANNEL);
-        }
-    };
+    private static final Set<Permission> defaultAdminPermissions = Collections.unmodifiableSet(
+            EnumSet.of(Permission.MANAGE_SERVER, Permission.ADMINISTRATOR, Permission.MANAGE_CHANNEL));
     private static final int defaultTimeoutDuration = 60;
     private static final String defaultDateFormat = "dd/MM/yyyy";
     private static final String defaultTimeFormat = "HH:mm";
-    private final Set<BooleanSetting> defaultBooleanSettings = new HashSet<>() {
-        {
-            add(BooleanSetting.PINGS);
-            add(BooleanSetting.AUTO);
-            add(BooleanSetting.DELETE);
+    private static final int defaultBooleanSettings = toMask(
+            EnumSet.of(BooleanSetting.PINGS, BooleanSetting.AUTO, BooleanSetting.DELETE));
+    /**
+     * Interned instances. Entries are removed once no session is using them
+     */
+    private static final Map<PomodoroSettings, WeakReference<PomodoroSettings>> interned = new WeakHashMap<>();
+    private static final PomodoroSettings defaultSettings = intern(new PomodoroSettings());
+    /**
+     * Like JSON only the settings that aren't the default are written. Enums are written by name (permissions by their
+     * Discord bits) and unknown names are skipped so that removing a setting doesn't break old rows
+     */
+    private static final BinaryCodec<PomodoroSettings> binaryCodec = new BinaryCodec<>() {
+        /*
+         * Field numbers, never reuse one
+         */
+        private static final int statesField = 1;
+        private static final int booleanSettingsField = 2;
+        private static final int adminPermissionsField = 3;
+        private static final int timeoutDurationField = 4;
+        private static final int workSessionsBeforeLongBreakField = 5;
+        private static final int dateFormatField = 6;
+        private static final int timeFormatField = 7;
+        /**
+         * In the booleanSettings message
+         */
+        private static final int settingField = 1;
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public void write(PomodoroSettings value, BinaryWriter out) {
+            for (StateInfo info : value.states.values()) {
+                StateInfo defaultInfo = defaultStates.get(info.state);
+                if (!info.equals(defaultInfo)) {
+                    out.writeMessage(statesField, info.write(defaultInfo));
+                }
+            }
+            if (value.booleanSettings != defaultBooleanSettings) {
+                // A message so that all settings being off is different to the default
+                BinaryWriter settings = new BinaryWriter();
+                for (BooleanSetting setting : fromMask(value.booleanSettings)) {
+                    settings.writeString(settingField, setting.name());
+                }
+                out.writeMessage(booleanSettingsField, settings);
+            }
+            if (!value.adminPermissions.equals(defaultAdminPermissions)) {
+                out.writeLong(adminPermissionsField, Permission.getRaw(value.adminPermissions));
+            }
+            if (value.timeoutDuration != defaultTimeoutDuration) {
+                out.writeInt(timeoutDurationField, value.timeoutDuration);
+            }
+            if (value.workSessionsBeforeLongBreak != null) {
+                out.writeInt(workSessionsBeforeLongBreakField, value.workSessionsBeforeLongBreak);
+            }
+            if (!value.dateFormat.equals(defaultDateFormat)) {
+                out.writeString(dateFormatField, value.dateFormat);
+            }
+            if (!value.timeFormat.equals(defaultTimeFormat)) {
+                out.writeString(timeFormatField, value.timeFormat);
+            }
+        }
+
+        @Override
+        public PomodoroSettings read(BinaryReader in, int version) {
+            EnumMap<SessionState, StateInfo> states = new EnumMap<>(defaultStates);
+            int booleanSettings = defaultBooleanSettings;
+            Set<Permission> adminPermissions = defaultAdminPermissions;
+            int timeoutDuration = defaultTimeoutDuration;
+            Integer workSessionsBeforeLongBreak = null;
+            String dateFormat = defaultDateFormat;
+            String timeFormat = defaultTimeFormat;
+            while (in.nextField()) {
+                switch (in.getField()) {
+                    case statesField:
+                        StateInfo readInfo = StateInfo.read(in.readMessage());
+                        if (readInfo != null) {
+                            states.put(readInfo.state, states.get(readInfo.state).overlay(readInfo));
+                        }
+                        break;
+                    case booleanSettingsField:
+                        Set<BooleanSetting> settings = EnumSet.noneOf(BooleanSetting.class);
+                        BinaryReader settingsIn = in.readMessage();
+                        while (settingsIn.nextField()) {
+                            if (settingsIn.getField() != settingField) {
+                                settingsIn.skipField();
+                                continue;
+                            }
+                            String name = settingsIn.readString();
+                            for (BooleanSetting setting : BooleanSetting.values()) {
+                                if (setting.name().equals(name)) {
+                                    settings.add(setting);
+                                }
+                            }
+                        }
+                        booleanSettings = toMask(settings);
+                        break;
+                    case adminPermissionsField:
+                        adminPermissions = Collections.unmodifiableSet(Permission.getPermissions(in.readLong()));
+                        break;
+                    case timeoutDurationField:
+                        timeoutDuration = in.readInt();
+                        checkDuration(timeoutDuration);
+                        break;
+                    case workSessionsBeforeLongBreakField:
+                        workSessionsBeforeLongBreak = in.readInt();
+                        break;
+                    case dateFormatField:
+                        dateFormat = in.readString();
+                        break;
+                    case timeFormatField:
+                        timeFormat = in.readString();
+                        break;
+                    default:
+                        in.skipField();
+                }
+            }
+            // Throws an error if this combination is invalid
+            checkLongBreak(workSessionsBeforeLongBreak, states.get(SessionState.LONG_BREAK).duration);
+
+            return intern(new PomodoroSettings(states, booleanSettings, workSessionsBeforeLongBreak, timeoutDuration,
+                    dateFormat, timeFormat, adminPermissions
+            ));
+        }
+    };
+
+    /**
+     * Reads and writes the JSON as a stream rather than through a JsonObject. Only the settings that aren't the
+     * default are written
+     */
+    private static final TypeAdapter<PomodoroSettings> typeAdapter = new TypeAdapter<>() {
+        @Override
+        public void write(JsonWriter out, PomodoroSettings value) throws IOException {
+            out.beginObject();
+
+            /*
+             * States
+             */
+            boolean statesStarted = false;
+            for (StateInfo info : value.states.values()) {
+                if (info.equals(defaultStates.get(info.state))) {
+                    continue;
+                }
+                if (!statesStarted) {
+                    out.name("states").beginArray();
+                    statesStarted = true;
+                }
+                info.write(out);
+            }
+            if (statesStarted) {
+                out.endArray();
+            }
+
+            /*
+             * Sets
+             */
+            if (value.booleanSettings != defaultBooleanSettings) {
+                out.name("booleanSettings");
+                DatabaseEntryHelper.writeArray(out, fromMask(value.booleanSettings));
+            }
+            if (!value.adminPermissions.equals(defaultAdminPermissions)) {
+                out.name("adminPermissions");
+                DatabaseEntryHelper.writeArray(out, value.adminPermissions);
+            }
+
+            /*
+             * Misc
+             */
+            if (value.timeoutDuration != defaultTimeoutDuration) {
+                out.name("timeoutDuration").value(value.timeoutDuration);
+            }
+            if (value.workSessionsBeforeLongBreak != null) {
+                out.name("workSessionsBeforeLongBreak").value(value.workSessionsBeforeLongBreak);
+            }
+            if (!value.dateFormat.equals(defaultDateFormat)) {
+                out.name("dateFormat").value(value.dateFormat);
+            }
+            if (!value.timeFormat.equals(defaultTimeFormat)) {
+                out.name("timeFormat").value(value.timeFormat);
+            }
+
+            out.endObject();
+        }
+
+        @Override
+        public PomodoroSettings read(JsonReader in) throws IOException {
+            EnumMap<SessionState, StateInfo> states = new EnumMap<>(defaultStates);
+            int booleanSettings = defaultBooleanSettings;
+            Set<Permission> adminPermissions = defaultAdminPermissions;
+            int timeoutDuration = defaultTimeoutDuration;
+            Integer workSessionsBeforeLongBreak = null;
+            String dateFormat = defaultDateFormat;
+            String timeFormat = defaultTimeFormat;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "states":
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            StateInfo readInfo = StateInfo.read(in);
+                            states.put(readInfo.state, states.get(readInfo.state).overlay(readInfo));
+                        }
+                        in.endArray();
+                        break;
+                    case "booleanSettings":
+                        booleanSettings = toMask(DatabaseEntryHelper.readEnumArray(in, BooleanSetting.class));
+                        break;
+                    case "adminPermissions":
+                        adminPermissions = Collections
+                                .unmodifiableSet(DatabaseEntryHelper.readEnumArray(in, Permission.class));
+                        break;
+                    case "timeoutDuration":
+                        timeoutDuration = in.nextInt();
+                        checkDuration(timeoutDuration);
+                        break;
+                    case "workSessionsBeforeLongBreak":
+                        workSessionsBeforeLongBreak = in.nextInt();
+                        break;
+                    case "dateFormat":
+                        dateFormat = in.nextString();
+                        break;
+                    case "timeFormat":
+                        timeFormat = in.nextString();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            // Throws an error if this combination is invalid
+            checkLongBreak(workSessionsBeforeLongBreak, states.get(SessionState.LONG_BREAK).duration);
+
+            return intern(new PomodoroSettings(states, booleanSettings, workSessionsBeforeLongBreak, timeoutDuration,
+                    dateFormat, timeFormat, adminPermissions
+            ));
         }
     };
+
     /*
      * Settings
      */
-    private final Map<SessionState, StateInfo> states = new HashMap<>(defaultStates);
-
+    private final EnumMap<SessionState, StateInfo> states;
     /**
-     * Presence in the map indicates the setting is on
+     * Bit {@link BooleanSetting#ordinal()} is set if the setting is on
      */
-    private Set<BooleanSetting> booleanSettings = new HashSet<>(defaultBooleanSettings);
+    private final int booleanSettings;
     /**
      * This setting also dictates whether the long break function will be used
      */
-    private Integer workSessionsBeforeLongBreak = null;
+    private final Integer workSessionsBeforeLongBreak;
     /**
      * For the non-active states, the pomodoro session will be cancelled after this amount of inactivity
      */
-    private int timeoutDuration = 60;
-    private String dateFormat = "dd/MM/yyyy";
-    private String timeFormat = "HH:mm";
-    private Set<String> bannedMembers = new HashSet<>();
-    private Set<Permission> adminPermissions = new HashSet<>(defaultAdminPermissions);
+    private final int timeoutDuration;
+    private final String dateFormat;
+    private final String timeFormat;
+    private final Set<Permission> adminPermissions;
+    private final int hashCode;
+    /**
+     * Created the first time it's needed
+     */
+    private DateTimeFormatter dateTimeFormatter = null;
+
+    /**
+     * Default settings. Use {@link #getDefault()} for the shared instance (this constructor is needed by the
+     * database)
+     */
+    public PomodoroSettings() {
+        this(defaultStates, defaultBooleanSettings, null, defaultTimeoutDuration, defaultDateFormat, defaultTimeFormat,
+                defaultAdminPermissions
+        );
+    }
+
+    private PomodoroSettings(EnumMap<SessionState, StateInfo> states, int booleanSettings,
+            Integer workSessionsBeforeLongBreak, int timeoutDuration, String dateFormat, String timeFormat,
+            Set<Permission> adminPermissions
+    ) {
+        this.states = states;
+        this.booleanSettings = booleanSettings;
+        this.workSessionsBeforeLongBreak = workSessionsBeforeLongBreak;
+        this.timeoutDuration = timeoutDuration;
+        this.dateFormat = dateFormat;
+        this.timeFormat = timeFormat;
+        this.adminPermissions = adminPermissions;
+        this.hashCode = Objects.hash(states, booleanSettings, workSessionsBeforeLongBreak, timeoutDuration, dateFormat,
+                timeFormat, adminPermissions
+        );
+    }
+
+    /**
+     * @return the shared instance of the default settings
+     */
+    public static PomodoroSettings getDefault() {
+        return defaultSettings;
+    }
+
+    /**
+     * @return the shared instance equal to settings
+     */
+    private static PomodoroSettings intern(PomodoroSettings settings) {
+        synchronized (interned) {
+            WeakReference<PomodoroSettings> existing = interned.get(settings);
+            if (existing != null) {
+                PomodoroSettings existingSettings = existing.get();
+                if (existingSettings != null) {
+                    return existingSettings;
+                }
+            }
+            interned.put(settings, new WeakReference<>(settings));
+            return settings;
+        }
+    }
+
+    private static int toMask(Set<BooleanSetting> settings) {
+        int mask = 0;
+        for (BooleanSetting setting : settings) {
+            mask |= 1 << setting.ordinal();
+        }
+        return mask;
+    }
 
-    public PomodoroSettings() { }
+    private static Set<BooleanSetting> fromMask(int mask) {
+        Set<BooleanSetting> settings = EnumSet.noneOf(BooleanSetting.class);
+        for (BooleanSetting setting : BooleanSetting.values()) {
+            if ((mask & (1 << setting.ordinal())) != 0) {
+                settings.add(setting);
+            }
+        }
+        return settings;
+    }
 
     /**
      * Check that non-null durations come between the {@link #maxDuration} and {@link #minDuration}
@@ -117,16 +424,39 @@ public class PomodoroSettings implements DatabaseEntryType<PomodoroSettings> {
     }
 
     /**
-     * Will only set properties after validating the input
+     * @throws BadUserInputException if the combination is invalid
+     */
+    private static void checkLongBreak(Integer workSessionsBeforeLongBreak, Integer longBreakDuration) {
+        if (workSessionsBeforeLongBreak == null && longBreakDuration == null) {
+            return;
+        }
+        if (workSessionsBeforeLongBreak == null || longBreakDuration == null) {
+            throw new BadUserInputException(
+                    "Must provide long break duration AND work sessions until long break (or neither)");
+        }
+        if (workSessionsBeforeLongBreak < minWorkSessionsBeforeLongBreak) {
+            throw new BadUserInputException(
+                    "Minimum " + minWorkSessionsBeforeLongBreak + " work session before long break");
+        }
+        if (workSessionsBeforeLongBreak > maxWorkSessionsBeforeLongBreak) {
+            throw new BadUserInputException(
+                    "Maximum " + maxWorkSessionsBeforeLongBreak + " work session before long break");
+        }
+        checkDuration(longBreakDuration);
+    }
+
+    /**
+     * Settings are only changed after validating all of the input
      *
      * @param args {@link PomodoroCommand#getArgumentFormat()}
+     * @return these settings with the changes from args applied
      * @throws BadUserInputException if args is invalid
      */
-    public void setFromArgs(String args) {
+    public PomodoroSettings withArgs(String args) {
         if (args.isEmpty()) {
-            return;
+            return this;
         }
-        final Map<BooleanSetting, Boolean> booleanSettings = new HashMap<>();
+        final Map<BooleanSetting, Boolean> booleanSettings = new EnumMap<>(BooleanSetting.class);
         final List<Integer> numericArguments = new ArrayList<>();
         boolean intArgsEnd = false;
         for (String arg : args.split(" ")) {
@@ -175,51 +505,53 @@ public class PomodoroSettings implements DatabaseEntryType<PomodoroSettings> {
         /*
          * Set settings
          */
+        EnumMap<SessionState, StateInfo> newStates = new EnumMap<>(states);
+        Integer newWorkSessionsBeforeLongBreak = workSessionsBeforeLongBreak;
         // Long break first as this will validate it (all others were validated in the parse loop)
         if (numericArguments.size() > 2) {
-            setLongBreak(numericArguments.size() > 3 ? numericArguments.get(3) : null, numericArguments.get(2));
+            newWorkSessionsBeforeLongBreak = numericArguments.size() > 3 ? numericArguments.get(3) : null;
+            checkLongBreak(newWorkSessionsBeforeLongBreak, numericArguments.get(2));
+            newStates.put(SessionState.LONG_BREAK,
+                    states.get(SessionState.LONG_BREAK).withDuration(numericArguments.get(2))
+            );
         }
         if (numericArguments.size() > 1) {
-            this.states.get(SessionState.BREAK).setDuration(numericArguments.get(1));
+            newStates.put(SessionState.BREAK, states.get(SessionState.BREAK).withDuration(numericArguments.get(1)));
         }
         if (numericArguments.size() > 0) {
-            this.states.get(SessionState.WORK).setDuration(numericArguments.get(0));
+            newStates.put(SessionState.WORK, states.get(SessionState.WORK).withDuration(numericArguments.get(0)));
         }
+        int newBooleanSettings = this.booleanSettings;
         for (Map.Entry<BooleanSetting, Boolean> setting : booleanSettings.entrySet()) {
             if (setting.getValue()) {
-                this.booleanSettings.add(setting.getKey());
+                newBooleanSettings |= 1 << setting.getKey().ordinal();
             }
             else {
-                this.booleanSettings.remove(setting.getKey());
+                newBooleanSettings &= ~(1 << setting.getKey().ordinal());
             }
         }
+        return intern(new PomodoroSettings(newStates, newBooleanSettings, newWorkSessionsBeforeLongBreak,
+                timeoutDuration, dateFormat, timeFormat, adminPermissions
+        ));
     }
 
-    public void setLongBreak(Integer workSessionsBeforeLongBreak, Integer longBreakDuration) {
-        if (workSessionsBeforeLongBreak == null && longBreakDuration == null) {
-            this.workSessionsBeforeLongBreak = null;
-            this.states.get(SessionState.LONG_BREAK).setDuration(null);
-        }
-
-        if (workSessionsBeforeLongBreak == null || longBreakDuration == null) {
-            throw new BadUserInputException(
-                    "Must provide long break duration AND work sessions until long break (or neither)");
-        }
-        if (workSessionsBeforeLongBreak < minWorkSessionsBeforeLongBreak) {
-            throw new BadUserInputException(
-                    "Minimum " + minWorkSessionsBeforeLongBreak + " work session before long break");
-        }
-        if (workSessionsBeforeLongBreak > maxWorkSessionsBeforeLongBreak) {
-            throw new BadUserInputException(
-                    "Maximum " + maxWorkSessionsBeforeLongBreak + " work session before long break");
-        }
-        checkDuration(longBreakDuration);
-        this.workSessionsBeforeLongBreak = workSessionsBeforeLongBreak;
-        this.states.get(SessionState.LONG_BREAK).setDuration(longBreakDuration);
+    /**
+     * Passing null for both removes the long break
+     *
+     * @return these settings with the long break changed
+     * @throws BadUserInputException if the combination is invalid
+     */
+    public PomodoroSettings withLongBreak(Integer workSessionsBeforeLongBreak, Integer longBreakDuration) {
+        checkLongBreak(workSessionsBeforeLongBreak, longBreakDuration);
+        EnumMap<SessionState, StateInfo> newStates = new EnumMap<>(states);
+        newStates.put(SessionState.LONG_BREAK, states.get(SessionState.LONG_BREAK).withDuration(longBreakDuration));
+        return intern(new PomodoroSettings(newStates, booleanSettings, workSessionsBeforeLongBreak, timeoutDuration,
+                dateFormat, timeFormat, adminPermissions
+        ));
     }
 
     public boolean getBooleanSetting(BooleanSetting setting) {
-        return booleanSettings.contains(setting);
+        return (booleanSettings & (1 << setting.ordinal())) != 0;
     }
 
     public Integer getWorkSessionsBeforeLongBreak() {
@@ -238,8 +570,32 @@ public class PomodoroSettings implements DatabaseEntryType<PomodoroSettings> {
     }
 
     public DateTimeFormatter getDateTimeFormatter() {
-        return DateTimeFormatter
-                .ofPattern((booleanSettings.contains(BooleanSetting.DATE) ? dateFormat + " " : "") + timeFormat + " z");
+        if (dateTimeFormatter == null) {
+            dateTimeFormatter = DateTimeFormatter.ofPattern(
+                    (getBooleanSetting(BooleanSetting.DATE) ? dateFormat + " " : "") + timeFormat + " z");
+        }
+        return dateTimeFormatter;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PomodoroSettings)) {
+            return false;
+        }
+        PomodoroSettings other = (PomodoroSettings) o;
+        return hashCode == other.hashCode && booleanSettings == other.booleanSettings
+                && timeoutDuration == other.timeoutDuration && states.equals(other.states) && Objects
+                .equals(workSessionsBeforeLongBreak, other.workSessionsBeforeLongBreak) && dateFormat
+                .equals(other.dateFormat) && timeFormat.equals(other.timeFormat)
+                && adminPermissions.equals(other.adminPermissions);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
     }
 
     @Override
@@ -249,165 +605,121 @@ public class PomodoroSettings implements DatabaseEntryType<PomodoroSettings> {
 
     @Override
     public JsonDeserializer<PomodoroSettings> getDeserializer() {
-        return (json, typeOfT, context) -> {
-            PomodoroSettings pgi = new PomodoroSettings();
-            JsonObject main = json.getAsJsonObject();
-
-            /*
-             * States
-             */
-            if (main.has("states")) {
-                for (JsonElement element : main.getAsJsonArray("states")) {
-                    StateInfo readInfo = StateInfo.deserialise(element.getAsJsonObject());
-                    pgi.states.get(readInfo.state).overlay(readInfo);
-                }
-            }
-
-            /*
-             * Sets
-             */
-            if (main.has("booleanSettings")) {
-                booleanSettings = DatabaseEntryHelper
-                        .parseEnumArray(main.getAsJsonArray("booleanSettings"), BooleanSetting.class);
-            }
-            if (main.has("bannedMembers")) {
-                bannedMembers = DatabaseEntryHelper.parseStringArray(main.getAsJsonArray("bannedMembers"));
-            }
-            if (main.has("adminPermissions")) {
-                adminPermissions = DatabaseEntryHelper
-                        .parseEnumArray(main.getAsJsonArray("adminPermissions"), Permission.class);
-            }
+        return (json, typeOfT, context) -> typeAdapter.fromJsonTree(json);
+    }
 
-            /*
-             * Misc
-             */
-            if (main.has("timeoutDuration")) {
-                int timeout = main.get("timeoutDuration").getAsInt();
-                checkDuration(timeout);
-                pgi.timeoutDuration = timeout;
-            }
-            if (main.has("workSessionsBeforeLongBreak")) {
-                pgi.workSessionsBeforeLongBreak = main.get("workSessionsBeforeLongBreak").getAsInt();
-            }
-            if (main.has("dateFormat")) {
-                pgi.dateFormat = main.get("dateFormat").getAsString();
-            }
-            if (main.has("timeFormat")) {
-                pgi.timeFormat = main.get("timeFormat").getAsString();
-            }
+    @Override
+    public TypeAdapter<PomodoroSettings> getTypeAdapter() {
+        return typeAdapter;
+    }
 
-            /*
-             * Verify object
-             */
-            // Throws an error if this combination is invalid
-            setLongBreak(pgi.getWorkSessionsBeforeLongBreak(), pgi.states.get(SessionState.LONG_BREAK).duration);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getChangedFields(PomodoroSettings previous) {
+        Set<String> changed = new HashSet<>();
+        // Interned so usually nothing has changed if it's the same instance
+        if (previous == this) {
+            return changed;
+        }
+        if (!states.equals(previous.states)) {
+            changed.add("states");
+        }
+        if (booleanSettings != previous.booleanSettings) {
+            changed.add("booleanSettings");
+        }
+        if (!adminPermissions.equals(previous.adminPermissions)) {
+            changed.add("adminPermissions");
+        }
+        if (timeoutDuration != previous.timeoutDuration) {
+            changed.add("timeoutDuration");
+        }
+        if (!Objects.equals(workSessionsBeforeLongBreak, previous.workSessionsBeforeLongBreak)) {
+            changed.add("workSessionsBeforeLongBreak");
+        }
+        if (!dateFormat.equals(previous.dateFormat)) {
+            changed.add("dateFormat");
+        }
+        if (!timeFormat.equals(previous.timeFormat)) {
+            changed.add("timeFormat");
+        }
+        return changed;
+    }
 
-            return pgi;
-        };
+    @Override
+    public BinaryCodec<PomodoroSettings> getBinaryCodec() {
+        return binaryCodec;
     }
 
     @Override
     public JsonSerializer<PomodoroSettings> getSerializer() {
-        return (src, typeOfSrc, context) -> {
-            JsonObject main = new JsonObject();
-
-            /*
-             * States
-             */
-            JsonArray statesJson = new JsonArray();
-            for (StateInfo info : states.values()) {
-                if (!info.equals(defaultStates.get(info.state))) {
-                    statesJson.add(info.serialize());
-                }
-            }
-            if (statesJson.size() > 0) {
-                main.add("states", statesJson);
-            }
-
-            /*
-             * Sets
-             */
-            if (!booleanSettings.equals(defaultBooleanSettings)) {
-                main.add("booleanSettings", DatabaseEntryHelper.toJsonArray(booleanSettings));
-            }
-            if (!bannedMembers.isEmpty()) {
-                main.add("bannedMembers", DatabaseEntryHelper.toJsonArray(bannedMembers));
-            }
-            if (!adminPermissions.equals(defaultAdminPermissions)) {
-                main.add("adminPermissions", DatabaseEntryHelper.toJsonArray(adminPermissions));
-            }
-
-            /*
-             * Misc
-             */
-            if (timeoutDuration != defaultTimeoutDuration) {
-                main.addProperty("timeoutDuration", timeoutDuration);
-            }
-            if (workSessionsBeforeLongBreak != null) {
-                main.addProperty("workSessionsBeforeLongBreak", workSessionsBeforeLongBreak);
-            }
-            if (!dateFormat.equals(defaultDateFormat)) {
-                main.addProperty("dateFormat", dateFormat);
-            }
-            if (!timeFormat.equals(defaultTimeFormat)) {
-                main.addProperty("timeFormat", timeFormat);
-            }
-
-            return main;
-        };
+        return (src, typeOfSrc, context) -> typeAdapter.toJsonTree(src);
     }
 
     /**
      * Store information which the clan can change about each state
      */
     private static class StateInfo {
+        /*
+         * Binary field numbers
+         */
+        private static final int stateField = 1;
+        private static final int colourField = 2;
+        private static final int imageField = 3;
+        private static final int durationField = 4;
         private final SessionState state;
-        Color colour;
-        String image;
-        private Integer duration;
-
-        private StateInfo(SessionState state) {
-            this.state = state;
-            this.duration = null;
-            this.colour = null;
-            this.image = null;
-        }
+        private final Color colour;
+        private final String image;
+        private final Integer duration;
 
         public StateInfo(SessionState state, Integer duration, Color colour, String image) {
             this.state = state;
-            //noinspection ConstantConditions it will be null when generating default states
-            StateInfo defaultInfo = defaultStates != null ? defaultStates.get(state) : null;
-            this.duration = duration != null ? duration : (defaultInfo != null ? defaultInfo.duration : null);
-            this.colour = colour != null ? colour : (defaultInfo != null ? defaultInfo.colour : null);
-            this.image = image != null ? image : (defaultInfo != null ? defaultInfo.image : null);
+            this.duration = duration;
+            this.colour = colour;
+            this.image = image;
         }
 
-        public static StateInfo deserialise(JsonObject object) {
-            String stateString = object.get("state").getAsString();
-            StateInfo info;
-            try {
-                info = new StateInfo(SessionState.valueOf(stateString.toUpperCase()));
-            }
-            catch (IllegalArgumentException e) {
-                throw new BadStateException("Json parse error: unknown session state: " + stateString);
-            }
-            if (object.has("colour")) {
-                info.colour = Color.decode(object.get("colour").getAsString());
-            }
-            if (object.has("image")) {
-                info.image = object.get("image").getAsString();
+        /**
+         * @return info with only the values present in the object set (others are null)
+         */
+        public static StateInfo read(JsonReader in) throws IOException {
+            SessionState state = null;
+            Color colour = null;
+            String image = null;
+            Integer duration = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "state":
+                        state = DatabaseEntryHelper.getEnumConstant(SessionState.class, in.nextString());
+                        break;
+                    case "colour":
+                        colour = Color.decode(in.nextString());
+                        break;
+                    case "image":
+                        image = in.nextString();
+                        break;
+                    case "duration":
+                        duration = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                }
             }
-            if (object.has("duration")) {
-                info.duration = object.get("duration").getAsInt();
+            in.endObject();
+            if (state == null) {
+                throw new BadStateException("Json parse error: state info without a state");
             }
-            return info;
+            return new StateInfo(state, duration, colour, image);
         }
 
         /**
+         * @return a copy with the new duration
          * @throws BadStateException if state type is not active or for null values being assigned to WORK or
          *         BREAK states
          */
-        public void setDuration(Integer duration) {
+        public StateInfo withDuration(Integer duration) {
             if (!state.isActiveState()) {
                 throw new BadStateException("Suspended states cannot have a duration");
             }
@@ -415,37 +727,106 @@ public class PomodoroSettings implements DatabaseEntryType<PomodoroSettings> {
                 throw new BadStateException("Cannot have a null duration on work or break");
             }
             checkDuration(duration);
-            this.duration = duration;
+            return new StateInfo(state, duration, colour, image);
         }
 
-        public JsonElement serialize() {
-            JsonObject main = new JsonObject();
-            main.addProperty("state", state.toString());
-            if (duration != null) {
-                main.addProperty("colour", duration);
+        public void write(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("state").value(state.toString());
+            if (colour != null) {
+                out.name("colour").value(String.format("#%06X", colour.getRGB() & 0xFFFFFF));
             }
             if (image != null) {
-                main.addProperty("image", image);
+                out.name("image").value(image);
             }
             if (duration != null) {
-                main.addProperty("duration", duration);
+                out.name("duration").value(duration);
             }
-            return main;
+            out.endObject();
         }
 
         /**
-         * Overlay the current object with the non-null elements of info
+         * @param defaults values that are the same as these are left out as they're overlaid on the defaults when read
+         * @return the state's fields, see {@link #read(BinaryReader)}
          */
-        public void overlay(StateInfo info) {
-            if (info.image != null) {
-                image = info.image;
+        public BinaryWriter write(StateInfo defaults) {
+            BinaryWriter out = new BinaryWriter();
+            out.writeString(stateField, state.name());
+            if (colour != null && !colour.equals(defaults.colour)) {
+                out.writeInt(colourField, colour.getRGB() & 0xFFFFFF);
+            }
+            if (image != null && !image.equals(defaults.image)) {
+                out.writeString(imageField, image);
             }
-            if (info.colour != null) {
-                colour = info.colour;
+            if (duration != null && !duration.equals(defaults.duration)) {
+                out.writeInt(durationField, duration);
             }
+            return out;
+        }
+
+        /**
+         * @return info with only the values present set (others are null), null if the state no longer exists
+         */
+        public static StateInfo read(BinaryReader in) {
+            SessionState state = null;
+            Color colour = null;
+            String image = null;
+            Integer duration = null;
+            while (in.nextField()) {
+                switch (in.getField()) {
+                    case stateField:
+                        String name = in.readString();
+                        for (SessionState sessionState : SessionState.values()) {
+                            if (sessionState.name().equals(name)) {
+                                state = sessionState;
+                            }
+                        }
+                        break;
+                    case colourField:
+                        colour = new Color(in.readInt());
+                        break;
+                    case imageField:
+                        image = in.readString();
+                        break;
+                    case durationField:
+                        duration = in.readInt();
+                        break;
+                    default:
+                        in.skipField();
+                }
+            }
+            return state == null ? null : new StateInfo(state, duration, colour, image);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StateInfo)) {
+                return false;
+            }
+            StateInfo other = (StateInfo) o;
+            return state == other.state && Objects.equals(duration, other.duration) && Objects
+                    .equals(colour, other.colour) && Objects.equals(image, other.image);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(state, duration, colour, image);
+        }
+
+        /**
+         * @return a copy overlaid with the non-null elements of info
+         */
+        public StateInfo overlay(StateInfo info) {
+            StateInfo overlaid = new StateInfo(state, duration, info.colour != null ? info.colour : colour,
+                    info.image != null ? info.image : image
+            );
             if (info.duration != null) {
-                setDuration(info.duration);
+                overlaid = overlaid.withDuration(info.duration);
             }
+            return overlaid;
         }
     }
 }
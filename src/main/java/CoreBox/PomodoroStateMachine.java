@@ -0,0 +1,471 @@
+package CoreBox;
+
+import CoreBox.PomodoroSession.BooleanSetting;
+import CoreBox.PomodoroSession.SessionState;
+import ExceptionsBox.BadStateException;
+import ExceptionsBox.BadUserInputException;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.TimeUnit;
+
+import static CoreBox.PomodoroSession.minutesToDisplayString;
+
+/**
+ * The timeline of a pomodoro session: which state it's in, when that state ends, and what has happened so far. This has
+ * no knowledge of Discord. Instead, each action returns the {@link Effect}s that need to be carried out (as a bitmask
+ * so that the effects of several actions can be combined with |)
+ */
+public class PomodoroStateMachine {
+    /**
+     * [state ordinal][trigger ordinal]
+     */
+    private static final Transition[][] transitions = createTransitionTable();
+
+    private final HistoricStateData historicStateData;
+    private PomodoroSettings settings;
+    private Instant timeSessionStarted = null;
+    /*
+     * Current state information
+     */
+    private Instant timeCurrentStateStarted = null;
+    private SessionState sessionState = SessionState.NOT_STARTED;
+    /**
+     * If the current state is 'paused', resume to this state
+     */
+    private SessionState resumeState = null;
+    private Instant timeCurrentStateEnds = null;
+    /**
+     * Incremented every time the state or timings change
+     */
+    private int version = 0;
+    /**
+     * Incremented every time the settings are replaced
+     */
+    private int settingsVersion = 0;
+
+    public PomodoroStateMachine(PomodoroSettings settings) {
+        this.settings = settings;
+        this.historicStateData = new HistoricStateData();
+    }
+
+    /**
+     * Restore a state machine from a {@link PomodoroSessionSnapshot}
+     */
+    public PomodoroStateMachine(PomodoroSettings settings, HistoricStateData historicStateData,
+            SessionState sessionState, SessionState resumeState, Instant timeSessionStarted,
+            Instant timeCurrentStateStarted, Instant timeCurrentStateEnds
+    ) {
+        if (sessionState == null) {
+            throw new BadStateException("Session state cannot be null");
+        }
+        if (sessionState == SessionState.PAUSED && resumeState == null) {
+            throw new BadStateException("Paused session has nothing to resume");
+        }
+        this.settings = settings;
+        this.historicStateData = historicStateData;
+        this.sessionState = sessionState;
+        this.resumeState = resumeState;
+        this.timeSessionStarted = timeSessionStarted;
+        this.timeCurrentStateStarted = timeCurrentStateStarted;
+        this.timeCurrentStateEnds = timeCurrentStateEnds;
+    }
+
+    private static Transition[][] createTransitionTable() {
+        final String alreadySuspended = "Session is already suspended";
+        final String notPaused = "Session isn't paused so cannot resume";
+        final String suspended = "Session is currently suspended, try starting it first";
+
+        Transition[][] table = new Transition[SessionState.values().length][Trigger.values().length];
+        for (SessionState state : SessionState.values()) {
+            Transition[] row = table[state.ordinal()];
+            row[Trigger.START.ordinal()] = Transition.invalid("Session is already started");
+            row[Trigger.RESUME.ordinal()] = Transition.invalid(notPaused);
+            row[Trigger.STOP.ordinal()] = Transition.to(SessionState.FINISHED);
+            if (state.isActiveState()) {
+                row[Trigger.PAUSE.ordinal()] = Transition.to(SessionState.PAUSED);
+                row[Trigger.SKIP.ordinal()] = Transition.toNextActiveState();
+                row[Trigger.TIMER_EXPIRED.ordinal()] = Transition.toNextActiveState();
+            }
+            else {
+                row[Trigger.PAUSE.ordinal()] = Transition.invalid(alreadySuspended);
+                row[Trigger.SKIP.ordinal()] = Transition.invalid(suspended);
+                // Suspended states time out
+                row[Trigger.TIMER_EXPIRED.ordinal()] = Transition.to(SessionState.FINISHED);
+            }
+        }
+        table[SessionState.NOT_STARTED.ordinal()][Trigger.START.ordinal()] = Transition.to(SessionState.WORK);
+        table[SessionState.NOT_STARTED.ordinal()][Trigger.PAUSE.ordinal()] = Transition.invalid("Session not started");
+        table[SessionState.PAUSED.ordinal()][Trigger.RESUME.ordinal()] = Transition.toResumeState();
+        table[SessionState.FINISHED.ordinal()][Trigger.STOP.ordinal()] = Transition
+                .invalid("Session is already stopped");
+        table[SessionState.FINISHED.ordinal()][Trigger.TIMER_EXPIRED.ordinal()] = Transition.none();
+        return table;
+    }
+
+    /**
+     * @return the number of whole minutes between the two times (rounded up)
+     */
+    public static int minutesBetweenTwoTimes(Instant timeA, Instant timeB) {
+        if (timeA == null || timeB == null) {
+            throw new BadStateException("Instant cannot be null");
+        }
+        long milliDifference = Math.abs(timeA.toEpochMilli() - timeB.toEpochMilli());
+        long conversion = TimeUnit.MILLISECONDS.convert(1, TimeUnit.MINUTES);
+        double diff = Math.ceil((double) milliDifference / conversion);
+        if (diff > Integer.MAX_VALUE) {
+            throw new BadStateException("Time difference too large");
+        }
+        return (int) diff;
+    }
+
+    public PomodoroSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Settings are immutable so changing a setting means replacing them
+     */
+    public void setSettings(PomodoroSettings settings) {
+        if (settings != this.settings) {
+            this.settings = settings;
+            settingsVersion++;
+        }
+    }
+
+    /**
+     * @return a number which changes every time the settings are replaced
+     */
+    public int getSettingsVersion() {
+        return settingsVersion;
+    }
+
+    /**
+     * @return a number which changes every time the state or timings change
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    public HistoricStateData getHistoricStateData() {
+        return historicStateData;
+    }
+
+    public SessionState getSessionState() {
+        return sessionState;
+    }
+
+    public SessionState getResumeState() {
+        return resumeState;
+    }
+
+    public Instant getTimeSessionStarted() {
+        return timeSessionStarted;
+    }
+
+    public Instant getTimeCurrentStateStarted() {
+        return timeCurrentStateStarted;
+    }
+
+    public Instant getTimeCurrentStateEnds() {
+        return timeCurrentStateEnds;
+    }
+
+    /**
+     * @return work, break, or long break
+     */
+    public SessionState getNextState() {
+        if (sessionState != SessionState.WORK) {
+            return SessionState.WORK;
+        }
+        Integer workSessionsBeforeLongBreak = settings.getWorkSessionsBeforeLongBreak();
+        if (workSessionsBeforeLongBreak != null
+                && historicStateData.countWorkSessions(true, sessionState) + 1 >= workSessionsBeforeLongBreak) {
+            return SessionState.LONG_BREAK;
+        }
+        return SessionState.BREAK;
+    }
+
+    /**
+     * Moves to the next state if the current state's time has elapsed
+     *
+     * @return effects to carry out (the main message should at least be refreshed so its timer is up to date)
+     */
+    public int tick(Instant currentTime) {
+        if (timeCurrentStateEnds == null || !timeCurrentStateEnds.isBefore(currentTime)) {
+            return Effect.EDIT_MAIN.mask;
+        }
+        return fire(Trigger.TIMER_EXPIRED, currentTime);
+    }
+
+    /**
+     * Forcefully move to the next state whether the appropriate time has elapsed or not
+     *
+     * @throws BadUserInputException if session is suspended
+     */
+    public int skip(Instant currentTime) {
+        return fire(Trigger.SKIP, currentTime);
+    }
+
+    public int start(Instant currentTime) {
+        return fire(Trigger.START, currentTime);
+    }
+
+    public int pause(Instant currentTime) {
+        return fire(Trigger.PAUSE, currentTime);
+    }
+
+    public int resume(Instant currentTime) {
+        return fire(Trigger.RESUME, currentTime);
+    }
+
+    public int stop(Instant currentTime) {
+        return fire(Trigger.STOP, currentTime);
+    }
+
+    /**
+     * Looks up the transition for the current state and carries it out
+     *
+     * @throws BadUserInputException if the trigger isn't valid in the current state
+     */
+    private int fire(Trigger trigger, Instant currentTime) {
+        Transition transition = transitions[sessionState.ordinal()][trigger.ordinal()];
+        if (transition.error != null) {
+            throw new BadUserInputException(transition.error);
+        }
+        SessionState nextState;
+        switch (transition.type) {
+            case NONE:
+                return Effect.EDIT_MAIN.mask;
+            case NEXT_ACTIVE_STATE:
+                nextState = getNextState();
+                break;
+            case RESUME_STATE:
+                if (resumeState == null) {
+                    throw new BadStateException("Uh oh, I don't remember what we were doing... Sorry");
+                }
+                nextState = resumeState;
+                break;
+            default:
+                nextState = transition.target;
+        }
+        if (nextState != SessionState.FINISHED && timeCurrentStateStarted != null
+                && historicStateData.getCompletedItemsCount() >= SessionLimits.getMaxCompletedItems()) {
+            // Nobody is there to see an error so the timer running out ends the session instead
+            if (trigger == Trigger.TIMER_EXPIRED) {
+                return moveToState(SessionState.FINISHED, currentTime, true);
+            }
+            throw new BadUserInputException(String.format(
+                    "This session has reached its limit of %d timers, stop it and start a new one",
+                    SessionLimits.getMaxCompletedItems()
+            ));
+        }
+        if (trigger == Trigger.START) {
+            timeSessionStarted = currentTime;
+        }
+        if (trigger != Trigger.TIMER_EXPIRED) {
+            // User actions always announce the new state
+            return moveToState(nextState, currentTime, true);
+        }
+
+        // Without auto, wait for a user to start the next active state
+        if (nextState.isActiveState() && !settings.getBooleanSetting(BooleanSetting.AUTO)) {
+            int effects = moveToState(SessionState.PAUSED, currentTime, true);
+            resumeState = nextState;
+            return effects;
+        }
+        return moveToState(nextState, currentTime, false);
+    }
+
+    /**
+     * Update the current state and times
+     *
+     * @param forceSendPings ping even if not moving to an active state (mostly important when auto is off so
+     *         after a work session, the next state will be paused until someone starts the break)
+     */
+    private int moveToState(SessionState nextState, Instant currentTime, boolean forceSendPings) {
+        /*
+         * Update times
+         */
+        if (timeCurrentStateStarted != null) {
+            historicStateData
+                    .addCompletedItem(minutesBetweenTwoTimes(timeCurrentStateStarted, currentTime), sessionState);
+        }
+        timeCurrentStateEnds = currentTime
+                .plus(historicStateData.getNextStateDurationAdjusted(nextState, settings), ChronoUnit.MINUTES);
+        timeCurrentStateStarted = currentTime;
+
+        /*
+         * Update states
+         */
+        if (sessionState.isActiveState()) {
+            resumeState = sessionState;
+        }
+        sessionState = nextState;
+        version++;
+
+        /*
+         * Effects
+         */
+        if (sessionState.isActiveState() || forceSendPings) {
+            int effects = Effect.PING.mask | Effect.POST_MAIN.mask | Effect.REFRESH_REACTIONS.mask;
+            if (settings.getBooleanSetting(BooleanSetting.DELETE)) {
+                effects |= Effect.DELETE_OLD.mask;
+            }
+            return effects;
+        }
+        return Effect.EDIT_MAIN.mask | Effect.REFRESH_REACTIONS.mask;
+    }
+
+    /**
+     * @throws BadUserInputException if the session is suspended
+     */
+    public int resetTimeOnCurrentState(Instant currentTime) {
+        if (!sessionState.isActiveState()) {
+            throw new BadUserInputException("Session is currently suspended");
+        }
+        timeCurrentStateEnds = currentTime.plus(settings.getStateDuration(sessionState), ChronoUnit.MINUTES);
+        version++;
+        return Effect.EDIT_MAIN.mask;
+    }
+
+    /**
+     * @throws BadUserInputException if the session is suspended or the timer would go above the max duration
+     */
+    public int addTimeToCurrentState(int minutes, Instant currentTime) {
+        if (!sessionState.isActiveState()) {
+            throw new BadUserInputException("Session is currently suspended");
+        }
+        if (minutes <= 0) {
+            throw new BadUserInputException("Please enter a number of minutes greater than 0");
+        }
+        int timeRemaining = minutesBetweenTwoTimes(currentTime, timeCurrentStateEnds);
+        if (timeRemaining + minutes >= PomodoroSettings.maxDuration) {
+            int maxIncrease = PomodoroSettings.maxDuration - timeRemaining;
+            throw new BadUserInputException(
+                    String.format("Max duration is %s. Can increase the current timer by up to %s (%s min%s)",
+                            minutesToDisplayString(PomodoroSettings.maxDuration),
+                            minutesToDisplayString(maxIncrease),
+                            maxIncrease,
+                            maxIncrease > 1 ? "s" : ""
+                    ));
+        }
+        timeCurrentStateEnds = timeCurrentStateEnds.plus(minutes, ChronoUnit.MINUTES);
+        version++;
+        return tick(currentTime);
+    }
+
+    /**
+     * @throws BadUserInputException if the session is suspended or the timer would go below 1 minute
+     */
+    public int removeTimeFromCurrentState(int minutes, Instant currentTime) {
+        if (!sessionState.isActiveState()) {
+            throw new BadUserInputException("Session is currently suspended");
+        }
+        if (minutes <= 0) {
+            throw new BadUserInputException("Please enter a number of minutes greater than 0");
+        }
+        int timeDiff = minutesBetweenTwoTimes(currentTime, timeCurrentStateEnds);
+        if (timeDiff < minutes + 1) {
+            throw new BadUserInputException(
+                    "There's only " + minutesToDisplayString(timeDiff) + " left! Can lower it by a maximum of "
+                            + minutesToDisplayString(timeDiff - 1));
+        }
+        timeCurrentStateEnds = timeCurrentStateEnds.minus(minutes, ChronoUnit.MINUTES);
+        version++;
+        return tick(currentTime);
+    }
+
+    public String getCurrentStateTimeLeftAsString(Instant currentTime) {
+        if (timeCurrentStateEnds == null) {
+            if (sessionState == SessionState.NOT_STARTED) {
+                throw new BadUserInputException("Session not started");
+            }
+            if (sessionState.isActiveState()) {
+                throw new BadStateException("Uh oh, someone forgot to set the timer, bad Tatsuya");
+            }
+            throw new BadUserInputException("Session is currently suspended");
+        }
+        return minutesToDisplayString(minutesBetweenTwoTimes(currentTime, timeCurrentStateEnds)) + " until "
+                + sessionState.getStateDisplayTitle();
+    }
+
+    /**
+     * Things that need to happen outside of the state machine as a result of an action. They are carried out in
+     * declaration order
+     */
+    public enum Effect {
+        /**
+         * Send a message pinging participants about the new state
+         */
+        PING,
+        /**
+         * Send a new main message (replaces {@link #EDIT_MAIN})
+         */
+        POST_MAIN,
+        /**
+         * Update the existing main message
+         */
+        EDIT_MAIN,
+        /**
+         * Update the reactions on the main message to the actions available in the current state
+         */
+        REFRESH_REACTIONS,
+        /**
+         * Delete the main and ping messages which were replaced
+         */
+        DELETE_OLD;
+
+        public final int mask = 1 << ordinal();
+
+        public boolean isIn(int effects) {
+            return (effects & mask) != 0;
+        }
+    }
+
+    private enum Trigger {
+        START, PAUSE, RESUME, STOP, SKIP, TIMER_EXPIRED
+    }
+
+    /**
+     * An entry in the transition table
+     */
+    private static class Transition {
+        private final Type type;
+        private final SessionState target;
+        /**
+         * Non-null if the transition is not allowed
+         */
+        private final String error;
+
+        private Transition(Type type, SessionState target, String error) {
+            this.type = type;
+            this.target = target;
+            this.error = error;
+        }
+
+        static Transition to(SessionState target) {
+            return new Transition(Type.FIXED_STATE, target, null);
+        }
+
+        static Transition toNextActiveState() {
+            return new Transition(Type.NEXT_ACTIVE_STATE, null, null);
+        }
+
+        static Transition toResumeState() {
+            return new Transition(Type.RESUME_STATE, null, null);
+        }
+
+        static Transition none() {
+            return new Transition(Type.NONE, null, null);
+        }
+
+        static Transition invalid(String error) {
+            return new Transition(Type.NONE, null, error);
+        }
+
+        private enum Type {
+            FIXED_STATE, NEXT_ACTIVE_STATE, RESUME_STATE, NONE
+        }
+    }
+}
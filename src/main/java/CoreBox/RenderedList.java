@@ -0,0 +1,160 @@
+package CoreBox;
+
+import java.util.function.Consumer;
+
+/**
+ * An insertion-ordered list of items and the string of their texts joined by a separator, capped at a maximum length.
+ * Items that don't fit are left off the end and counted in a "+N more" line. The string is kept up to date as items are
+ * added and removed so reading it doesn't depend on the number of items. Adding is constant time, removing an item that
+ * is displayed rebuilds the displayed part (which is bounded by the cap). Not thread safe
+ */
+public class RenderedList<T> {
+    /**
+     * Space kept free for the "+N more" text
+     */
+    private static final int overflowReserve = 16;
+    private final String separator;
+    private final String emptyText;
+    private final int maxLength;
+    private final StringBuilder displayed = new StringBuilder();
+    private Node<T> head = null;
+    private Node<T> tail = null;
+    private int size = 0;
+    private int hiddenCount = 0;
+    private String rendered = null;
+
+    /**
+     * @param emptyText what to display when there are no items
+     * @param maxLength maximum length of the rendered string
+     */
+    public RenderedList(String separator, String emptyText, int maxLength) {
+        this.separator = separator;
+        this.emptyText = emptyText;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the node to pass to {@link #remove(Node)}
+     */
+    public Node<T> add(T item, String text) {
+        Node<T> node = new Node<>(item, text);
+        node.prev = tail;
+        if (tail != null) {
+            tail.next = node;
+        }
+        else {
+            head = node;
+        }
+        tail = node;
+        size++;
+        // Once something is hidden everything after it is too so that the displayed items stay in order
+        if (hiddenCount > 0 || !tryDisplay(node)) {
+            hiddenCount++;
+        }
+        rendered = null;
+        return node;
+    }
+
+    public void remove(Node<T> node) {
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        }
+        else {
+            head = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        else {
+            tail = node.prev;
+        }
+        size--;
+        if (node.displayed) {
+            rebuildDisplayed();
+        }
+        else {
+            hiddenCount--;
+        }
+        rendered = null;
+    }
+
+    /**
+     * @return true if the node was appended to the displayed string
+     */
+    private boolean tryDisplay(Node<T> node) {
+        int separatorLength = displayed.length() > 0 ? separator.length() : 0;
+        if (displayed.length() + separatorLength + node.text.length() > maxLength - overflowReserve) {
+            return false;
+        }
+        if (separatorLength > 0) {
+            displayed.append(separator);
+        }
+        displayed.append(node.text);
+        node.displayed = true;
+        return true;
+    }
+
+    /**
+     * Removing an item only frees up space so every item that was displayed still fits and the walk stops at the
+     * first item that doesn't
+     */
+    private void rebuildDisplayed() {
+        displayed.setLength(0);
+        int displayedCount = 0;
+        for (Node<T> node = head; node != null; node = node.next) {
+            if (!tryDisplay(node)) {
+                break;
+            }
+            displayedCount++;
+        }
+        hiddenCount = size - displayedCount;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the texts of the items in the order they were added, no longer than the max length
+     */
+    public String getRendered() {
+        if (rendered == null) {
+            if (size == 0) {
+                rendered = emptyText;
+            }
+            else if (hiddenCount == 0) {
+                rendered = displayed.toString();
+            }
+            else {
+                rendered = displayed + (displayed.length() > 0 ? separator : "") + "+" + hiddenCount + " more";
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * @param action run on every item in the order they were added
+     */
+    public void forEach(Consumer<T> action) {
+        for (Node<T> node = head; node != null; node = node.next) {
+            action.accept(node.item);
+        }
+    }
+
+    public static class Node<T> {
+        private final T item;
+        private final String text;
+        private Node<T> prev = null;
+        private Node<T> next = null;
+        private boolean displayed = false;
+
+        private Node(T item, String text) {
+            this.item = item;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package CoreBox;
+
+import ExceptionsBox.BadUserInputException;
+
+/**
+ * Bot-wide caps that keep the memory used by pomodoro sessions bounded. Limits only stop things being added, so
+ * lowering one doesn't affect anything that's already over it (e.g. sessions restored after a restart)
+ */
+public class SessionLimits {
+    public static final int defaultMaxSessions = 2000;
+    public static final int defaultMaxParticipants = 250;
+    /**
+     * About two weeks of back to back 25/5 timers
+     */
+    public static final int defaultMaxCompletedItems = 1000;
+    public static final int defaultIdleEvictionMinutes = 30;
+    private static volatile int maxSessions = defaultMaxSessions;
+    private static volatile int maxParticipants = defaultMaxParticipants;
+    private static volatile int maxCompletedItems = defaultMaxCompletedItems;
+    private static volatile int idleEvictionMinutes = defaultIdleEvictionMinutes;
+
+    /**
+     * @return the number of sessions that can be held in memory, evicted sessions aren't counted
+     */
+    public static int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public static void setMaxSessions(int maxSessions) {
+        checkPositive(maxSessions);
+        SessionLimits.maxSessions = maxSessions;
+    }
+
+    public static int getMaxParticipants() {
+        return maxParticipants;
+    }
+
+    public static void setMaxParticipants(int maxParticipants) {
+        checkPositive(maxParticipants);
+        SessionLimits.maxParticipants = maxParticipants;
+    }
+
+    /**
+     * @return the number of items a session's {@link HistoricStateData} can hold before it has to be stopped
+     */
+    public static int getMaxCompletedItems() {
+        return maxCompletedItems;
+    }
+
+    public static void setMaxCompletedItems(int maxCompletedItems) {
+        checkPositive(maxCompletedItems);
+        SessionLimits.maxCompletedItems = maxCompletedItems;
+    }
+
+    /**
+     * @return how long a paused or not started session can go untouched before it's moved out of memory
+     */
+    public static int getIdleEvictionMinutes() {
+        return idleEvictionMinutes;
+    }
+
+    public static void setIdleEvictionMinutes(int idleEvictionMinutes) {
+        checkPositive(idleEvictionMinutes);
+        SessionLimits.idleEvictionMinutes = idleEvictionMinutes;
+    }
+
+    public static void resetToDefaults() {
+        maxSessions = defaultMaxSessions;
+        maxParticipants = defaultMaxParticipants;
+        maxCompletedItems = defaultMaxCompletedItems;
+        idleEvictionMinutes = defaultIdleEvictionMinutes;
+    }
+
+    private static void checkPositive(int limit) {
+        if (limit <= 0) {
+            throw new BadUserInputException("Limits must be greater than 0");
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package CoreBox;
+
+import BotFrameworkBox.DatabaseWrapper;
+import CoreBox.PomodoroSession.SessionState;
+import ExceptionsBox.BadUserInputException;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.TextChannel;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pomodoro sessions in each channel. Sessions that have been paused or not started for a while are evicted: their
+ * snapshot is saved and only their channel and main message ids are kept in memory. They're reloaded from the
+ * database the next time they're looked up
+ */
+public class SessionRegistry {
+    private final LongMap<PomodoroSession> liveSessions = new LongMap<>();
+    /**
+     * Channel ids of the sessions whose snapshots are only in the database to the ids of their main messages
+     */
+    private final LongMap<Long> evictedChannelIds = new LongMap<>();
+    private long evictions = 0;
+    private long reloads = 0;
+
+    /**
+     * @return the session if it's in memory, doesn't reload evicted sessions
+     */
+    public synchronized PomodoroSession getLive(long channelId) {
+        return liveSessions.get(channelId);
+    }
+
+    /**
+     * @return true if the message is the main message of the session in the channel, doesn't reload evicted sessions
+     */
+    public synchronized boolean isMainMessage(long channelId, long messageId) {
+        PomodoroSession session = liveSessions.get(channelId);
+        if (session != null) {
+            return session.getMessageIdLong() == messageId;
+        }
+        Long mainMessageId = evictedChannelIds.get(channelId);
+        return mainMessageId != null && mainMessageId == messageId;
+    }
+
+    /**
+     * Touches the session while holding the registry so that it can't be evicted between being looked up and touched
+     *
+     * @return the session in the channel, reloading it if it was evicted. Null if there's no session
+     */
+    public synchronized PomodoroSession get(JDA jda, long channelId, Instant touchTime) {
+        PomodoroSession session = liveSessions.get(channelId);
+        if (session != null) {
+            session.touch(touchTime);
+            return session;
+        }
+        if (!evictedChannelIds.containsKey(channelId)) {
+            return null;
+        }
+        evictedChannelIds.remove(channelId);
+        TextChannel channel = jda.getTextChannelById(channelId);
+        PomodoroSessionSnapshot snapshot = DatabaseWrapper
+                .getData(String.valueOf(channelId), PomodoroSessionSnapshot.class);
+        if (channel == null || snapshot == null) {
+            DatabaseWrapper.deleteData(String.valueOf(channelId), PomodoroSessionSnapshot.class);
+            return null;
+        }
+        // Only independent sessions are evicted
+        session = new PomodoroSession(snapshot, channel);
+        session.touch(touchTime);
+        liveSessions.put(channelId, session);
+        reloads++;
+        return session;
+    }
+
+    /**
+     * @return true if there's a session in the channel, whether it's in memory or not
+     */
+    public synchronized boolean contains(long channelId) {
+        return liveSessions.containsKey(channelId) || evictedChannelIds.containsKey(channelId);
+    }
+
+    /**
+     * Call before creating a session so that nothing is sent to Discord if it can't be added
+     *
+     * @throws BadUserInputException if there are already {@link SessionLimits#getMaxSessions()} sessions in memory
+     */
+    public synchronized void checkCapacity() {
+        if (liveSessions.size() >= SessionLimits.getMaxSessions()) {
+            throw new BadUserInputException(
+                    "There are too many pomodoro sessions running right now, please try again later");
+        }
+    }
+
+    /**
+     * @throws BadUserInputException if there are already {@link SessionLimits#getMaxSessions()} sessions in memory
+     */
+    public synchronized void add(PomodoroSession session) {
+        checkCapacity();
+        liveSessions.put(session.getChannelIdLong(), session);
+    }
+
+    /**
+     * Add a session without checking the limit (for sessions that already existed before the bot restarted)
+     */
+    public synchronized void restore(PomodoroSession session) {
+        liveSessions.put(session.getChannelIdLong(), session);
+    }
+
+    /**
+     * Add a session that already existed before the bot restarted as evicted, it's reloaded from its snapshot the next
+     * time it's looked up
+     */
+    public synchronized void restoreEvicted(long channelId, long mainMessageId) {
+        evictedChannelIds.put(channelId, mainMessageId);
+    }
+
+    public synchronized void remove(long channelId) {
+        liveSessions.remove(channelId);
+        evictedChannelIds.remove(channelId);
+    }
+
+    /**
+     * Drops every session, in memory or evicted, without saving them
+     */
+    public synchronized void clear() {
+        liveSessions.clear();
+        evictedChannelIds.clear();
+    }
+
+    /**
+     * @return true if there are no sessions in memory
+     */
+    public synchronized boolean isEmpty() {
+        return liveSessions.isEmpty();
+    }
+
+    /**
+     * @return a copy of the sessions in memory
+     */
+    public synchronized List<PomodoroSession> getLiveSessions() {
+        return liveSessions.values();
+    }
+
+    public synchronized int getLiveCount() {
+        return liveSessions.size();
+    }
+
+    public synchronized int getEvictedCount() {
+        return evictedChannelIds.size();
+    }
+
+    /**
+     * @return {evictions, reloads} since the registry was created
+     */
+    public synchronized long[] getStats() {
+        return new long[]{evictions, reloads};
+    }
+
+    /**
+     * Saves and evicts every session that is paused or not started and hasn't been touched for
+     * {@link SessionLimits#getIdleEvictionMinutes()}. Mirrored sessions stay in memory as their views share a state
+     * machine
+     * <p>
+     * The sessions are saved without holding the registry so lookups aren't held up by the database. A session is
+     * only evicted if it's still idle and saved afterwards, otherwise it's left for the next call
+     *
+     * @return number of sessions evicted
+     */
+    public int evictIdle(Instant currentTime) {
+        Instant idleSince = currentTime.minus(SessionLimits.getIdleEvictionMinutes(), ChronoUnit.MINUTES);
+        List<PomodoroSession> idle = new ArrayList<>();
+        synchronized (this) {
+            for (PomodoroSession session : liveSessions.values()) {
+                if (isIdle(session, idleSince)) {
+                    idle.add(session);
+                }
+            }
+        }
+        for (PomodoroSession session : idle) {
+            if (session.hasUnsavedChanges()) {
+                PomodoroSessionSnapshot previous = session.getSavedSnapshot();
+                DatabaseWrapper.saveData(session.getChannelId(), session.takeSnapshot(), previous);
+            }
+        }
+        int evicted = 0;
+        synchronized (this) {
+            for (PomodoroSession session : idle) {
+                if (liveSessions.get(session.getChannelIdLong()) != session || !isIdle(session, idleSince)
+                        || session.hasUnsavedChanges()) {
+                    continue;
+                }
+                liveSessions.remove(session.getChannelIdLong());
+                evictedChannelIds.put(session.getChannelIdLong(), session.getMessageIdLong());
+                evicted++;
+            }
+            evictions += evicted;
+        }
+        return evicted;
+    }
+
+    private static boolean isIdle(PomodoroSession session, Instant idleSince) {
+        SessionState state = session.getSessionState();
+        return (state == SessionState.PAUSED || state == SessionState.NOT_STARTED) && !session.isMirror()
+                && session.getViews().size() == 1 && session.getLastTouched().isBefore(idleSince);
+    }
+}
@@ -0,0 +1,88 @@
+package CoreBox;
+
+import ExceptionsBox.BadUserInputException;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the non-critical Discord work of timer transitions (embed renders, reaction panels, deleting old messages)
+ * over a window so that sessions which all transition on the same tick (e.g. everyone started on the hour) don't cause
+ * a burst of requests. Pings are not paced. Each session has at most one pending batch of work so its order is kept
+ */
+public class TransitionPacer {
+    public static final int maxWindowSeconds = 60;
+    private final Scheduler scheduler;
+    private final Random random = new Random();
+    /**
+     * 0 to carry out all work immediately
+     */
+    private volatile long windowMillis;
+    /*
+     * Stats
+     */
+    private long scheduledCount = 0;
+    private long immediateCount = 0;
+
+    public TransitionPacer(long windowMillis) {
+        this(windowMillis, createDefaultScheduler());
+    }
+
+    public TransitionPacer(long windowMillis, Scheduler scheduler) {
+        setWindowMillis(windowMillis);
+        this.scheduler = scheduler;
+    }
+
+    private static Scheduler createDefaultScheduler() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PomodoroTransitionPacer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return (task, delayMillis) -> executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @throws BadUserInputException if the window is negative or over {@link #maxWindowSeconds}
+     */
+    public void setWindowMillis(long windowMillis) {
+        if (windowMillis < 0 || windowMillis > maxWindowSeconds * 1000L) {
+            throw new BadUserInputException("Pacing window must be between 0 and " + maxWindowSeconds + " seconds");
+        }
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Carry out the session's pending work at a random point in the window
+     */
+    public void schedule(PomodoroSession session) {
+        long window = windowMillis;
+        if (window == 0) {
+            immediateCount++;
+            session.runPendingEffects();
+            return;
+        }
+        scheduledCount++;
+        scheduler.schedule(session::runPendingEffects, (long) (random.nextDouble() * window));
+    }
+
+    /**
+     * @return {paced batches, batches carried out immediately}
+     */
+    public long[] getStats() {
+        return new long[]{scheduledCount, immediateCount};
+    }
+
+    /**
+     * Runs a task after a delay (swappable so that pacing can be tested without waiting)
+     */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayMillis);
+    }
+}
@@ -1,23 +1,38 @@
 package TatsuyaCommands;
 
 import BotFrameworkBox.*;
+import CoreBox.LongMap;
+import CoreBox.PomodoroGuildBans;
 import CoreBox.PomodoroSession;
+import CoreBox.PomodoroSessionSnapshot;
+import CoreBox.PomodoroSettings;
 import CoreBox.PomodoroSession.SessionState;
+import CoreBox.SessionLimits;
+import CoreBox.SessionRegistry;
+import CoreBox.TransitionPacer;
 import ExceptionsBox.BadStateException;
 import ExceptionsBox.BadUserInputException;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.Permission;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
+import net.dv8tion.jda.api.entities.TextChannel;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.events.message.guild.react.GenericGuildMessageReactionEvent;
 import org.jetbrains.annotations.NotNull;
 
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static BotFrameworkBox.Bot.commandPrefix;
 
 /**
- * TODO Guild default settings for colours/thumbnails/default timings/auto pings, etc/banned members (db with key as guild ID then json data?)
  * TODO Admin settings - is there anything on the Member object that distinguishes permissions? Manage server?
  * member.hasPermission(Permission.MANAGE_SERVER, Permission.ADMINISTRATOR, Permission.MANAGE_CHANNEL);
  * TODO Stop if message is deleted
@@ -32,51 +47,70 @@ import static BotFrameworkBox.Bot.commandPrefix;
  * TODO Only count time if >2mins have passed
  * TODO Setting: change time format of start time displayed
  */
-public class PomodoroCommand extends AbstractCommand implements EmojiReactionCommand {
+public class PomodoroCommand extends AbstractCommand
+        implements EmojiReactionCommand, BotReadyCommand, DatabaseRestoredCommand {
     protected static final int defaultShortBump = 5;
     protected static final int defaultBigBump = 20;
-    private static final Map<String, PomodoroSession> sessionsByChannelId = new HashMap<>();
-    private static final Set<String> bannedMembers = new HashSet<>();
+    protected static final int defaultPacingWindowSeconds = 5;
+    /**
+     * Spreads out the non-ping work of timer transitions
+     */
+    private static final TransitionPacer transitionPacer = new TransitionPacer(defaultPacingWindowSeconds * 1000L);
+    private static final SessionRegistry sessions = new SessionRegistry();
+    /**
+     * Loaded from the database the first time each guild's bans are needed
+     */
+    private static final LongMap<PomodoroGuildBans> bansByGuildId = new LongMap<>();
+    private static final int guildDefaultsCacheSize = 1000;
+    /**
+     * Most recently used guilds' default settings, {@link PomodoroSettings#getDefault()} if the guild hasn't saved any
+     * so that those guilds don't go to the database either
+     */
+    private static final Map<Long, PomodoroSettings> guildDefaults = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, PomodoroSettings> eldest) {
+            return size() > guildDefaultsCacheSize;
+        }
+    };
+    private static long guildDefaultsHits = 0;
+    private static long guildDefaultsMisses = 0;
     private static final Map<Emoji, List<PomodoroSecondaryCommands>> emojiCommandMapping = getEmojiCommandMapping();
     public static String POMODORO_COMMAND = "pomodoro";
-    private static boolean updateThreadRunning = false;
+    private static final int updatePeriodSeconds = 20;
+    private static final ScheduledExecutorService updateExecutor = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "PomodoroUpdates");
+                thread.setDaemon(true);
+                return thread;
+            });
+    /**
+     * Set once the updates have been scheduled, they then run for as long as the bot does
+     */
+    private static final AtomicBoolean updatesScheduled = new AtomicBoolean(false);
     private static final Runnable updateRunnable = () -> {
-        updateThreadRunning = true;
-        Instant nextCheck = Instant.now();
-        while (!sessionsByChannelId.isEmpty() && updateThreadRunning) {
-            Instant currentTime = Instant.now();
-            if (nextCheck.isAfter(currentTime)) {
-                try {
-                    Thread.sleep(10 * 1000);
-                }
-                catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                continue;
-            }
-
-            Set<String> removeSessions = new HashSet<>();
-            for (Map.Entry<String, PomodoroSession> session : sessionsByChannelId.entrySet()) {
-                if (session.getValue().getSessionState() == SessionState.FINISHED) {
-                    removeSessions.add(session.getKey());
-                    continue;
+        Instant currentTime = Instant.now();
+        for (PomodoroSession session : sessions.getLiveSessions()) {
+            try {
+                // Mirrors are updated by their host
+                if (session.getSessionState() != SessionState.FINISHED && !session.isMirror()) {
+                    session.update(currentTime, transitionPacer);
                 }
-                session.getValue().update(currentTime, false);
-                if (session.getValue().getSessionState() == SessionState.FINISHED) {
-                    removeSessions.add(session.getKey());
+                if (session.getSessionState() == SessionState.FINISHED) {
+                    sessions.remove(session.getChannelIdLong());
                 }
+                saveSession(session);
             }
-            removeSessions.forEach(sessionsByChannelId::remove);
-
-            nextCheck = nextCheck.plus(20, ChronoUnit.SECONDS);
-            try {
-                Thread.sleep(10 * 1000);
-            }
-            catch (InterruptedException e) {
+            catch (RuntimeException e) {
+                // An exception would cancel every later update
                 e.printStackTrace();
             }
         }
-        updateThreadRunning = false;
+        try {
+            sessions.evictIdle(currentTime);
+        }
+        catch (RuntimeException e) {
+            e.printStackTrace();
+        }
     };
 
     private static Map<Emoji, List<PomodoroSecondaryCommands>> getEmojiCommandMapping() {
@@ -142,8 +176,193 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
         return emojis;
     }
 
-    private static PomodoroSession getSession(String channelId) {
-        PomodoroSession session = sessionsByChannelId.get(channelId);
+    /**
+     * Saves a snapshot of the session if anything has changed since it was last saved, removes it if it's finished
+     */
+    private static void saveSession(PomodoroSession session) {
+        if (session.getSessionState() == SessionState.FINISHED) {
+            DatabaseWrapper.deleteData(session.getChannelId(), PomodoroSessionSnapshot.class);
+        }
+        else if (session.hasUnsavedChanges()) {
+            // Only the parts of the snapshot that changed are written
+            PomodoroSessionSnapshot previous = session.getSavedSnapshot();
+            DatabaseWrapper.saveData(session.getChannelId(), session.takeSnapshot(), previous);
+        }
+    }
+
+    /**
+     * Brings back all sessions that were running when the bot last stopped. Sessions whose channel no longer exists
+     * are removed. Sessions that would be evicted anyway (paused or not started and not mirrored) and any beyond
+     * {@link SessionLimits#getMaxSessions()} are restored as evicted so they're only loaded when they're next used
+     *
+     * @return number of sessions restored
+     */
+    public static int restoreSessions(JDA jda) {
+        Map<String, PomodoroSessionSnapshot> snapshots = DatabaseWrapper.getAllData(PomodoroSessionSnapshot.class);
+        LongMap<Boolean> mirroredHostIds = new LongMap<>();
+        for (PomodoroSessionSnapshot snapshot : snapshots.values()) {
+            if (snapshot.getHostChannelId() != 0) {
+                mirroredHostIds.put(snapshot.getHostChannelId(), Boolean.TRUE);
+            }
+        }
+        int restored = 0;
+        // Hosts first so that mirrors have something to attach to
+        for (boolean restoringMirrors : new boolean[]{false, true}) {
+            for (Map.Entry<String, PomodoroSessionSnapshot> entry : snapshots.entrySet()) {
+                PomodoroSessionSnapshot snapshot = entry.getValue();
+                if ((snapshot.getHostChannelId() != 0) != restoringMirrors) {
+                    continue;
+                }
+                TextChannel channel = jda.getTextChannelById(snapshot.getChannelId());
+                if (channel == null || sessions.contains(snapshot.getChannelId())) {
+                    DatabaseWrapper.deleteData(entry.getKey(), PomodoroSessionSnapshot.class);
+                    continue;
+                }
+                SessionState state = snapshot.getSessionState();
+                boolean idle = (state == SessionState.PAUSED || state == SessionState.NOT_STARTED)
+                        && !restoringMirrors && !mirroredHostIds.containsKey(snapshot.getChannelId());
+                // Evicted mirrors are reloaded as independent sessions, the same as when their host is gone
+                if (idle || sessions.getLiveCount() >= SessionLimits.getMaxSessions()) {
+                    sessions.restoreEvicted(snapshot.getChannelId(), snapshot.getMainMessageId());
+                    restored++;
+                    continue;
+                }
+                // If the host is gone the mirror carries on by itself
+                PomodoroSession host = null;
+                if (restoringMirrors) {
+                    host = sessions.getLive(snapshot.getHostChannelId());
+                }
+                sessions.restore(new PomodoroSession(snapshot, channel, host));
+                restored++;
+            }
+        }
+        if (restored > 0) {
+            startUpdates();
+        }
+        return restored;
+    }
+
+    /**
+     * Loads the default settings of the guilds the bot is in (as many as fit in the cache) in bulk so that the first
+     * session in each guild doesn't wait on its own query
+     */
+    public static void warmGuildDefaults(JDA jda) {
+        List<String> guildIds = new ArrayList<>();
+        for (Guild guild : jda.getGuilds()) {
+            if (guildIds.size() >= guildDefaultsCacheSize) {
+                break;
+            }
+            guildIds.add(guild.getId());
+            guildDefaults.put(guild.getIdLong(), PomodoroSettings.getDefault());
+        }
+        DatabaseWrapper.<PomodoroSettings, PomodoroSettings>getAll(guildIds, PomodoroSettings.class,
+                (guildId, defaults) -> guildDefaults.put(Long.parseLong(guildId), defaults)
+        );
+    }
+
+    private static void startUpdates() {
+        if (updatesScheduled.compareAndSet(false, true)) {
+            updateExecutor.scheduleWithFixedDelay(updateRunnable, 0, updatePeriodSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * @return the guild's bans, loading them from the database if they haven't been used since the bot started
+     */
+    private static PomodoroGuildBans getBans(long guildId) {
+        PomodoroGuildBans bans = bansByGuildId.get(guildId);
+        if (bans == null) {
+            bans = DatabaseWrapper.getData(String.valueOf(guildId), PomodoroGuildBans.class);
+            if (bans == null) {
+                bans = new PomodoroGuildBans();
+            }
+            bansByGuildId.put(guildId, bans);
+        }
+        return bans;
+    }
+
+    /**
+     * @return the settings new sessions in the guild start from
+     */
+    public static PomodoroSettings getGuildDefaults(long guildId) {
+        PomodoroSettings defaults = guildDefaults.get(guildId);
+        if (defaults != null) {
+            guildDefaultsHits++;
+            return defaults;
+        }
+        guildDefaultsMisses++;
+        defaults = DatabaseWrapper.getData(String.valueOf(guildId), PomodoroSettings.class);
+        if (defaults == null) {
+            defaults = PomodoroSettings.getDefault();
+        }
+        guildDefaults.put(guildId, defaults);
+        return defaults;
+    }
+
+    /**
+     * Saving the bot's defaults removes the guild's entry. Saving the defaults the guild already has writes nothing
+     *
+     * @return completed once the defaults have been written to the database
+     */
+    public static CompletableFuture<Void> saveGuildDefaults(long guildId, PomodoroSettings defaults) {
+        CompletableFuture<Void> written;
+        if (defaults.equals(PomodoroSettings.getDefault())) {
+            written = DatabaseWrapper.deleteDataAsync(String.valueOf(guildId), PomodoroSettings.class);
+        }
+        else {
+            written = DatabaseWrapper.saveDataAsync(String.valueOf(guildId), defaults, guildDefaults.get(guildId));
+        }
+        guildDefaults.remove(guildId);
+        return written;
+    }
+
+    /**
+     * @return {hits, misses} of the guild defaults cache since the bot started
+     */
+    public static long[] getGuildDefaultsCacheStats() {
+        return new long[]{guildDefaultsHits, guildDefaultsMisses};
+    }
+
+    private static void saveBans(long guildId, PomodoroGuildBans bans) {
+        if (bans.isEmpty()) {
+            DatabaseWrapper.deleteData(String.valueOf(guildId), PomodoroGuildBans.class);
+        }
+        else {
+            DatabaseWrapper.saveData(String.valueOf(guildId), bans);
+        }
+    }
+
+    /**
+     * @param args member mentions and/or ids separated by whitespace or commas. Ids allow members who have already
+     *             left (e.g. after a raid) to be banned
+     * @return the member ids
+     */
+    private static long[] parseMemberIds(String args) {
+        String[] tokens = args.replace(',', ' ').trim().split("\\s+");
+        if (tokens.length == 0 || tokens[0].isEmpty()) {
+            throw new BadUserInputException("No members mentioned");
+        }
+        long[] ids = new long[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            String id = tokens[i];
+            if (id.startsWith("<@") && id.endsWith(">")) {
+                id = id.substring(id.startsWith("<@!") ? 3 : 2, id.length() - 1);
+            }
+            try {
+                ids[i] = Long.parseUnsignedLong(id);
+            }
+            catch (NumberFormatException e) {
+                throw new BadUserInputException("Not a member mention or id: " + tokens[i]);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Reloads the session if it was evicted and marks it as in use
+     */
+    private static PomodoroSession getSession(TextChannel channel) {
+        PomodoroSession session = sessions.get(channel.getJDA(), channel.getIdLong(), Instant.now());
         if (session == null) {
             throw new BadUserInputException(
                     "There's no session in this channel, try " + commandPrefix + POMODORO_COMMAND + " "
@@ -174,7 +393,49 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
     @Override
     public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
         checkPermission(event.getMember());
-        executeSecondaryArgument(PomodoroSecondaryCommands.class, 1, args, event);
+        try {
+            executeSecondaryArgument(PomodoroSecondaryCommands.class, 1, args, event);
+        }
+        finally {
+            PomodoroSession session = sessions.getLive(event.getChannel().getIdLong());
+            if (session != null) {
+                saveSession(session);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onBotReady(JDA jda) {
+        restoreSessions(jda);
+        warmGuildDefaults(jda);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDatabaseRestoring() {
+        try {
+            // On the update thread so that an update in progress can't save a session after it's been dropped
+            updateExecutor.submit(sessions::clear).get();
+        }
+        catch (InterruptedException | ExecutionException e) {
+            throw new BadStateException("Couldn't drop the pomodoro sessions before restoring");
+        }
+        bansByGuildId.clear();
+        guildDefaults.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDatabaseRestored(JDA jda) {
+        restoreSessions(jda);
+        warmGuildDefaults(jda);
     }
 
     /**
@@ -214,17 +475,17 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
      */
     @Override
     public boolean executeFromAddReaction(GenericGuildMessageReactionEvent event) {
+        // Only look at emojis on a pomodoro message, checked first so other reactions don't reload or touch sessions
+        if (!sessions.isMainMessage(event.getChannel().getIdLong(), event.getMessageIdLong())) {
+            return false;
+        }
         PomodoroSession session;
         try {
-            session = getSession(event.getChannel().getId());
+            session = getSession(event.getChannel());
         }
         catch (BadUserInputException e) {
             return false;
         }
-        // Only look at emojis on a pomodoro message
-        if (!session.getMessageId().equals(event.getMessageId())) {
-            return false;
-        }
         Optional<Emoji> emoji = Emoji.getFromMessageReaction(event.getReaction());
         // Check the emoji is recognised by this command
         if (emoji.isEmpty() || !emojiCommandMapping.containsKey(emoji.get())) {
@@ -259,6 +520,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
         if (command.removeEmoji()) {
             session.removeEmoji(event.getReactionEmote().getEmoji(), event.getUser());
         }
+        saveSession(session);
         return true;
     }
 
@@ -281,18 +543,17 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                String channelId = event.getChannel().getId();
-                if (sessionsByChannelId.containsKey(channelId)) {
+                long channelId = event.getChannel().getIdLong();
+                if (sessions.contains(channelId)) {
                     throw new BadUserInputException("This channel already has a pomodoro session going on");
                 }
+                sessions.checkCapacity();
 
-                PomodoroSession session = new PomodoroSession(event.getMember(), event.getChannel(), args,
-                        Instant.now()
+                PomodoroSession session = new PomodoroSession(event.getMember(), event.getTextChannel(),
+                        getGuildDefaults(event.getGuild().getIdLong()), args, Instant.now()
                 );
-                sessionsByChannelId.put(channelId, session);
-                if (!updateThreadRunning) {
-                    new Thread(updateRunnable).start();
-                }
+                sessions.add(session);
+                startUpdates();
             }
 
             /**
@@ -312,13 +573,85 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
                         + "[auto:on] [delete:on] [images:on]";
             }
         },
+        MIRROR {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
+                long channelId = event.getChannel().getIdLong();
+                if (sessions.contains(channelId)) {
+                    throw new BadUserInputException("This channel already has a pomodoro session going on");
+                }
+                sessions.checkCapacity();
+                List<TextChannel> mentionedChannels = event.getMessage().getMentionedChannels();
+                long sourceChannelId;
+                if (!mentionedChannels.isEmpty()) {
+                    sourceChannelId = mentionedChannels.get(0).getIdLong();
+                }
+                else if (args.trim().matches("[0-9]{1,19}")) {
+                    sourceChannelId = Long.parseUnsignedLong(args.trim());
+                }
+                else {
+                    throw new BadUserInputException("Mention the channel to mirror or give its id");
+                }
+                // Checked before the session is looked up so other servers' channels can't be looked into
+                TextChannel sourceChannel = event.getJDA().getTextChannelById(sourceChannelId);
+                if (sourceChannel == null || !canMirrorFrom(sourceChannel, event.getMember())) {
+                    throw new BadUserInputException("There's no session in that channel to mirror");
+                }
+                PomodoroSession source = sessions.get(event.getJDA(), sourceChannelId, Instant.now());
+                if (source == null) {
+                    throw new BadUserInputException("There's no session in that channel to mirror");
+                }
+
+                PomodoroSession mirror = new PomodoroSession(source, event.getMember(), event.getTextChannel(),
+                        Instant.now()
+                );
+                sessions.add(mirror);
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String getDescription() {
+                return "Show another channel's session here, it can be in another server if you're a member there "
+                        + "who can see the channel. Everything but the ping party and what people are working on is "
+                        + "shared, only the original channel can change the timer or settings";
+            }
+
+            /**
+             * Channels in other servers can only be mirrored by someone who is a member there (and not banned) and can
+             * see the channel, so a mirror doesn't show anything that its creator couldn't see anyway
+             */
+            private boolean canMirrorFrom(TextChannel sourceChannel, Member member) {
+                if (sourceChannel.getGuild().getIdLong() == member.getGuild().getIdLong()) {
+                    return true;
+                }
+                Member sourceMember = sourceChannel.getGuild().getMemberById(member.getIdLong());
+                if (sourceMember == null || !sourceMember.hasPermission(sourceChannel, Permission.VIEW_CHANNEL)) {
+                    return false;
+                }
+                checkPermission(sourceMember, getRequiredRank());
+                return true;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String getArguments() {
+                return "{#channel or channel id}";
+            }
+        },
         JOIN {
             /**
              * {@inheritDoc}
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                PomodoroSession session = getSession(event.getChannel().getId());
+                PomodoroSession session = getSession(event.getTextChannel());
                 boolean ping = true;
                 String noPing = "noPing";
                 if (args.startsWith(noPing)) {
@@ -326,7 +659,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
                     ping = false;
                 }
 
-                boolean isBanned = bannedMembers.contains(event.getMember().getId());
+                boolean isBanned = getBans(event.getGuild().getIdLong()).contains(event.getMember().getIdLong());
                 if (args.isEmpty() || isBanned) {
                     session.getParticipants().addParticipant(event.getMember(), ping);
                     if (!args.isEmpty()) {
@@ -396,7 +729,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                emojiExecute(getSession(event.getChannel().getId()), event.getMember());
+                emojiExecute(getSession(event.getTextChannel()), event.getMember());
             }
 
             /**
@@ -446,8 +779,9 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                PomodoroSession session = getSession(event.getChannel().getId());
-                session.getSettings().setFromArgs(args);
+                PomodoroSession session = getSession(event.getTextChannel());
+                checkIsHost(session);
+                session.userUpdateSettings(args);
                 session.update(Instant.now(), false);
                 sendMessage(event.getChannel(), "Settings updated");
             }
@@ -474,7 +808,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                PomodoroSession session = getSession(event.getChannel().getId());
+                PomodoroSession session = getSession(event.getTextChannel());
                 sendMessage(event.getChannel(), session.getCurrentStateTimeLeftAsString(Instant.now()));
             }
 
@@ -492,7 +826,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                emojiExecute(getSession(event.getChannel().getId()), event.getMember());
+                emojiExecute(getSession(event.getTextChannel()), event.getMember());
             }
 
             /**
@@ -516,6 +850,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void emojiExecute(PomodoroSession session, Member member) {
+                checkIsHost(session);
                 session.userStartSession(Instant.now());
             }
 
@@ -533,7 +868,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                emojiExecute(getSession(event.getChannel().getId()), event.getMember());
+                emojiExecute(getSession(event.getTextChannel()), event.getMember());
             }
 
             /**
@@ -557,6 +892,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void emojiExecute(PomodoroSession session, Member member) {
+                checkIsHost(session);
                 session.userPauseSession(Instant.now());
             }
 
@@ -574,7 +910,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                emojiExecute(getSession(event.getChannel().getId()), event.getMember());
+                emojiExecute(getSession(event.getTextChannel()), event.getMember());
             }
 
             /**
@@ -598,6 +934,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void emojiExecute(PomodoroSession session, Member member) {
+                checkIsHost(session);
                 session.userResumeSession(Instant.now());
             }
 
@@ -615,7 +952,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                emojiExecute(getSession(event.getChannel().getId()), event.getMember());
+                emojiExecute(getSession(event.getTextChannel()), event.getMember());
             }
 
             /**
@@ -639,6 +976,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void emojiExecute(PomodoroSession session, Member member) {
+                checkIsHost(session);
                 session.update(Instant.now(), true);
             }
 
@@ -656,7 +994,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                emojiExecute(getSession(event.getChannel().getId()), event.getMember());
+                emojiExecute(getSession(event.getTextChannel()), event.getMember());
             }
 
             /**
@@ -680,6 +1018,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void emojiExecute(PomodoroSession session, Member member) {
+                checkIsHost(session);
                 session.resetTimeOnCurrentState(Instant.now());
             }
 
@@ -705,7 +1044,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                PomodoroSession session = getSession(event.getChannel().getId());
+                PomodoroSession session = getSession(event.getTextChannel());
                 bump(args, defaultShortBump, true, session);
             }
 
@@ -763,7 +1102,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                PomodoroSession session = getSession(event.getChannel().getId());
+                PomodoroSession session = getSession(event.getTextChannel());
                 bump(args, defaultBigBump, true, session);
             }
 
@@ -821,7 +1160,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                PomodoroSession session = getSession(event.getChannel().getId());
+                PomodoroSession session = getSession(event.getTextChannel());
                 bump(args, defaultShortBump, false, session);
             }
 
@@ -879,7 +1218,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                PomodoroSession session = getSession(event.getChannel().getId());
+                PomodoroSession session = getSession(event.getTextChannel());
                 bump(args, defaultBigBump, false, session);
             }
 
@@ -937,7 +1276,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                emojiExecute(getSession(event.getChannel().getId()), event.getMember());
+                emojiExecute(getSession(event.getTextChannel()), event.getMember());
             }
 
             /**
@@ -961,8 +1300,22 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void emojiExecute(PomodoroSession session, Member member) {
+                // Stopping a mirror only stops this channel's view
+                if (session.isMirror()) {
+                    session.unlink();
+                    sessions.remove(session.getChannelIdLong());
+                    DatabaseWrapper.deleteData(session.getChannelId(), PomodoroSessionSnapshot.class);
+                    TextChannel channel = session.getChannel();
+                    if (channel != null) {
+                        sendMessage(channel, "This channel is no longer mirroring the session");
+                    }
+                    return;
+                }
                 session.userStopSession(Instant.now());
-                sessionsByChannelId.remove(session.getChannelId());
+                for (PomodoroSession view : session.getViews()) {
+                    sessions.remove(view.getChannelIdLong());
+                    saveSession(view);
+                }
             }
 
             /**
@@ -979,7 +1332,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                PomodoroSession session = getSession(event.getChannel().getId());
+                PomodoroSession session = getSession(event.getTextChannel());
                 sendMessage(event.getChannel(), session.getSessionSettingsString(false));
             }
 
@@ -991,23 +1344,51 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
                 return "Get the current session settings";
             }
         },
+        SET_DEFAULT {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
+                PomodoroSession session = getSession(event.getTextChannel());
+                // Confirmed once it's been written rather than holding up the event thread
+                saveGuildDefaults(event.getGuild().getIdLong(), session.getSettings()).whenComplete(
+                        (ignored, e) -> sendMessage(event.getChannel(), e == null
+                                ? "New sessions in this server will now start with these settings"
+                                : "Failed to save the defaults, please try again"
+                        ));
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String getDescription() {
+                return "Use this session's settings as the defaults for new sessions in this server";
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public Rank getRequiredRank() {
+                return Rank.ADMIN;
+            }
+        },
         BAN {
             /**
              * {@inheritDoc}
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                List<Member> mentions = event.getMessage().getMentionedMembers();
-                if (mentions.isEmpty()) {
-                    throw new BadUserInputException("No members mentioned");
-                }
-                for (Member member : mentions) {
-                    bannedMembers.add(member.getId());
+                long guildId = event.getGuild().getIdLong();
+                PomodoroGuildBans bans = getBans(guildId);
+                int changed = bans.addAll(parseMemberIds(args));
+                if (changed > 0) {
+                    saveBans(guildId, bans);
                 }
                 sendMessage(event.getChannel(),
-                        String.format("%s member%s banned from posting statuses", mentions.size(),
-                                mentions.size() != 1 ? "s" : ""
-                        )
+                        String.format("%d member%s banned from posting statuses", changed, changed != 1 ? "s" : "")
                 );
             }
 
@@ -1032,7 +1413,7 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public String getArguments() {
-                return "@bannedMember";
+                return "{@member or member id} ...";
             }
         },
         UNBAN {
@@ -1041,17 +1422,14 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
-                List<Member> mentions = event.getMessage().getMentionedMembers();
-                if (mentions.isEmpty()) {
-                    throw new BadUserInputException("No members mentioned");
-                }
-                for (Member member : mentions) {
-                    bannedMembers.remove(member.getId());
+                long guildId = event.getGuild().getIdLong();
+                PomodoroGuildBans bans = getBans(guildId);
+                int changed = bans.removeAll(parseMemberIds(args));
+                if (changed > 0) {
+                    saveBans(guildId, bans);
                 }
                 sendMessage(event.getChannel(),
-                        String.format("%s member%s unbanned from posting statuses", mentions.size(),
-                                mentions.size() != 1 ? "s" : ""
-                        )
+                        String.format("%d member%s unbanned from posting statuses", changed, changed != 1 ? "s" : "")
                 );
             }
 
@@ -1076,11 +1454,128 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
              */
             @Override
             public String getArguments() {
-                return "@bannedMember";
+                return "{@member or member id} ...";
+            }
+        },
+        PACING {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
+                if (!args.isBlank()) {
+                    try {
+                        transitionPacer.setWindowMillis(Integer.parseInt(args.trim()) * 1000L);
+                    }
+                    catch (NumberFormatException e) {
+                        throw new BadUserInputException("Argument must be a number");
+                    }
+                }
+                long[] stats = transitionPacer.getStats();
+                sendMessage(event.getChannel(),
+                        String.format("Transition work is spread over %d seconds (%d paced, %d immediate)",
+                                transitionPacer.getWindowMillis() / 1000, stats[0], stats[1]
+                        )
+                );
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String getDescription() {
+                return "View or set how long timer transitions can spread their message updates over (0 to turn off)";
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public Rank getRequiredRank() {
+                return Rank.CREATOR;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String getArguments() {
+                return "[seconds]";
+            }
+        },
+        LIMITS {
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void execute(@NotNull String args, @NotNull MessageReceivedEvent event) {
+                if (!args.isBlank()) {
+                    String[] split = args.trim().split("\\s+");
+                    if (split.length != 2) {
+                        throw new BadUserInputException("Give the limit to change and its new value");
+                    }
+                    int value;
+                    try {
+                        value = Integer.parseInt(split[1]);
+                    }
+                    catch (NumberFormatException e) {
+                        throw new BadUserInputException("Limit must be a number");
+                    }
+                    switch (split[0].toLowerCase()) {
+                        case "sessions":
+                            SessionLimits.setMaxSessions(value);
+                            break;
+                        case "participants":
+                            SessionLimits.setMaxParticipants(value);
+                            break;
+                        case "timers":
+                            SessionLimits.setMaxCompletedItems(value);
+                            break;
+                        case "idle":
+                            SessionLimits.setIdleEvictionMinutes(value);
+                            break;
+                        default:
+                            throw new BadUserInputException("Unknown limit: " + split[0]);
+                    }
+                }
+                long[] stats = sessions.getStats();
+                sendMessage(event.getChannel(), String.format(
+                        "Sessions: %d in memory, %d evicted (%d evictions, %d reloads)\n"
+                                + "Limits: %d sessions, %d participants per session, %d timers per session, "
+                                + "evict after %d idle minutes",
+                        sessions.getLiveCount(), sessions.getEvictedCount(), stats[0], stats[1],
+                        SessionLimits.getMaxSessions(), SessionLimits.getMaxParticipants(),
+                        SessionLimits.getMaxCompletedItems(), SessionLimits.getIdleEvictionMinutes()
+                ));
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String getDescription() {
+                return "View session counts or change the limits on sessions";
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public Rank getRequiredRank() {
+                return Rank.CREATOR;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public String getArguments() {
+                return "[{sessions/participants/timers/idle} {value}]";
             }
         };
 
         private static void bump(String stringAmount, int defaultAmount, boolean increase, PomodoroSession session) {
+            checkIsHost(session);
             int amount = defaultAmount;
             if (stringAmount != null && !stringAmount.isBlank()) {
                 try {
@@ -1098,6 +1593,18 @@ public class PomodoroCommand extends AbstractCommand implements EmojiReactionCom
             }
         }
 
+        /**
+         * Mirrors share the host's timeline and settings so only the host's channel can change them
+         *
+         * @throws BadUserInputException if the session is a mirror
+         */
+        private static void checkIsHost(PomodoroSession session) {
+            if (session.isMirror()) {
+                throw new BadUserInputException("This channel is mirroring another session, only the original channel "
+                        + "can change it");
+            }
+        }
+
         /**
          * {@inheritDoc}
          */
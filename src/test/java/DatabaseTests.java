@@ -1,9 +1,19 @@
+import BotFrameworkBox.BinaryCodec;
+import BotFrameworkBox.BinaryReader;
+import BotFrameworkBox.BinaryWriter;
+import BotFrameworkBox.Bot;
+import BotFrameworkBox.DatabaseCache;
 import BotFrameworkBox.DatabaseEntryType;
+import BotFrameworkBox.DatabaseMigrations;
 import BotFrameworkBox.DatabaseWrapper;
+import BotFrameworkBox.StorageType;
 import CoreBox.DatabaseEntryHelper;
+import CoreBox.PomodoroSettings;
 import ExceptionsBox.BadStateException;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSerializer;
@@ -12,8 +22,27 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("ConstantConditions")
 public class DatabaseTests {
@@ -42,12 +71,17 @@ public class DatabaseTests {
                 }
             }
     );
+    /**
+     * The test database, for checking what's actually in the rows
+     */
+    private static final String rawDatabaseUrl = "jdbc:sqlite:" + Bot.getPathToTatsuyaBot() + "TestTatsuya.db";
     private static BiMap<Integer, Class> databaseEntryTypes;
     public DatabaseTests() { }
 
     @BeforeEach
     public void setup() {
         DatabaseWrapper.setTestMode();
+        DatabaseWrapper.setStorageType(StorageType.SQLITE);
         databaseEntryTypes = HashBiMap.create();
         databaseEntryTypes.put(1, TestHelperObjects.WellFormed.class);
         // Reserved key: 99 for bad data
@@ -144,6 +178,757 @@ public class DatabaseTests {
                 .assertThrows(BadStateException.class, () -> DatabaseWrapper.setDatabaseEntryTypes(databaseEntryTypes));
     }
 
+    /**
+     * A database from before migrations existed should be brought up to date without losing data, and migrations
+     * shouldn't run again once they've been applied
+     */
+    @Test
+    public void migrations() throws SQLException {
+        File file = new File("TestMigrations.db");
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath())) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("CREATE TABLE blobs (guildId text NOT NULL, entryType int NOT NULL, entry text NOT NULL,"
+                        + " CONSTRAINT PK_blobs PRIMARY KEY(guildId, entryType))");
+                stmt.execute("INSERT INTO blobs VALUES ('" + guild + "', 1, '{}')");
+            }
+            Assertions.assertEquals(DatabaseMigrations.getLatestVersion(), DatabaseMigrations.migrate(connection));
+            Assertions.assertEquals(DatabaseMigrations.getLatestVersion(), DatabaseMigrations.getVersion(connection));
+            Assertions.assertEquals(DatabaseMigrations.getLatestVersion(), DatabaseMigrations.migrate(connection));
+            try (Statement stmt = connection.createStatement()) {
+                ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM schema_version");
+                Assertions.assertEquals(1, rs.getInt(1));
+                rs = stmt.executeQuery("SELECT COUNT(*) FROM blobs");
+                Assertions.assertEquals(1, rs.getInt(1));
+            }
+
+            // Newer than the code
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("UPDATE schema_version SET version = " + (DatabaseMigrations.getLatestVersion() + 1));
+            }
+            Assertions.assertThrows(BadStateException.class, () -> DatabaseMigrations.migrate(connection));
+        }
+        finally {
+            Assertions.assertTrue(!file.exists() || file.delete());
+        }
+    }
+
+    /**
+     * Measures the time for a save then get of the same entry, the round trip most commands make
+     */
+    @Test
+    public void roundTripThroughput() {
+        final int roundTrips = 20000;
+        // Warm up so that the JIT has compiled everything being measured
+        roundTrips(2000);
+        long startNanos = System.nanoTime();
+        roundTrips(roundTrips);
+        long elapsedNanos = System.nanoTime() - startNanos;
+        System.out.println(String.format("Database round trip: %.1f us (%d round trips)",
+                elapsedNanos / 1000.0 / roundTrips, roundTrips
+        ));
+    }
+
+    private static void roundTrips(int count) {
+        for (int i = 0; i < count; i++) {
+            String roundTripGuild = guild + (i % 100);
+            DatabaseWrapper.saveData(roundTripGuild, testData1);
+            Assertions.assertEquals(testData1,
+                    DatabaseWrapper.getData(roundTripGuild, TestHelperObjects.WellFormed.class)
+            );
+        }
+    }
+
+    /**
+     * Saves are readable straight away, merged while they're queued and written when the database is closed
+     */
+    @Test
+    public void cacheWriteBehind() {
+        DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class);
+        for (int i = 0; i < 100; i++) {
+            DatabaseWrapper.saveData(guild, new TestHelperObjects.WellFormed(i, "TestData", Set.of()));
+        }
+        DatabaseWrapper.saveData(guild + "deleted", testData2);
+        DatabaseWrapper.deleteData(guild + "deleted", TestHelperObjects.WellFormed.class);
+        Assertions.assertEquals(99,
+                DatabaseWrapper.<TestHelperObjects.WellFormed, TestHelperObjects.WellFormed>getData(guild,
+                        TestHelperObjects.WellFormed.class
+                ).integerItem
+        );
+        Assertions.assertNull(DatabaseWrapper.getData(guild + "deleted", TestHelperObjects.WellFormed.class));
+
+        DatabaseWrapper.flush();
+        DatabaseCache.Stats stats = DatabaseWrapper.getCacheStats();
+        Assertions.assertEquals(0, stats.queued);
+        // Every save of a guild before a flush is merged into one write
+        Assertions.assertTrue(stats.flushedEntries <= 2 * stats.flushes);
+        Assertions.assertEquals(2.0 / 3, stats.getHitRatio(), 0.01);
+        System.out.println(stats);
+
+        DatabaseWrapper.saveData(guild, testData1);
+        DatabaseWrapper.closeConnection();
+        Assertions.assertEquals(testData1, DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class));
+        Assertions.assertNull(DatabaseWrapper.getData(guild + "deleted", TestHelperObjects.WellFormed.class));
+    }
+
+    /**
+     * Saves with a previous value should only write the changed fields and saves of what's already stored should be
+     * skipped
+     */
+    @Test
+    public void partialSaves() throws SQLException {
+        TestHelperObjects.WellFormed renamed = new TestHelperObjects.WellFormed(20, "Renamed", testData1.setItem);
+        DatabaseWrapper.saveData(guild, testData1);
+        DatabaseWrapper.flush();
+        DatabaseWrapper.saveData(guild, renamed, testData1);
+        DatabaseWrapper.flush();
+        DatabaseCache.Stats stats = DatabaseWrapper.getCacheStats();
+        Assertions.assertEquals(1, stats.partialEntries);
+        Assertions.assertTrue(readRawEntry(guild).contains("\"stringItem\":\"Renamed\""));
+
+        // Nothing has changed
+        DatabaseWrapper.saveData(guild, renamed, renamed);
+        DatabaseWrapper.saveData(guild, new TestHelperObjects.WellFormed(20, "Renamed", testData1.setItem));
+        DatabaseWrapper.flush();
+        Assertions.assertEquals(stats.flushes, DatabaseWrapper.getCacheStats().flushes);
+        Assertions.assertEquals(2, DatabaseWrapper.getCacheStats().skippedSaves);
+
+        // Partial saves before a flush are merged, a removed field is removed from the row
+        TestHelperObjects.WellFormed renumbered = new TestHelperObjects.WellFormed(21, "Renamed", testData1.setItem);
+        TestHelperObjects.WellFormed noString = new TestHelperObjects.WellFormed(21, null, testData1.setItem);
+        DatabaseWrapper.saveData(guild, renumbered, renamed);
+        DatabaseWrapper.saveData(guild, noString, renumbered);
+        DatabaseWrapper.flush();
+        Assertions.assertEquals(2, DatabaseWrapper.getCacheStats().partialEntries);
+        String raw = readRawEntry(guild);
+        Assertions.assertTrue(raw.contains("\"integerItem\":21"));
+        Assertions.assertFalse(raw.contains("stringItem"));
+        Assertions.assertTrue(raw.contains("Item1"));
+
+        // A previous that isn't what's stored writes the whole entry
+        DatabaseWrapper.saveData(guild, testData2, testData1);
+        DatabaseWrapper.flush();
+        Assertions.assertEquals(2, DatabaseWrapper.getCacheStats().partialEntries);
+
+        // The row was removed behind the cache's back so the changes can't be applied
+        try (Connection connection = DriverManager.getConnection(rawDatabaseUrl);
+                Statement stmt = connection.createStatement()) {
+            stmt.execute("DELETE FROM blobs");
+        }
+        DatabaseWrapper.saveData(guild, testData1, testData2);
+        DatabaseWrapper.closeConnection();
+        Assertions.assertEquals(testData1, DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class));
+    }
+
+    /**
+     * @return the entry column of the {@link TestHelperObjects.WellFormed} row
+     */
+    private static String readRawEntry(String guild) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(rawDatabaseUrl);
+                Statement stmt = connection.createStatement()) {
+            ResultSet rs = stmt.executeQuery(
+                    "SELECT entry FROM blobs WHERE entryType = 1 AND guildId = '" + guild + "'");
+            Assertions.assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+
+    /**
+     * Async gets of the same entry share the query but not the object, async saves complete once they're written
+     */
+    @Test
+    public void asyncGetAndSave() {
+        DatabaseWrapper.saveDataAsync(guild, testData1).join();
+        // Written to the database so reopening it leaves nothing cached
+        DatabaseWrapper.closeConnection();
+
+        List<CompletableFuture<TestHelperObjects.WellFormed>> gets = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            gets.add(DatabaseWrapper.getDataAsync(guild, TestHelperObjects.WellFormed.class));
+        }
+        Set<TestHelperObjects.WellFormed> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (CompletableFuture<TestHelperObjects.WellFormed> get : gets) {
+            Assertions.assertEquals(testData1, get.join());
+            distinct.add(get.join());
+        }
+        Assertions.assertEquals(gets.size(), distinct.size());
+        DatabaseCache.Stats stats = DatabaseWrapper.getCacheStats();
+        System.out.println(stats);
+        Assertions.assertEquals(gets.size(), stats.hits + stats.misses);
+
+        DatabaseWrapper.deleteDataAsync(guild, TestHelperObjects.WellFormed.class).join();
+        DatabaseWrapper.closeConnection();
+        Assertions.assertNull(DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class));
+    }
+
+    /**
+     * Saves and loads many guilds at once, compared with loading them one at a time
+     */
+    @Test
+    public void bulkLoadAndSave() {
+        final int guildCount = 2000;
+        Map<String, TestHelperObjects.WellFormed> saves = new HashMap<>();
+        List<String> guilds = new ArrayList<>();
+        for (int i = 0; i < guildCount; i++) {
+            saves.put(guild + i, new TestHelperObjects.WellFormed(i, guild + i, Set.of()));
+            guilds.add(guild + i);
+        }
+        // Guilds with no entry are skipped
+        guilds.add(guild + "missing");
+        DatabaseWrapper.saveAll(saves);
+        DatabaseWrapper.closeConnection();
+        // Warm up so that the JIT has compiled both ways of loading
+        for (int i = 0; i < 3; i++) {
+            DatabaseWrapper.getAll(guilds, TestHelperObjects.WellFormed.class, (bulkGuild, entry) -> { });
+            DatabaseWrapper.closeConnection();
+            for (String bulkGuild : guilds) {
+                DatabaseWrapper.getData(bulkGuild, TestHelperObjects.WellFormed.class);
+            }
+            DatabaseWrapper.closeConnection();
+        }
+        // Opened outside of the timing
+        DatabaseWrapper.getData(guild + "missing", TestHelperObjects.WellFormed.class);
+
+        long startNanos = System.nanoTime();
+        Map<String, TestHelperObjects.WellFormed> loaded = new HashMap<>();
+        DatabaseWrapper.<TestHelperObjects.WellFormed, TestHelperObjects.WellFormed>getAll(guilds,
+                TestHelperObjects.WellFormed.class, loaded::put
+        );
+        long bulkNanos = System.nanoTime() - startNanos;
+        Assertions.assertEquals(saves, loaded);
+        // Everything loaded is cached
+        long misses = DatabaseWrapper.getCacheStats().misses;
+        Assertions.assertNull(DatabaseWrapper.getData(guild + "missing", TestHelperObjects.WellFormed.class));
+        Assertions.assertEquals(saves.get(guild + 0),
+                DatabaseWrapper.getData(guild + 0, TestHelperObjects.WellFormed.class)
+        );
+        Assertions.assertEquals(misses, DatabaseWrapper.getCacheStats().misses);
+
+        Map<Class, DatabaseEntryType> guildEntries = new HashMap<>();
+        DatabaseWrapper.getAllForGuild(guild + 1, guildEntries::put);
+        Assertions.assertEquals(Map.of(TestHelperObjects.WellFormed.class, saves.get(guild + 1)), guildEntries);
+
+        DatabaseWrapper.closeConnection();
+        DatabaseWrapper.getData(guild + "missing", TestHelperObjects.WellFormed.class);
+        startNanos = System.nanoTime();
+        for (String bulkGuild : guilds) {
+            DatabaseWrapper.getData(bulkGuild, TestHelperObjects.WellFormed.class);
+        }
+        long singleNanos = System.nanoTime() - startNanos;
+        System.out.println(String.format("Database load of %d guilds: bulk %d ms, one at a time %d ms", guilds.size(),
+                bulkNanos / 1000000, singleNanos / 1000000
+        ));
+    }
+
+    /**
+     * JSON and binary rows of the same type can be read side by side, large rows are compressed and binary rows
+     * survive fields being added but not a newer version
+     */
+    @Test
+    public void binaryEntries() {
+        final String longText = String.join(" ", Collections.nCopies(200, "compressible"));
+        TestHelperObjects.Evolving small = new TestHelperObjects.Evolving(-5, "small");
+        TestHelperObjects.Evolving large = new TestHelperObjects.Evolving(1 << 20, longText);
+        try {
+            setEvolvingMode(0);
+            DatabaseWrapper.saveData("json", small);
+            DatabaseWrapper.saveData("largeJson", large);
+            setEvolvingMode(1);
+            Assertions.assertEquals(small, DatabaseWrapper.getData("json", TestHelperObjects.Evolving.class));
+            Assertions.assertEquals(large, DatabaseWrapper.getData("largeJson", TestHelperObjects.Evolving.class));
+            DatabaseWrapper.saveData("binary", small);
+            DatabaseWrapper.saveData("largeBinary", large);
+            setEvolvingMode(2);
+            DatabaseWrapper.saveData("extraFields", small);
+            setEvolvingMode(1);
+            Assertions.assertEquals(small, DatabaseWrapper.getData("json", TestHelperObjects.Evolving.class));
+            Assertions.assertEquals(small, DatabaseWrapper.getData("binary", TestHelperObjects.Evolving.class));
+            Assertions.assertEquals(large, DatabaseWrapper.getData("largeBinary", TestHelperObjects.Evolving.class));
+            Assertions.assertEquals(small, DatabaseWrapper.getData("extraFields", TestHelperObjects.Evolving.class));
+
+            setEvolvingMode(3);
+            DatabaseWrapper.saveData("newerVersion", small);
+            setEvolvingMode(1);
+            Assertions.assertThrows(BadStateException.class,
+                    () -> DatabaseWrapper.getData("newerVersion", TestHelperObjects.Evolving.class)
+            );
+            // Binary rows can't be read once a type goes back to JSON
+            setEvolvingMode(0);
+            Assertions.assertThrows(BadStateException.class,
+                    () -> DatabaseWrapper.getData("binary", TestHelperObjects.Evolving.class)
+            );
+        }
+        finally {
+            TestHelperObjects.Evolving.binaryMode = 0;
+        }
+    }
+
+    /**
+     * Writes everything then reopens the database with the type's codec in the given mode so that nothing is read
+     * from the cache
+     */
+    private static void setEvolvingMode(int binaryMode) {
+        DatabaseWrapper.closeConnection();
+        TestHelperObjects.Evolving.binaryMode = binaryMode;
+        databaseEntryTypes.put(2, TestHelperObjects.Evolving.class);
+        DatabaseWrapper.setDatabaseEntryTypes(databaseEntryTypes);
+    }
+
+    /**
+     * Compares the size and decode time of {@link PomodoroSettings} in JSON and binary
+     */
+    @Test
+    public void settingsBinaryCodec() {
+        final int decodes = 200000;
+        PomodoroSettings settings = PomodoroSettings.getDefault()
+                .withArgs("40 15 30 4 pings:off");
+        Gson serializer = new GsonBuilder().registerTypeAdapter(PomodoroSettings.class, settings.getSerializer())
+                .create();
+        Gson deserializer = new GsonBuilder()
+                .registerTypeAdapter(PomodoroSettings.class, settings.getDeserializer()).create();
+        String json = serializer.toJson(settings, PomodoroSettings.class);
+        BinaryWriter out = new BinaryWriter();
+        settings.getBinaryCodec().write(settings, out);
+        byte[] binary = out.toByteArray();
+        Assertions.assertSame(settings, deserializer.fromJson(json, PomodoroSettings.class));
+        Assertions.assertSame(settings, settings.getBinaryCodec().read(new BinaryReader(binary), 1));
+        Assertions.assertSame(PomodoroSettings.getDefault(),
+                settings.getBinaryCodec().read(new BinaryReader(new byte[0]), 1)
+        );
+        for (String args : new String[]{"", "25 5 images:on", "30 10 60 2 auto:off delete:off pings:off"}) {
+            PomodoroSettings other = PomodoroSettings.getDefault().withArgs(args);
+            BinaryWriter otherOut = new BinaryWriter();
+            settings.getBinaryCodec().write(other, otherOut);
+            Assertions.assertSame(other, settings.getBinaryCodec().read(new BinaryReader(otherOut.toByteArray()), 1));
+        }
+
+        long[] nanos = new long[2];
+        // The first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < decodes; i++) {
+                deserializer.fromJson(json, PomodoroSettings.class);
+            }
+            nanos[0] = System.nanoTime() - startNanos;
+            startNanos = System.nanoTime();
+            for (int i = 0; i < decodes; i++) {
+                settings.getBinaryCodec().read(new BinaryReader(binary), 1);
+            }
+            nanos[1] = System.nanoTime() - startNanos;
+        }
+        System.out.println(String.format("PomodoroSettings: JSON %d bytes, %.2f us to decode. "
+                        + "Binary %d bytes, %.2f us to decode", json.getBytes(StandardCharsets.UTF_8).length,
+                nanos[0] / 1000.0 / decodes, binary.length, nanos[1] / 1000.0 / decodes
+        ));
+    }
+
+    /**
+     * The streaming {@link PomodoroSettings} adapter should read and write the same JSON as going through a tree.
+     * Measures the bytes allocated per decode for each
+     */
+    @Test
+    public void settingsStreamingJson() {
+        final int decodes = 100000;
+        PomodoroSettings settings = PomodoroSettings.getDefault()
+                .withArgs("40 15 30 4 pings:off images:on");
+        Gson tree = new GsonBuilder().registerTypeAdapter(PomodoroSettings.class, settings.getSerializer())
+                .registerTypeAdapter(PomodoroSettings.class, settings.getDeserializer()).create();
+        Gson streaming = new GsonBuilder().registerTypeAdapter(PomodoroSettings.class, settings.getTypeAdapter())
+                .create();
+        String json = streaming.toJson(settings, PomodoroSettings.class);
+        Assertions.assertEquals(tree.toJson(settings, PomodoroSettings.class), json);
+        Assertions.assertSame(settings, streaming.fromJson(json, PomodoroSettings.class));
+        Assertions.assertSame(settings, tree.fromJson(json, PomodoroSettings.class));
+        Assertions.assertEquals("{}", streaming.toJson(PomodoroSettings.getDefault(), PomodoroSettings.class));
+        // Unknown keys are skipped, names are case insensitive
+        Assertions.assertSame(settings, streaming.fromJson(
+                json.substring(0, json.length() - 1) + ",\"removed\":{\"a\":[1]}}", PomodoroSettings.class));
+        Assertions.assertSame(settings, streaming.fromJson(json.replace("AUTO", "auto"), PomodoroSettings.class));
+        Assertions.assertThrows(RuntimeException.class,
+                () -> streaming.fromJson(json.replace("AUTO", "NOT_A_SETTING"), PomodoroSettings.class)
+        );
+        Assertions.assertEquals(TimeUnit.SECONDS, DatabaseEntryHelper.getEnumConstant(TimeUnit.class, "seconds"));
+        Assertions.assertThrows(BadStateException.class,
+                () -> DatabaseEntryHelper.getEnumConstant(TimeUnit.class, "FORTNIGHTS")
+        );
+
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long[] bytes = new long[2];
+        long[] nanos = new long[2];
+        // The first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            int index = 0;
+            for (Gson gson : new Gson[]{tree, streaming}) {
+                long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+                long startNanos = System.nanoTime();
+                for (int i = 0; i < decodes; i++) {
+                    gson.fromJson(json, PomodoroSettings.class);
+                }
+                nanos[index] = System.nanoTime() - startNanos;
+                bytes[index] = (threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / decodes;
+                index++;
+            }
+        }
+        System.out.println(String.format("PomodoroSettings JSON decode: tree %d bytes, %.2f us. "
+                        + "Streaming %d bytes, %.2f us", bytes[0], nanos[0] / 1000.0 / decodes, bytes[1],
+                nanos[1] / 1000.0 / decodes
+        ));
+        Assertions.assertTrue(bytes[1] < bytes[0]);
+    }
+
+    /**
+     * Many threads reading and writing different guilds at once should never see another guild's data or a partially
+     * written entry. Also measures the throughput
+     */
+    @Test
+    public void concurrentReadWrite() throws InterruptedException {
+        final int threadCount = 8;
+        final int guildsPerThread = 25;
+        final int operationsPerThread = 2000;
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(threadIndex);
+                try {
+                    for (int i = 0; i < operationsPerThread; i++) {
+                        String threadGuild = guild + threadIndex + "-" + random.nextInt(guildsPerThread);
+                        // Roughly what the bot does: mostly reads
+                        if (random.nextInt(4) == 0) {
+                            DatabaseWrapper.saveData(threadGuild,
+                                    new TestHelperObjects.WellFormed(i, threadGuild, Set.of(threadGuild))
+                            );
+                        }
+                        else {
+                            TestHelperObjects.WellFormed read = DatabaseWrapper
+                                    .getData(threadGuild, TestHelperObjects.WellFormed.class);
+                            if (read != null && !read.stringItem.equals(threadGuild)) {
+                                errors.add(new AssertionError("Read another guild's data"));
+                            }
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        long startNanos = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        System.out.println(String.format("Database: %d threads, %d operations in %d ms (%.0f per second)",
+                threadCount, threadCount * operationsPerThread, elapsedNanos / 1000000,
+                threadCount * operationsPerThread * 1e9 / elapsedNanos
+        ));
+        Assertions.assertEquals(Collections.emptyList(), errors);
+    }
+
+    /**
+     * Every storage type should behave the same through the wrapper, including keeping its entries when reopened
+     */
+    @Test
+    public void storageTypes() {
+        try {
+            for (StorageType storageType : StorageType.values()) {
+                DatabaseWrapper.setStorageType(storageType);
+                Map<String, TestHelperObjects.WellFormed> saves = new HashMap<>();
+                for (int i = 0; i < 10; i++) {
+                    saves.put(guild + i, new TestHelperObjects.WellFormed(i, guild + i, Set.of()));
+                }
+                DatabaseWrapper.saveAll(saves);
+                DatabaseWrapper.saveData(guild, testData1);
+                DatabaseWrapper.flush();
+                DatabaseWrapper.saveData(guild, testData2);
+                DatabaseWrapper.deleteData(guild + 0, TestHelperObjects.WellFormed.class);
+                DatabaseWrapper.closeConnection();
+
+                saves.remove(guild + 0);
+                saves.put(guild, testData2);
+                Assertions.assertEquals(saves, DatabaseWrapper.getAllData(TestHelperObjects.WellFormed.class),
+                        storageType.name()
+                );
+                Assertions.assertNull(DatabaseWrapper.getData(guild + 0, TestHelperObjects.WellFormed.class));
+                Map<Class, DatabaseEntryType> guildEntries = new HashMap<>();
+                DatabaseWrapper.getAllForGuild(guild + 1, guildEntries::put);
+                Assertions.assertEquals(Map.of(TestHelperObjects.WellFormed.class, saves.get(guild + 1)),
+                        guildEntries
+                );
+
+                // Storages that can't write only the changes write the whole entry
+                TestHelperObjects.WellFormed renamed = new TestHelperObjects.WellFormed(35, "Renamed",
+                        testData2.setItem
+                );
+                DatabaseWrapper.saveData(guild, renamed, testData2);
+                DatabaseWrapper.closeConnection();
+                Assertions.assertEquals(renamed, DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class));
+
+                Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+                Assertions.assertNull(DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class));
+                Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+            }
+        }
+        finally {
+            DatabaseWrapper.setStorageType(StorageType.SQLITE);
+        }
+    }
+
+    /**
+     * Overwriting the same entries should have the log compacted rather than it growing forever, without losing any
+     * of the latest saves, and the compacted log should be readable once reopened
+     */
+    @Test
+    public void logCompaction() {
+        final int rounds = 300;
+        final int guildCount = 10;
+        // Random base64 so that entries can't be deflated below 6 bits per character
+        byte[] randomBytes = new byte[2250];
+        new Random(48).nextBytes(randomBytes);
+        final String longText = Base64.getEncoder().encodeToString(randomBytes);
+        final long minBytesWritten = (long) rounds * guildCount * longText.length() * 6 / 8;
+        File log = new File(Bot.getPathToTatsuyaBot() + "TestTatsuya.log");
+        DatabaseWrapper.setStorageType(StorageType.LOG_STRUCTURED);
+        try {
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < guildCount; i++) {
+                    DatabaseWrapper.saveData(guild + i, new TestHelperObjects.WellFormed(round, longText, Set.of()));
+                }
+                DatabaseWrapper.flush();
+            }
+            DatabaseWrapper.closeConnection();
+            // Over 6 MB was written so the log is only this small if the overwritten records were dropped
+            Assertions.assertTrue(minBytesWritten > 6_000_000);
+            Assertions.assertTrue(log.length() <= 2 << 20, "Log is " + log.length() + " bytes");
+            Assertions.assertFalse(new File(log.getPath() + ".compacting").exists());
+
+            // Reopened from the compacted log
+            for (int i = 0; i < guildCount; i++) {
+                Assertions.assertEquals(new TestHelperObjects.WellFormed(rounds - 1, longText, Set.of()),
+                        DatabaseWrapper.getData(guild + i, TestHelperObjects.WellFormed.class)
+                );
+            }
+            // Which can still be appended to
+            DatabaseWrapper.saveData(guild, new TestHelperObjects.WellFormed(rounds, longText, Set.of()));
+            DatabaseWrapper.closeConnection();
+            Assertions.assertEquals(new TestHelperObjects.WellFormed(rounds, longText, Set.of()),
+                    DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class)
+            );
+            Assertions.assertEquals(new TestHelperObjects.WellFormed(rounds - 1, longText, Set.of()),
+                    DatabaseWrapper.getData(guild + 1, TestHelperObjects.WellFormed.class)
+            );
+        }
+        finally {
+            Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+            DatabaseWrapper.setStorageType(StorageType.SQLITE);
+        }
+    }
+
+    /**
+     * Splitting the database into partitions and changing how many there are should keep every entry, and partitions
+     * shouldn't open with the wrong count
+     */
+    @Test
+    public void partitionRebalance() {
+        final int guildCount = 500;
+        Map<String, TestHelperObjects.WellFormed> saves = new HashMap<>();
+        for (int i = 0; i < guildCount; i++) {
+            saves.put(guild + i, new TestHelperObjects.WellFormed(i, guild + i, Set.of()));
+        }
+        DatabaseWrapper.saveAll(saves);
+        try {
+            // From the unpartitioned database
+            Assertions.assertEquals(guildCount, DatabaseWrapper.rebalancePartitions(3));
+            Assertions.assertEquals(saves, DatabaseWrapper.getAllData(TestHelperObjects.WellFormed.class));
+            DatabaseWrapper.saveData(guild, testData1);
+
+            DatabaseWrapper.closeConnection();
+            long startNanos = System.nanoTime();
+            Assertions.assertEquals(guildCount + 1, DatabaseWrapper.rebalancePartitions(5));
+            long rebalanceNanos = System.nanoTime() - startNanos;
+            saves.put(guild, testData1);
+            Assertions.assertEquals(saves, DatabaseWrapper.getAllData(TestHelperObjects.WellFormed.class));
+            Assertions.assertEquals(testData1, DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class));
+            for (int i = 0; i < 5; i++) {
+                Assertions.assertTrue(new File(Bot.getPathToTatsuyaBot() + "TestTatsuya-p" + i + ".db").exists());
+            }
+            Assertions.assertFalse(new File(Bot.getPathToTatsuyaBot() + "TestTatsuya-p5.db").exists());
+            // Nothing is left of the swap, including the partitions' -wal and -shm files
+            File[] leftovers = new File(Bot.getPathToTatsuyaBot()).getAbsoluteFile().listFiles(
+                    file -> file.getName().startsWith("TestTatsuya-rebalancing")
+                            || file.getName().startsWith("TestTatsuya-old"));
+            Assertions.assertEquals(0, leftovers.length, Arrays.toString(leftovers));
+            System.out.println(String.format("Rebalance of %d entries from 3 to 5 partitions: %d ms", guildCount + 1,
+                    rebalanceNanos / 1000000
+            ));
+
+            DatabaseWrapper.setStorageType(StorageType.PARTITIONED, 4);
+            Assertions.assertThrows(BadStateException.class,
+                    () -> DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class)
+            );
+            // The unpartitioned file is from before the split
+            DatabaseWrapper.setStorageType(StorageType.SQLITE);
+            Assertions.assertThrows(BadStateException.class,
+                    () -> DatabaseWrapper.getData(guild, TestHelperObjects.WellFormed.class)
+            );
+            DatabaseWrapper.setStorageType(StorageType.PARTITIONED, 5);
+        }
+        finally {
+            Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+            DatabaseWrapper.setStorageType(StorageType.SQLITE);
+        }
+    }
+
+    /**
+     * Compares the storage types on what the bot does most: flushing a batch of changed guilds every so often and
+     * loading guilds one at a time after a restart
+     */
+    @Test
+    public void storageTypeBenchmark() {
+        try {
+            // The first run of each only warms up the JIT
+            for (boolean print : new boolean[]{false, true}) {
+                for (StorageType storageType : StorageType.values()) {
+                    DatabaseWrapper.setStorageType(storageType);
+                    benchmarkStorage(storageType, print);
+                    Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+                }
+            }
+        }
+        finally {
+            DatabaseWrapper.setStorageType(StorageType.SQLITE);
+        }
+    }
+
+    private static void benchmarkStorage(StorageType storageType, boolean print) {
+        final int guildCount = 2000;
+        final int flushCount = 50;
+        final int savesPerFlush = 100;
+        Random random = new Random(0);
+        Set<String> items = Set.of("Item1", "Item2", "Item3", "Item4", "Item5");
+        Map<String, TestHelperObjects.WellFormed> saves = new HashMap<>();
+        for (int i = 0; i < guildCount; i++) {
+            saves.put(guild + i, new TestHelperObjects.WellFormed(i, guild + i, items));
+        }
+        DatabaseWrapper.saveAll(saves);
+        DatabaseWrapper.flush();
+
+        long[] flushNanos = new long[flushCount];
+        for (int i = 0; i < flushCount; i++) {
+            for (int j = 0; j < savesPerFlush; j++) {
+                int saveGuild = random.nextInt(guildCount);
+                DatabaseWrapper.saveData(guild + saveGuild,
+                        new TestHelperObjects.WellFormed(i * savesPerFlush + j, guild + saveGuild, items)
+                );
+            }
+            long startNanos = System.nanoTime();
+            DatabaseWrapper.flush();
+            flushNanos[i] = System.nanoTime() - startNanos;
+        }
+
+        DatabaseWrapper.closeConnection();
+        List<String> guilds = new ArrayList<>(saves.keySet());
+        Collections.shuffle(guilds, random);
+        // Opened outside of the timing
+        DatabaseWrapper.getData(guild + "missing", TestHelperObjects.WellFormed.class);
+        long[] readNanos = new long[guildCount];
+        for (int i = 0; i < guildCount; i++) {
+            long startNanos = System.nanoTime();
+            TestHelperObjects.WellFormed read = DatabaseWrapper.getData(guilds.get(i),
+                    TestHelperObjects.WellFormed.class
+            );
+            readNanos[i] = System.nanoTime() - startNanos;
+            Assertions.assertEquals(guilds.get(i), read.stringItem);
+        }
+
+        if (print) {
+            System.out.println(String.format("%-14s flush of %d: %s, %.0f writes per second", storageType,
+                    savesPerFlush, percentiles(flushNanos), flushCount * savesPerFlush * 1e9 / sum(flushNanos)
+            ));
+            System.out.println(String.format("%-14s cold read: %s, %.0f reads per second", storageType,
+                    percentiles(readNanos), guildCount * 1e9 / sum(readNanos)
+            ));
+        }
+    }
+
+    private static String percentiles(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %.0f us, p99 %.0f us, max %.0f us", sorted[sorted.length / 2] / 1000.0,
+                sorted[(int) (sorted.length * 0.99)] / 1000.0, sorted[sorted.length - 1] / 1000.0
+        );
+    }
+
+    private static long sum(long[] nanos) {
+        long sum = 0;
+        for (long value : nanos) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /**
+     * A backup taken while saves are being written should be a consistent copy from when it started and restoring it
+     * should bring that back. Also measures how much the backup holds up flushes
+     */
+    @Test
+    public void backupAndRestore() throws Exception {
+        final int guildCount = 2000;
+        Map<String, TestHelperObjects.WellFormed> saves = new HashMap<>();
+        for (int i = 0; i < guildCount; i++) {
+            saves.put(guild + i, new TestHelperObjects.WellFormed(i, guild + i, Set.of("Item")));
+        }
+        DatabaseWrapper.saveAll(saves);
+        DatabaseWrapper.flush();
+        try {
+            CompletableFuture<DatabaseWrapper.BackupReport> backup = DatabaseWrapper.backupAsync();
+            List<Long> flushNanos = new ArrayList<>();
+            int round = 0;
+            while (!backup.isDone()) {
+                // Saved together so a consistent copy always has them the same
+                DatabaseWrapper.saveAll(Map.of(
+                        guild + "A", new TestHelperObjects.WellFormed(round, "A", Set.of()),
+                        guild + "B", new TestHelperObjects.WellFormed(round, "B", Set.of())
+                ));
+                long startNanos = System.nanoTime();
+                DatabaseWrapper.flush();
+                flushNanos.add(System.nanoTime() - startNanos);
+                round++;
+            }
+            DatabaseWrapper.BackupReport report = backup.get();
+            Assertions.assertTrue(report.sizeBytes > 0);
+            Assertions.assertEquals(report, DatabaseWrapper.getLastBackup());
+            List<File> backups = DatabaseWrapper.getBackups();
+            Assertions.assertEquals(1, backups.size());
+            Assertions.assertEquals(report.name, backups.get(0).getName());
+            System.out.println(String.format("%s, %d flushes during it (max %.2f ms)", report, flushNanos.size(),
+                    Collections.max(flushNanos) / 1e6
+            ));
+
+            DatabaseWrapper.saveData(guild + 0, testData1);
+            DatabaseWrapper.restoreBackup(backups.get(0));
+            Map<String, TestHelperObjects.WellFormed> restored = DatabaseWrapper
+                    .getAllData(TestHelperObjects.WellFormed.class);
+            TestHelperObjects.WellFormed restoredA = restored.remove(guild + "A");
+            TestHelperObjects.WellFormed restoredB = restored.remove(guild + "B");
+            Assertions.assertEquals(restoredA == null, restoredB == null);
+            if (restoredA != null) {
+                Assertions.assertEquals(restoredA.integerItem, restoredB.integerItem);
+            }
+            Assertions.assertEquals(saves, restored);
+        }
+        finally {
+            for (File backup : DatabaseWrapper.getBackups()) {
+                Assertions.assertTrue(backup.delete());
+            }
+        }
+    }
+
     /**
      * Skeleton classes that can be written to and from the database or used to trigger certain errors
      */
@@ -201,6 +986,21 @@ public class DatabaseTests {
                 };
             }
 
+            @Override
+            public Set<String> getChangedFields(WellFormed previous) {
+                Set<String> changed = new HashSet<>();
+                if (!Objects.equals(integerItem, previous.integerItem)) {
+                    changed.add("integerItem");
+                }
+                if (!Objects.equals(stringItem, previous.stringItem)) {
+                    changed.add("stringItem");
+                }
+                if (!Objects.equals(setItem, previous.setItem)) {
+                    changed.add("setItem");
+                }
+                return changed;
+            }
+
             /**
              * {@inheritDoc} Allows objects to be compared using assertEquals too
              */
@@ -215,6 +1015,102 @@ public class DatabaseTests {
             }
         }
 
+        /**
+         * Stored as JSON or in binary depending on {@link #binaryMode}, which is read when the types are set
+         */
+        public static class Evolving implements DatabaseEntryType<Evolving> {
+            /**
+             * 0: JSON, 1: binary, 2: binary with an extra field a version 1 reader doesn't know, 3: binary version 2
+             */
+            static int binaryMode = 0;
+            int number = 0;
+            String text = "";
+
+            public Evolving() { }
+
+            public Evolving(int number, String text) {
+                this.number = number;
+                this.text = text;
+            }
+
+            @Override
+            public Class<Evolving> getReturnClass() {
+                return Evolving.class;
+            }
+
+            @Override
+            public JsonDeserializer<Evolving> getDeserializer() {
+                return (json, typeOfT, context) -> {
+                    JsonObject main = json.getAsJsonObject();
+                    return new Evolving(main.get("number").getAsInt(), main.get("text").getAsString());
+                };
+            }
+
+            @Override
+            public JsonSerializer<Evolving> getSerializer() {
+                return (src, typeOfSrc, context) -> {
+                    JsonObject main = new JsonObject();
+                    main.addProperty("number", src.number);
+                    main.addProperty("text", src.text);
+                    return main;
+                };
+            }
+
+            @Override
+            public BinaryCodec<Evolving> getBinaryCodec() {
+                if (binaryMode == 0) {
+                    return null;
+                }
+                final int mode = binaryMode;
+                return new BinaryCodec<>() {
+                    @Override
+                    public int getVersion() {
+                        return mode == 3 ? 2 : 1;
+                    }
+
+                    @Override
+                    public void write(Evolving value, BinaryWriter out) {
+                        out.writeInt(1, value.number).writeString(2, value.text);
+                        if (mode == 2) {
+                            out.writeString(3, "added later").writeLong(4, -1);
+                        }
+                    }
+
+                    @Override
+                    public Evolving read(BinaryReader in, int version) {
+                        Evolving evolving = new Evolving();
+                        while (in.nextField()) {
+                            switch (in.getField()) {
+                                case 1:
+                                    evolving.number = in.readInt();
+                                    break;
+                                case 2:
+                                    evolving.text = in.readString();
+                                    break;
+                                default:
+                                    in.skipField();
+                            }
+                        }
+                        return evolving;
+                    }
+                };
+            }
+
+            @Override
+            public boolean equals(Object obj) {
+                if (!(obj instanceof Evolving)) {
+                    return false;
+                }
+                Evolving other = (Evolving) obj;
+                return number == other.number && text.equals(other.text);
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hash(number, text);
+            }
+        }
+
         static class PackagePrivateClass implements DatabaseEntryType<PackagePrivateClass> {
             public PackagePrivateClass() { }
 
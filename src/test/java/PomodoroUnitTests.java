@@ -1,12 +1,30 @@
+import BotFrameworkBox.DatabaseWrapper;
 import BotFrameworkBox.Emoji;
+import BotFrameworkBox.StorageType;
+import CoreBox.DatabaseEntryHelper;
+import CoreBox.HistoricStateData;
+import CoreBox.LongMap;
+import CoreBox.PomodoroGuildBans;
 import CoreBox.PomodoroSession;
+import CoreBox.PomodoroSessionSnapshot;
 import CoreBox.PomodoroSettings;
+import CoreBox.PomodoroStateMachine;
+import CoreBox.PomodoroStateMachine.Effect;
+import CoreBox.SessionLimits;
+import CoreBox.SessionRegistry;
+import CoreBox.TransitionPacer;
+import ExceptionsBox.BadStateException;
 import ExceptionsBox.BadUserInputException;
+import TatsuyaCommands.PomodoroCommand;
 import javassist.NotFoundException;
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Member;
 import net.dv8tion.jda.api.entities.Message;
-import net.dv8tion.jda.api.entities.MessageChannel;
 import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.exceptions.ErrorResponseException;
+import net.dv8tion.jda.api.requests.ErrorResponse;
 import net.dv8tion.jda.api.requests.restaction.AuditableRestAction;
 import net.dv8tion.jda.api.requests.restaction.MessageAction;
 import org.junit.jupiter.api.Assertions;
@@ -19,10 +37,17 @@ import org.mockito.ArgumentCaptor;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.TreeMap;
 import java.util.function.Consumer;
 
 import static org.mockito.ArgumentMatchers.any;
@@ -37,7 +62,8 @@ public class PomodoroUnitTests {
     private static List<MockMessage> mockMessages;
     private final String memberName = "MemberName";
     private Member mockMember;
-    private MessageChannel mockChannel;
+    private TextChannel mockChannel;
+    private Guild mockGuild;
     private Instant start;
 
     /*
@@ -72,7 +98,12 @@ public class PomodoroUnitTests {
         when(mockMember.getEffectiveName()).thenReturn(memberName);
 
         mockMessageAction = mock(MessageAction.class);
-        mockChannel = mock(MessageChannel.class);
+        mockChannel = mock(TextChannel.class);
+        mockGuild = mock(Guild.class);
+        when(mockChannel.getGuild()).thenReturn(mockGuild);
+        JDA mockJda = mock(JDA.class);
+        when(mockChannel.getJDA()).thenReturn(mockJda);
+        when(mockJda.getTextChannelById(anyLong())).thenReturn(mockChannel);
 
         /*
          * Capture message arguments and save generated Message mock
@@ -85,11 +116,30 @@ public class PomodoroUnitTests {
             new MockMessage((String) ans.getArguments()[0], true);
             return mockMessageAction;
         });
+        when(mockChannel.editMessageById(anyLong(), any(MessageEmbed.class))).thenAnswer(ans -> {
+            new MockMessage((MessageEmbed) ans.getArguments()[1], false);
+            return mockMessageAction;
+        });
         doAnswer(ans -> {
             Consumer<Message> callback = (Consumer<Message>) ans.getArguments()[0];
             callback.accept(mockMessages.get(mockMessages.size() - 1).mock);
             return null;
         }).when(mockMessageAction).queue(any(Consumer.class));
+        doAnswer(ans -> {
+            Consumer<Message> callback = (Consumer<Message>) ans.getArguments()[0];
+            callback.accept(mockMessages.get(mockMessages.size() - 1).mock);
+            return null;
+        }).when(mockMessageAction).queue(any(Consumer.class), any(Consumer.class));
+
+        /*
+         * Actions by message id are recorded against the latest message (the main message is always the latest when
+         * its reactions are refreshed)
+         */
+        when(mockChannel.clearReactionsById(anyLong()))
+                .thenAnswer(ans -> mockMessages.get(mockMessages.size() - 1).mock.clearReactions());
+        when(mockChannel.addReactionById(anyLong(), anyString())).thenAnswer(
+                ans -> mockMessages.get(mockMessages.size() - 1).mock.addReaction((String) ans.getArguments()[1]));
+        when(mockChannel.deleteMessageById(anyLong())).thenReturn(mock(AuditableRestAction.class));
     }
 
     /**
@@ -580,6 +630,1014 @@ public class PomodoroUnitTests {
         Assertions.assertThrows(BadUserInputException.class, () -> session[0].userStopSession(start));
     }
 
+    /**
+     * Ensure that ticks within the same displayed minute reuse the same embed, that a change in what's displayed
+     * causes a rebuild, and measure the allocation per tick
+     */
+    @Test
+    public void embedRenderCache() {
+        final int ticks = 10000;
+        Instant currentTime = start;
+        PomodoroSession session = new PomodoroSession(mockMember, mockChannel, "25 10", currentTime);
+        session.userStartSession(currentTime);
+        currentTime = currentTime.plusSeconds(30);
+        session.update(currentTime, false);
+        int messagesBefore = mockMessages.size();
+
+        MessageEmbed embed = session.buildEmbed(currentTime);
+        Assertions.assertSame(embed, session.buildEmbed(currentTime.plusMillis(10)));
+        session.update(currentTime.plusMillis(20), false);
+        // Nothing displayed has changed so there should be no edit
+        Assertions.assertEquals(messagesBefore, mockMessages.size());
+
+        currentTime = currentTime.plusSeconds(60);
+        MessageEmbed nextMinuteEmbed = session.buildEmbed(currentTime);
+        Assertions.assertNotSame(embed, nextMinuteEmbed);
+        session.getParticipants().addParticipant(mock(Member.class), false);
+        Assertions.assertNotSame(nextMinuteEmbed, session.buildEmbed(currentTime));
+
+        /*
+         * Allocation per tick (ticks within the same minute)
+         */
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ticks; i++) {
+            session.buildEmbed(currentTime.plusMillis(i));
+        }
+        long allocatedPerTick = (threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / ticks;
+        long[] cacheStats = session.getEmbedCacheStats();
+        System.out.println("Bytes allocated per tick: " + allocatedPerTick + ", embed requests: " + cacheStats[0]
+                + ", embeds built: " + cacheStats[1]);
+        Assertions.assertTrue(cacheStats[1] < cacheStats[0] - ticks + 1);
+    }
+
+    /**
+     * Only a main message that's been deleted should be posted again when editing it fails. After any other failure
+     * the message is kept and edited again on the next update
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void failedMainMessageEdits() {
+        Instant currentTime = start;
+        PomodoroSession session = new PomodoroSession(mockMember, mockChannel, "25 10", currentTime);
+        session.userStartSession(currentTime);
+        long mainMessageId = session.getMessageIdLong();
+        ErrorResponseException failure = mock(ErrorResponseException.class);
+        MessageAction failedEdit = mock(MessageAction.class);
+        doAnswer(ans -> {
+            ((Consumer<Throwable>) ans.getArguments()[1]).accept(failure);
+            return null;
+        }).when(failedEdit).queue(any(Consumer.class), any(Consumer.class));
+        when(mockChannel.editMessageById(anyLong(), any(MessageEmbed.class))).thenReturn(failedEdit);
+        clearInvocations(mockChannel);
+
+        when(failure.getErrorResponse()).thenReturn(ErrorResponse.MISSING_PERMISSIONS);
+        currentTime = currentTime.plus(1, ChronoUnit.MINUTES);
+        session.update(currentTime, false);
+        currentTime = currentTime.plus(1, ChronoUnit.MINUTES);
+        session.update(currentTime, false);
+        verify(mockChannel, times(2)).editMessageById(eq(mainMessageId), any(MessageEmbed.class));
+        verify(mockChannel, never()).sendMessage(any(MessageEmbed.class));
+        Assertions.assertEquals(mainMessageId, session.getMessageIdLong());
+
+        when(failure.getErrorResponse()).thenReturn(ErrorResponse.UNKNOWN_MESSAGE);
+        currentTime = currentTime.plus(1, ChronoUnit.MINUTES);
+        session.update(currentTime, false);
+        verify(mockChannel, times(1)).sendMessage(any(MessageEmbed.class));
+    }
+
+    /**
+     * Sessions only hold ids so they should keep going while their channel isn't in JDA's cache and carry on in the
+     * new channel object once it's back (e.g. after a reconnect)
+     */
+    @Test
+    public void sessionSurvivesCacheEviction() {
+        Instant currentTime = start;
+        PomodoroSession session = new PomodoroSession(mockMember, mockChannel, "25 10", currentTime);
+        session.userStartSession(currentTime);
+        int messagesBefore = mockMessages.size();
+
+        JDA mockJda = mockChannel.getJDA();
+        when(mockJda.getTextChannelById(anyLong())).thenReturn(null);
+        currentTime = currentTime.plusSeconds(26 * 60);
+        session.update(currentTime, false);
+        Assertions.assertEquals(PomodoroSession.SessionState.BREAK, session.getSessionState());
+        Assertions.assertEquals(messagesBefore, mockMessages.size());
+
+        TextChannel reconnectedChannel = mock(TextChannel.class, RETURNS_DEEP_STUBS);
+        when(mockJda.getTextChannelById(anyLong())).thenReturn(reconnectedChannel);
+        session.userPauseSession(currentTime);
+        // Pausing posts a new main message
+        verify(reconnectedChannel, times(1)).sendMessage(any(MessageEmbed.class));
+        Assertions.assertEquals(messagesBefore, mockMessages.size());
+    }
+
+    /**
+     * Members join and leave on JDA's thread without holding the session while the update thread takes snapshots.
+     * Each snapshot should be whole, and one that's marked as saved should have every participant in it
+     */
+    @Test
+    public void snapshotsDuringJoins() throws InterruptedException {
+        final int joins = 20000;
+        PomodoroSession session = new PomodoroSession(mockMember, mockChannel, "25 10", start);
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        Thread joiner = new Thread(() -> {
+            try {
+                for (int i = 0; i < joins; i++) {
+                    session.getParticipants().addParticipant(i % 50, "Member" + i, true, null);
+                    if (i % 3 == 0) {
+                        session.getParticipants().removeParticipant((i + 7) % 50);
+                    }
+                }
+            }
+            catch (Throwable e) {
+                errors.add(e);
+            }
+        });
+        joiner.start();
+        while (joiner.isAlive()) {
+            session.takeSnapshot();
+        }
+        joiner.join();
+        Assertions.assertEquals(List.of(), errors);
+        // Any join that wasn't in the last snapshot should still need saving
+        if (!session.hasUnsavedChanges()) {
+            Assertions.assertEquals(session.getParticipants().size(),
+                    new PomodoroSession(session.getSavedSnapshot(), mockChannel).getParticipants().size()
+            );
+        }
+    }
+
+    /**
+     * A host with mirrors should share one state machine, render the common parts of the embed once per change, and
+     * schedule its transition work once no matter how many channels it's shown in
+     */
+    @Test
+    public void mirroredSessions() {
+        final int mirrorCount = 20;
+        Instant currentTime = start;
+        PomodoroSession host = new PomodoroSession(mockMember, mockChannel, "25 10", currentTime);
+        List<PomodoroSession> mirrors = new ArrayList<>();
+        for (int i = 0; i < mirrorCount; i++) {
+            mirrors.add(new PomodoroSession(host, mockMember, mockChannel, currentTime));
+        }
+        // Mirroring a mirror attaches to the original host
+        PomodoroSession mirrorOfMirror = new PomodoroSession(mirrors.get(0), mockMember, mockChannel, currentTime);
+        Assertions.assertSame(host, mirrorOfMirror.getHost());
+        mirrorOfMirror.unlink();
+        Assertions.assertEquals(mirrorCount + 1, host.getViews().size());
+        Assertions.assertThrows(BadStateException.class, host::unlink);
+
+        mirrors.get(3).userStartSession(currentTime);
+        for (PomodoroSession mirror : mirrors) {
+            Assertions.assertTrue(mirror.isMirror());
+            Assertions.assertEquals(PomodoroSession.SessionState.WORK, mirror.getSessionState());
+        }
+        // Each view has its own participants
+        mirrors.get(0).getParticipants().addParticipant(mock(Member.class), false);
+        Assertions.assertNotSame(host.getParticipants(), mirrors.get(0).getParticipants());
+
+        List<Runnable> tasks = new ArrayList<>();
+        TransitionPacer pacer = new TransitionPacer(1000, (task, delayMillis) -> tasks.add(task));
+        long commonBuildsBefore = host.getEmbedCacheStats()[2];
+        currentTime = currentTime.plusSeconds(26 * 60);
+        host.update(currentTime, pacer);
+        Assertions.assertEquals(1, tasks.size());
+        tasks.forEach(Runnable::run);
+        for (PomodoroSession view : host.getViews()) {
+            Assertions.assertEquals(PomodoroSession.SessionState.BREAK, view.getSessionState());
+            view.buildEmbed(currentTime);
+        }
+        Assertions.assertEquals(commonBuildsBefore + 1, host.getEmbedCacheStats()[2]);
+
+        // A stopped mirror no longer receives the host's updates
+        mirrors.get(1).unlink();
+        Assertions.assertEquals(mirrorCount, host.getViews().size());
+        Assertions.assertFalse(host.getViews().contains(mirrors.get(1)));
+    }
+
+    /**
+     * Settings are immutable and interned: sessions with the same settings share one instance and editing a session's
+     * settings replaces them without changing anyone else's (including the defaults)
+     */
+    @Test
+    public void settingsAreInterned() {
+        final String args = "30 15 40 3 images:on";
+        PomodoroSettings defaults = PomodoroSettings.getDefault();
+        PomodoroSettings settings = defaults.withArgs(args);
+        Assertions.assertSame(settings, defaults.withArgs(args));
+        Assertions.assertSame(defaults, defaults.withArgs(""));
+        Assertions.assertEquals(new PomodoroSettings(), defaults);
+
+        PomodoroSession sessionA = new PomodoroSession(mockMember, mockChannel, args, start);
+        PomodoroSession sessionB = new PomodoroSession(mockMember, mockChannel, args, start);
+        Assertions.assertSame(sessionA.getSettings(), sessionB.getSettings());
+
+        MessageEmbed embed = sessionA.buildEmbed(start);
+        sessionA.userUpdateSettings("45 images:off");
+        Assertions.assertNotSame(embed, sessionA.buildEmbed(start));
+        Assertions.assertEquals(45, sessionA.getSettings().getStateDuration(PomodoroSession.SessionState.WORK));
+        Assertions.assertFalse(sessionA.getSettings().getBooleanSetting(PomodoroSession.BooleanSetting.IMAGES));
+        Assertions.assertEquals(40, sessionA.getSettings().getStateDuration(PomodoroSession.SessionState.LONG_BREAK));
+        Assertions.assertEquals(30, sessionB.getSettings().getStateDuration(PomodoroSession.SessionState.WORK));
+        Assertions.assertEquals(25, defaults.getStateDuration(PomodoroSession.SessionState.WORK));
+        Assertions.assertNull(defaults.getStateDuration(PomodoroSession.SessionState.LONG_BREAK));
+
+        // Invalid edits leave the settings as they were
+        PomodoroSettings beforeInvalidEdit = sessionA.getSettings();
+        Assertions.assertThrows(BadUserInputException.class, () -> sessionA.userUpdateSettings("45 10 30"));
+        Assertions.assertSame(beforeInvalidEdit, sessionA.getSettings());
+
+        // Loading settings from the database gives the shared instance
+        PomodoroSettings loaded = settings.getDeserializer()
+                .deserialize(settings.getSerializer().serialize(settings, PomodoroSettings.class, null),
+                        PomodoroSettings.class, null
+                );
+        Assertions.assertSame(settings, loaded);
+    }
+
+    /**
+     * Participant lists are capped at the embed field length with a "+N more" line and stay in join order. Also
+     * measures a join, leave, and render with 50 and 500 participants (the time shouldn't grow with the party size)
+     */
+    @Test
+    public void participantListRendering() throws Exception {
+        final int iterations = 20000;
+        long[] nanosPerOperation = new long[2];
+        int[] partySizes = {50, 500};
+        for (int run = 0; run < partySizes.length; run++) {
+            int partySize = partySizes[run];
+            PomodoroSession session = new PomodoroSession(mockMember, mockChannel, "", start);
+            PomodoroSession.Participants participants = session.getParticipants();
+            participants.removeParticipant(mockMember);
+            List<String> joinOrder = new ArrayList<>();
+            for (int i = 0; i < partySize; i++) {
+                participants.addParticipant(i + 1, "Member" + i, true, i % 2 == 0 ? "Chapter " + i : null);
+                joinOrder.add("Member" + i);
+            }
+
+            // Churn: the oldest member leaves and rejoins (moving them to the end) then the embed is rendered
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                int memberIndex = i % partySize;
+                participants.removeParticipant(memberIndex + 1);
+                participants.addParticipant(memberIndex + 1, "Member" + memberIndex, true, null);
+                session.buildEmbed(start);
+            }
+            nanosPerOperation[run] = (System.nanoTime() - startNanos) / iterations;
+            for (int i = 0; i < iterations % partySize; i++) {
+                joinOrder.add(joinOrder.remove(0));
+            }
+
+            String rendered = EmbedFields.PARTICIPANTS.find(session.buildEmbed(start).getFields()).getValue();
+            Assertions.assertTrue(rendered.length() <= MessageEmbed.VALUE_MAX_LENGTH);
+            String[] lines = rendered.split("\n");
+            int displayed = partySize;
+            if (rendered.contains(" more")) {
+                displayed = lines.length - 1;
+                Assertions.assertEquals("+" + (partySize - displayed) + " more", lines[lines.length - 1]);
+            }
+            Assertions.assertEquals(joinOrder.subList(0, displayed), List.of(lines).subList(0, displayed));
+        }
+        System.out.println(String.format("Join, leave, and render: %d ns with %d participants, %d ns with %d "
+                + "participants", nanosPerOperation[0], partySizes[0], nanosPerOperation[1], partySizes[1]));
+    }
+
+    /**
+     * Property test: for random sequences of completed items, the running aggregates in HistoricStateData must match
+     * the results of scanning every item (the way they used to be calculated)
+     */
+    @Test
+    public void historicStateDataMatchesScans() {
+        final PomodoroSession.SessionState[] allStates = PomodoroSession.SessionState.values();
+        PomodoroSettings settings = PomodoroSettings.getDefault().withArgs("25 10 30 4");
+        Random random = new Random(12345);
+
+        for (int trial = 0; trial < 500; trial++) {
+            HistoricStateData data = new HistoricStateData();
+            List<PomodoroSession.SessionState> itemStates = new ArrayList<>();
+            List<Integer> itemTimes = new ArrayList<>();
+            int items = random.nextInt(60);
+            for (int i = 0; i <= items; i++) {
+                for (PomodoroSession.SessionState currentState : allStates) {
+                    for (boolean sinceLongBreak : new boolean[]{true, false}) {
+                        Assertions.assertEquals(
+                                scanCountWorkSessions(itemStates, sinceLongBreak, currentState),
+                                data.countWorkSessions(sinceLongBreak, currentState)
+                        );
+                    }
+                    if (currentState.isActiveState()) {
+                        Assertions.assertEquals(
+                                scanNextStateDurationAdjusted(itemStates, itemTimes, currentState, settings),
+                                data.getNextStateDurationAdjusted(currentState, settings)
+                        );
+                    }
+                }
+                int workTime = 0;
+                for (int j = 0; j < itemStates.size(); j++) {
+                    if (itemStates.get(j) == PomodoroSession.SessionState.WORK) {
+                        workTime += itemTimes.get(j);
+                    }
+                }
+                Assertions.assertEquals(workTime, data.getTotalWorkTime());
+
+                // Bias towards active states and short times so that runs and pauses are common
+                PomodoroSession.SessionState state = random.nextInt(3) == 0
+                        ? allStates[random.nextInt(allStates.length)]
+                        : allStates[random.nextInt(3)];
+                int time = random.nextInt(10);
+                data.addCompletedItem(time, state);
+                itemStates.add(state);
+                itemTimes.add(state == PomodoroSession.SessionState.NOT_STARTED
+                        || state == PomodoroSession.SessionState.FINISHED ? 0 : time);
+                Assertions.assertEquals(state, data.getCompletedItemState(itemStates.size() - 1));
+                Assertions.assertEquals((int) itemTimes.get(itemTimes.size() - 1),
+                        data.getCompletedItemTime(itemStates.size() - 1)
+                );
+            }
+        }
+    }
+
+    /**
+     * With auto off, an expired timer pauses until someone starts the next active state and resumes into that state.
+     * Pausing by hand resumes the state that was paused, and a pause that times out ends the session rather than
+     * pausing again
+     */
+    @Test
+    public void autoOffWaitsForNextActiveState() {
+        PomodoroSettings settings = PomodoroSettings.getDefault().withArgs("25 10 30 4 auto:off");
+        PomodoroStateMachine stateMachine = new PomodoroStateMachine(settings);
+        Instant currentTime = start;
+        stateMachine.start(currentTime);
+
+        currentTime = currentTime.plus(26, ChronoUnit.MINUTES);
+        stateMachine.tick(currentTime);
+        Assertions.assertEquals(PomodoroSession.SessionState.PAUSED, stateMachine.getSessionState());
+        // The upcoming state rather than the one that finished
+        Assertions.assertEquals(PomodoroSession.SessionState.BREAK, stateMachine.getResumeState());
+        stateMachine.resume(currentTime);
+        Assertions.assertEquals(PomodoroSession.SessionState.BREAK, stateMachine.getSessionState());
+
+        currentTime = currentTime.plus(11, ChronoUnit.MINUTES);
+        stateMachine.tick(currentTime);
+        Assertions.assertEquals(PomodoroSession.SessionState.PAUSED, stateMachine.getSessionState());
+        Assertions.assertEquals(PomodoroSession.SessionState.WORK, stateMachine.getResumeState());
+        stateMachine.resume(currentTime);
+
+        currentTime = currentTime.plus(5, ChronoUnit.MINUTES);
+        stateMachine.pause(currentTime);
+        Assertions.assertEquals(PomodoroSession.SessionState.WORK, stateMachine.getResumeState());
+        // The next state after a pause isn't active so auto being off doesn't stop it timing out
+        currentTime = stateMachine.getTimeCurrentStateEnds().plusSeconds(1);
+        stateMachine.tick(currentTime);
+        Assertions.assertEquals(PomodoroSession.SessionState.FINISHED, stateMachine.getSessionState());
+    }
+
+    /**
+     * The state machine is pure so it can be driven without Discord. Checks the effects of a few transitions, then
+     * measures transitions per second
+     */
+    @Test
+    public void stateMachineTransitions() {
+        final int transitionCount = 1000000;
+        PomodoroSettings settings = PomodoroSettings.getDefault().withArgs("25 10 30 4 auto:off");
+        PomodoroStateMachine stateMachine = new PomodoroStateMachine(settings);
+        Instant currentTime = start;
+
+        int effects = stateMachine.start(currentTime);
+        Assertions.assertEquals(PomodoroSession.SessionState.WORK, stateMachine.getSessionState());
+        Assertions.assertTrue(Effect.PING.isIn(effects) && Effect.POST_MAIN.isIn(effects));
+        Assertions.assertEquals(Effect.EDIT_MAIN.mask, stateMachine.tick(currentTime.plusSeconds(60)));
+        // Without auto, the session waits on the next state once the timer runs out
+        currentTime = currentTime.plus(26, ChronoUnit.MINUTES);
+        effects = stateMachine.tick(currentTime);
+        Assertions.assertEquals(PomodoroSession.SessionState.PAUSED, stateMachine.getSessionState());
+        Assertions.assertTrue(Effect.PING.isIn(effects));
+        stateMachine.resume(currentTime);
+        Assertions.assertEquals(PomodoroSession.SessionState.BREAK, stateMachine.getSessionState());
+        Assertions.assertThrows(BadUserInputException.class, () -> stateMachine.resume(start));
+
+        /*
+         * Throughput (the history of a million transitions is well over the usual limit)
+         */
+        SessionLimits.setMaxCompletedItems(Integer.MAX_VALUE);
+        settings = PomodoroSettings.getDefault().withArgs("25 10 30 4");
+        PomodoroStateMachine benchMachine = new PomodoroStateMachine(settings);
+        currentTime = start;
+        benchMachine.start(currentTime);
+        int effectsSum = 0;
+        long startNanos = System.nanoTime();
+        try {
+            for (int i = 0; i < transitionCount; i++) {
+                currentTime = currentTime.plusSeconds(60);
+                switch (i & 3) {
+                    case 0:
+                        effectsSum += benchMachine.skip(currentTime);
+                        break;
+                    case 1:
+                        effectsSum += benchMachine.pause(currentTime);
+                        break;
+                    case 2:
+                        effectsSum += benchMachine.resume(currentTime);
+                        break;
+                    default:
+                        effectsSum += benchMachine.tick(currentTime);
+                }
+            }
+        }
+        finally {
+            SessionLimits.resetToDefaults();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        System.out.println(String.format("State machine: %d transitions in %d ms (%.0f per second), effects sum %d",
+                transitionCount, elapsedNanos / 1000000, transitionCount * 1e9 / elapsedNanos, effectsSum
+        ));
+        Assertions.assertNotEquals(PomodoroSession.SessionState.FINISHED, benchMachine.getSessionState());
+    }
+
+    /**
+     * Effects from several actions should be carried out in as few calls as possible
+     */
+    @Test
+    public void effectsAreCoalesced() {
+        Instant currentTime = start;
+        PomodoroSession session = new PomodoroSession(mockMember, mockChannel, "25 10", currentTime);
+        session.userStartSession(currentTime);
+        int messagesBefore = mockMessages.size();
+        session.executeEffects(Effect.EDIT_MAIN.mask | Effect.POST_MAIN.mask, currentTime.plusSeconds(120));
+        // Only the post happens, the edit is redundant
+        Assertions.assertEquals(messagesBefore + 1, mockMessages.size());
+        Assertions.assertTrue(mockMessages.get(mockMessages.size() - 1).isNew);
+    }
+
+    /**
+     * Many sessions transitioning on the same tick: pings must all go out straight away and the rest of the work
+     * should be spread out. Compares the peak requests per second with and without pacing
+     */
+    @Test
+    public void transitionPacing() {
+        final int sessionCount = 500;
+        int[] unpaced = measureTransitionRestCalls(sessionCount, 0);
+        int[] paced = measureTransitionRestCalls(sessionCount, 10000);
+        System.out.println(String.format("Peak REST calls per second for %d simultaneous transitions: %d unpaced, %d "
+                + "paced (%d total each)", sessionCount, unpaced[0], paced[0], paced[2]));
+        Assertions.assertEquals(sessionCount, unpaced[1]);
+        Assertions.assertEquals(sessionCount, paced[1]);
+        Assertions.assertEquals(unpaced[2], paced[2]);
+        Assertions.assertTrue(paced[0] < unpaced[0] / 2);
+    }
+
+    /**
+     * Runs sessions that all transition at the same time using a virtual clock for the pacer
+     *
+     * @return {peak calls in a second, pings sent in the transition's second, total calls}
+     */
+    @SuppressWarnings("unchecked")
+    private int[] measureTransitionRestCalls(int sessionCount, long windowMillis) {
+        long[] virtualTime = {0};
+        Map<Long, Integer> callsPerSecond = new HashMap<>();
+        int[] pingsInTransitionSecond = {0};
+        long transitionTime = 26 * 60 * 1000;
+        Runnable recordCall = () -> callsPerSecond.merge(virtualTime[0] / 1000, 1, Integer::sum);
+
+        Message message = mock(Message.class);
+        AuditableRestAction restAction = mock(AuditableRestAction.class);
+        MessageAction messageAction = mock(MessageAction.class);
+        doAnswer(ans -> {
+            recordCall.run();
+            return null;
+        }).when(restAction).queue();
+        doAnswer(ans -> {
+            recordCall.run();
+            ((Consumer<Message>) ans.getArguments()[0]).accept(message);
+            return null;
+        }).when(messageAction).queue(any(Consumer.class));
+        doAnswer(ans -> {
+            recordCall.run();
+            return null;
+        }).when(messageAction).queue();
+        doAnswer(ans -> {
+            recordCall.run();
+            ((Consumer<Message>) ans.getArguments()[0]).accept(message);
+            return null;
+        }).when(messageAction).queue(any(Consumer.class), any(Consumer.class));
+        when(message.getIdLong()).thenReturn(1L);
+        TextChannel channel = mock(TextChannel.class);
+        when(channel.getGuild()).thenReturn(mockGuild);
+        JDA jda = mock(JDA.class);
+        when(channel.getJDA()).thenReturn(jda);
+        when(jda.getTextChannelById(anyLong())).thenReturn(channel);
+        when(channel.editMessageById(anyLong(), any(MessageEmbed.class))).thenReturn(messageAction);
+        when(channel.clearReactionsById(anyLong())).thenReturn(restAction);
+        when(channel.addReactionById(anyLong(), anyString())).thenReturn(restAction);
+        when(channel.deleteMessageById(anyLong())).thenReturn(restAction);
+        when(channel.sendMessage(any(MessageEmbed.class))).thenReturn(messageAction);
+        when(channel.sendMessage(anyString())).thenAnswer(ans -> {
+            if (virtualTime[0] == transitionTime) {
+                pingsInTransitionSecond[0]++;
+            }
+            return messageAction;
+        });
+
+        TreeMap<Long, List<Runnable>> tasks = new TreeMap<>();
+        TransitionPacer pacer = new TransitionPacer(windowMillis,
+                (task, delayMillis) -> tasks.computeIfAbsent(virtualTime[0] + delayMillis, k -> new ArrayList<>())
+                        .add(task)
+        );
+        List<PomodoroSession> sessions = new ArrayList<>();
+        for (int i = 0; i < sessionCount; i++) {
+            PomodoroSession session = new PomodoroSession(mockMember, channel, "25 10 delete:on", start);
+            session.userStartSession(start);
+            sessions.add(session);
+        }
+        callsPerSecond.clear();
+
+        virtualTime[0] = transitionTime;
+        for (PomodoroSession session : sessions) {
+            session.update(start.plusMillis(virtualTime[0]), pacer);
+        }
+        while (!tasks.isEmpty()) {
+            Map.Entry<Long, List<Runnable>> due = tasks.pollFirstEntry();
+            virtualTime[0] = due.getKey();
+            due.getValue().forEach(Runnable::run);
+        }
+        for (PomodoroSession session : sessions) {
+            Assertions.assertEquals(PomodoroSession.SessionState.BREAK, session.getSessionState());
+        }
+
+        int peak = 0;
+        int total = 0;
+        for (int calls : callsPerSecond.values()) {
+            peak = Math.max(peak, calls);
+            total += calls;
+        }
+        return new int[]{peak, pingsInTransitionSecond[0], total};
+    }
+
+    /**
+     * A session restored from a saved snapshot should carry on where it left off. Also measures the time from loading
+     * 10k saved sessions to all of them having ticked
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void sessionSnapshotRestore() {
+        final int sessionCount = 10000;
+        DatabaseWrapper.setTestMode();
+        // Only the sessions are being tested, not the database file
+        DatabaseWrapper.setStorageType(StorageType.IN_MEMORY);
+        DatabaseWrapper.setDatabaseEntryTypes(DatabaseEntryHelper.getAllTypes());
+        try {
+            // Snapshots store times to the millisecond
+            Instant currentTime = start.truncatedTo(ChronoUnit.MILLIS);
+            PomodoroSession session = new PomodoroSession(mockMember, mockChannel, "30 15 40 3 auto:off images:on",
+                    currentTime
+            );
+            session.getParticipants().addParticipant(mockMember, false, "Essay");
+            session.userStartSession(currentTime);
+            // Auto is off so this will pause until the break is started
+            currentTime = currentTime.plus(31, ChronoUnit.MINUTES);
+            session.update(currentTime, false);
+            Assertions.assertTrue(session.hasUnsavedChanges());
+            PomodoroSessionSnapshot snapshot = session.takeSnapshot();
+            Assertions.assertFalse(session.hasUnsavedChanges());
+            for (int i = 0; i < sessionCount; i++) {
+                DatabaseWrapper.saveData(String.valueOf(i), snapshot);
+            }
+
+            /*
+             * Restart
+             */
+            TransitionPacer pacer = new TransitionPacer(1000, (task, delayMillis) -> { });
+            Instant restartTime = currentTime.plus(2, ChronoUnit.MINUTES);
+            long startNanos = System.nanoTime();
+            Map<String, PomodoroSessionSnapshot> snapshots = DatabaseWrapper
+                    .getAllData(PomodoroSessionSnapshot.class);
+            List<PomodoroSession> restored = new ArrayList<>();
+            for (PomodoroSessionSnapshot loaded : snapshots.values()) {
+                PomodoroSession restoredSession = new PomodoroSession(loaded, mockChannel);
+                restoredSession.update(restartTime, pacer);
+                restored.add(restoredSession);
+            }
+            long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+            System.out.println(String.format("Restart to ticking for %d sessions: %d ms", sessionCount, elapsedMillis));
+            Assertions.assertEquals(sessionCount, restored.size());
+
+            /*
+             * Restored session matches the original
+             */
+            PomodoroSession restoredSession = restored.get(0);
+            Assertions.assertEquals(PomodoroSession.SessionState.PAUSED, restoredSession.getSessionState());
+            Assertions.assertEquals(session.getSessionSettingsString(false),
+                    restoredSession.getSessionSettingsString(false)
+            );
+            Assertions.assertArrayEquals(session.getStateMachine().getHistoricStateData().getPackedItems(),
+                    restoredSession.getStateMachine().getHistoricStateData().getPackedItems()
+            );
+            Assertions.assertEquals(session.getStateMachine().getTimeCurrentStateEnds(),
+                    restoredSession.getStateMachine().getTimeCurrentStateEnds()
+            );
+            List<MessageEmbed.Field> expectedFields = session.buildEmbed(restartTime).getFields();
+            List<MessageEmbed.Field> actualFields = restoredSession.buildEmbed(restartTime).getFields();
+            Assertions.assertEquals(expectedFields.size(), actualFields.size());
+            for (int i = 0; i < expectedFields.size(); i++) {
+                Assertions.assertEquals(expectedFields.get(i).getName(), actualFields.get(i).getName());
+                Assertions.assertEquals(expectedFields.get(i).getValue(), actualFields.get(i).getValue());
+            }
+            restoredSession.userResumeSession(restartTime);
+            Assertions.assertEquals(PomodoroSession.SessionState.BREAK, restoredSession.getSessionState());
+        }
+        finally {
+            Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+        }
+    }
+
+    /**
+     * Saving a session's snapshot against the one it last saved should only write the fields that changed. Its JSON
+     * is long enough that it would be compressed (which can't be written in place) if it weren't kept as plain JSON
+     */
+    @Test
+    public void sessionSnapshotPartialSave() {
+        DatabaseWrapper.setTestMode();
+        // The changes are only written in place by SQLite
+        DatabaseWrapper.setStorageType(StorageType.SQLITE);
+        DatabaseWrapper.setDatabaseEntryTypes(DatabaseEntryHelper.getAllTypes());
+        try {
+            Instant currentTime = start.truncatedTo(ChronoUnit.MILLIS);
+            PomodoroSession session = new PomodoroSession(mockMember, mockChannel, "30 15 40 3 images:on",
+                    currentTime
+            );
+            session.getParticipants().addParticipant(mockMember, false, "Essay");
+            DatabaseWrapper.saveData(session.getChannelId(), session.takeSnapshot());
+            DatabaseWrapper.flush();
+            long partialEntries = DatabaseWrapper.getCacheStats().partialEntries;
+
+            session.userStartSession(currentTime);
+            PomodoroSessionSnapshot previous = session.getSavedSnapshot();
+            PomodoroSessionSnapshot started = session.takeSnapshot();
+            Assertions.assertFalse(started.getChangedFields(previous).isEmpty());
+            DatabaseWrapper.saveData(session.getChannelId(), started, previous);
+            DatabaseWrapper.flush();
+            Assertions.assertEquals(partialEntries + 1, DatabaseWrapper.getCacheStats().partialEntries);
+
+            DatabaseWrapper.closeConnection();
+            PomodoroSessionSnapshot loaded = DatabaseWrapper.getData(session.getChannelId(),
+                    PomodoroSessionSnapshot.class
+            );
+            Assertions.assertTrue(started.getChangedFields(loaded).isEmpty());
+            Assertions.assertEquals(PomodoroSession.SessionState.WORK,
+                    new PomodoroSession(loaded, mockChannel).getSessionState()
+            );
+        }
+        finally {
+            Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+        }
+    }
+
+    /**
+     * Bulk bans and unbans must match a TreeSet and survive a save and load. Also times banning a raid of 500 accounts
+     * into a guild that already has bans
+     */
+    @Test
+    public void guildBans() {
+        Random random = new Random(54321);
+        PomodoroGuildBans bans = new PomodoroGuildBans();
+        TreeSet<Long> expected = new TreeSet<>();
+        for (int round = 0; round < 200; round++) {
+            // Small range so batches overlap each other and the existing bans
+            long[] batch = new long[random.nextInt(20)];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = random.nextInt(100);
+            }
+            int changed = 0;
+            if (random.nextBoolean()) {
+                for (long id : batch) {
+                    changed += expected.add(id) ? 1 : 0;
+                }
+                Assertions.assertEquals(changed, bans.addAll(batch));
+            }
+            else {
+                for (long id : batch) {
+                    changed += expected.remove(id) ? 1 : 0;
+                }
+                Assertions.assertEquals(changed, bans.removeAll(batch));
+            }
+            Assertions.assertEquals(expected.size(), bans.size());
+            for (long id = 0; id < 100; id++) {
+                Assertions.assertEquals(expected.contains(id), bans.contains(id));
+            }
+        }
+
+        long[] raid = new long[500];
+        for (int i = 0; i < raid.length; i++) {
+            raid[i] = 700000000000000000L + random.nextInt(Integer.MAX_VALUE);
+        }
+        long startNanos = System.nanoTime();
+        int added = bans.addAll(raid);
+        System.out.println(String.format("Banning %d accounts: %d us", raid.length,
+                (System.nanoTime() - startNanos) / 1000
+        ));
+        Assertions.assertEquals(expected.size() + added, bans.size());
+        for (long id : raid) {
+            Assertions.assertTrue(bans.contains(id));
+        }
+
+        DatabaseWrapper.setTestMode();
+        DatabaseWrapper.setStorageType(StorageType.IN_MEMORY);
+        DatabaseWrapper.setDatabaseEntryTypes(DatabaseEntryHelper.getAllTypes());
+        try {
+            DatabaseWrapper.saveData("1", bans);
+            PomodoroGuildBans loaded = DatabaseWrapper.getData("1", PomodoroGuildBans.class);
+            Assertions.assertEquals(bans.size(), loaded.size());
+            for (long id : raid) {
+                Assertions.assertTrue(loaded.contains(id));
+            }
+            Assertions.assertEquals(added, loaded.removeAll(raid));
+            Assertions.assertEquals(expected.size(), loaded.size());
+            Assertions.assertNull(DatabaseWrapper.getData("2", PomodoroGuildBans.class));
+        }
+        finally {
+            Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+        }
+    }
+
+    /**
+     * Sessions should start from the guild's saved defaults, which are read from the database once and then cached
+     * until they're saved again
+     */
+    @Test
+    public void guildDefaultSettings() {
+        DatabaseWrapper.setTestMode();
+        DatabaseWrapper.setStorageType(StorageType.IN_MEMORY);
+        DatabaseWrapper.setDatabaseEntryTypes(DatabaseEntryHelper.getAllTypes());
+        try {
+            final long guildId = 12345;
+            Assertions.assertSame(PomodoroSettings.getDefault(), PomodoroCommand.getGuildDefaults(guildId));
+            PomodoroSettings custom = PomodoroSettings.getDefault().withArgs("40 10 auto:on");
+            PomodoroCommand.saveGuildDefaults(guildId, custom);
+
+            long[] before = PomodoroCommand.getGuildDefaultsCacheStats();
+            Assertions.assertSame(custom, PomodoroCommand.getGuildDefaults(guildId));
+            for (int i = 0; i < 100; i++) {
+                PomodoroCommand.getGuildDefaults(guildId);
+            }
+            long[] after = PomodoroCommand.getGuildDefaultsCacheStats();
+            Assertions.assertEquals(100, after[0] - before[0]);
+            Assertions.assertEquals(1, after[1] - before[1]);
+
+            PomodoroSession session = new PomodoroSession(mockMember, mockChannel,
+                    PomodoroCommand.getGuildDefaults(guildId), "images:on", start
+            );
+            Assertions.assertEquals(custom.withArgs("images:on"), session.getSettings());
+
+            // Saving the bot's defaults removes the entry
+            PomodoroCommand.saveGuildDefaults(guildId, PomodoroSettings.getDefault());
+            Assertions.assertNull(DatabaseWrapper.getData(String.valueOf(guildId), PomodoroSettings.class));
+            Assertions.assertSame(PomodoroSettings.getDefault(), PomodoroCommand.getGuildDefaults(guildId));
+        }
+        finally {
+            Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+        }
+    }
+
+    /**
+     * Participants and completed items are capped with a user-facing error. Idle paused or not started sessions are
+     * evicted to the database and come back when they're next looked up
+     */
+    @Test
+    public void sessionLimitsAndEviction() {
+        DatabaseWrapper.setTestMode();
+        DatabaseWrapper.setStorageType(StorageType.IN_MEMORY);
+        DatabaseWrapper.setDatabaseEntryTypes(DatabaseEntryHelper.getAllTypes());
+        try {
+            /*
+             * Participants
+             */
+            SessionLimits.setMaxParticipants(2);
+            PomodoroSession session = new PomodoroSession(mockMember, mockChannel, "", start);
+            Member other = mock(Member.class);
+            when(other.getIdLong()).thenReturn(2L);
+            when(other.getEffectiveName()).thenReturn("Other");
+            session.getParticipants().addParticipant(other, true);
+            Member full = mock(Member.class);
+            when(full.getIdLong()).thenReturn(3L);
+            Assertions.assertThrows(BadUserInputException.class,
+                    () -> session.getParticipants().addParticipant(full, true)
+            );
+            // Already participating so they aren't adding to the count
+            session.getParticipants().addParticipant(other, false, "Reading");
+            Assertions.assertEquals(2, session.getParticipants().size());
+
+            /*
+             * Eviction
+             */
+            SessionRegistry registry = new SessionRegistry();
+            registry.add(session);
+            Instant currentTime = start.plus(SessionLimits.getIdleEvictionMinutes() - 1, ChronoUnit.MINUTES);
+            Assertions.assertEquals(0, registry.evictIdle(currentTime));
+            currentTime = start.plus(SessionLimits.getIdleEvictionMinutes() + 1, ChronoUnit.MINUTES);
+            Assertions.assertEquals(1, registry.evictIdle(currentTime));
+            Assertions.assertEquals(0, registry.getLiveCount());
+            Assertions.assertEquals(1, registry.getEvictedCount());
+            Assertions.assertTrue(registry.contains(session.getChannelIdLong()));
+            Assertions.assertNull(registry.getLive(session.getChannelIdLong()));
+            // Reactions are matched against the kept message id without reloading
+            Assertions.assertTrue(registry.isMainMessage(session.getChannelIdLong(), session.getMessageIdLong()));
+            Assertions.assertFalse(registry.isMainMessage(session.getChannelIdLong(), session.getMessageIdLong() + 1));
+            Assertions.assertEquals(1, registry.getEvictedCount());
+
+            PomodoroSession reloaded = registry.get(mockChannel.getJDA(), session.getChannelIdLong(), currentTime);
+            Assertions.assertNotNull(reloaded);
+            Assertions.assertEquals(currentTime, reloaded.getLastTouched());
+            Assertions.assertEquals(1, registry.getLiveCount());
+            Assertions.assertEquals(0, registry.getEvictedCount());
+            Assertions.assertEquals(PomodoroSession.SessionState.NOT_STARTED, reloaded.getSessionState());
+            Assertions.assertTrue(reloaded.getParticipants().isParticipant(2));
+            Assertions.assertArrayEquals(new long[]{1, 1}, registry.getStats());
+
+            // Running sessions stay in memory however long they go untouched
+            reloaded.userStartSession(currentTime);
+            Assertions.assertEquals(0, registry.evictIdle(currentTime.plus(1, ChronoUnit.DAYS)));
+
+            /*
+             * Completed items
+             */
+            SessionLimits.setMaxCompletedItems(3);
+            for (int i = 0; i < 3; i++) {
+                currentTime = currentTime.plus(1, ChronoUnit.MINUTES);
+                reloaded.update(currentTime, true);
+            }
+            Instant skipTime = currentTime.plus(1, ChronoUnit.MINUTES);
+            Assertions.assertThrows(BadUserInputException.class, () -> reloaded.update(skipTime, true));
+            Assertions.assertNotEquals(PomodoroSession.SessionState.FINISHED, reloaded.getSessionState());
+            // The timer running out with no room left ends the session
+            reloaded.update(currentTime.plus(1, ChronoUnit.DAYS), false);
+            Assertions.assertEquals(PomodoroSession.SessionState.FINISHED, reloaded.getSessionState());
+
+            registry.checkCapacity();
+            SessionLimits.setMaxSessions(1);
+            Assertions.assertThrows(BadUserInputException.class, registry::checkCapacity);
+        }
+        finally {
+            SessionLimits.resetToDefaults();
+            Assertions.assertTrue(DatabaseWrapper.deleteDatabase());
+        }
+    }
+
+    /**
+     * Property test: random puts and removes on a LongMap must match a HashMap. Small key ranges force collisions and
+     * removals from the middle of probe sequences
+     */
+    @Test
+    public void longMapMatchesHashMap() {
+        Random random = new Random(12345);
+        for (int trial = 0; trial < 200; trial++) {
+            LongMap<Integer> longMap = new LongMap<>();
+            Map<Long, Integer> expected = new HashMap<>();
+            int keyRange = 1 + random.nextInt(200);
+            for (int i = 0; i < 2000; i++) {
+                // Snowflake-like keys: shared high bits, small differences in the low bits
+                long key = (random.nextInt(keyRange) == 0 ? 0 : 0x2E2A4B8C00000000L) + random.nextInt(keyRange);
+                if (random.nextInt(3) == 0) {
+                    Assertions.assertEquals(expected.remove(key), longMap.remove(key));
+                }
+                else {
+                    Assertions.assertEquals(expected.put(key, i), longMap.put(key, i));
+                }
+                Assertions.assertEquals(expected.size(), longMap.size());
+            }
+            for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+                Assertions.assertTrue(longMap.containsKey(entry.getKey()));
+                Assertions.assertEquals(entry.getValue(), longMap.get(entry.getKey()));
+            }
+            Map<Long, Integer> iterated = new HashMap<>();
+            longMap.forEach((key, value) -> Assertions.assertNull(iterated.put(key, value)));
+            Assertions.assertEquals(expected, iterated);
+        }
+    }
+
+    /**
+     * Compares the memory held by the session and participant maps (10k sessions with 20 participants each) when keyed
+     * by boxed/object keys as they used to be and when keyed by primitive longs. Also compares the allocation of a
+     * session lookup from a channel id
+     */
+    @Test
+    public void primitiveKeyMemory() {
+        final int sessionCount = 10000;
+        final int participantsPerSession = 20;
+        final long firstId = 780000000000000000L;
+        // Details and members are shared by both layouts so only the maps themselves are measured
+        Object detail = new Object();
+        Object[] members = new Object[participantsPerSession];
+        for (int i = 0; i < participantsPerSession; i++) {
+            members[i] = new Object();
+        }
+
+        long heapBefore = usedHeapAfterGc();
+        Map<String, Map<Object, Object>> objectKeyed = new HashMap<>();
+        for (int i = 0; i < sessionCount; i++) {
+            Map<Object, Object> participants = new HashMap<>();
+            for (Object member : members) {
+                participants.put(member, detail);
+            }
+            objectKeyed.put(Long.toUnsignedString(firstId + i), participants);
+        }
+        long objectKeyedBytes = usedHeapAfterGc() - heapBefore;
+
+        heapBefore = usedHeapAfterGc();
+        LongMap<LongMap<Object>> longKeyed = new LongMap<>();
+        for (int i = 0; i < sessionCount; i++) {
+            LongMap<Object> participants = new LongMap<>();
+            for (int j = 0; j < participantsPerSession; j++) {
+                participants.put(firstId + sessionCount + j, detail);
+            }
+            longKeyed.put(firstId + i, participants);
+        }
+        long longKeyedBytes = usedHeapAfterGc() - heapBefore;
+        Assertions.assertEquals(objectKeyed.size(), longKeyed.size());
+
+        /*
+         * Allocation per lookup (the channel id string used to be created from the event for every lookup)
+         */
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int found = 0;
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < sessionCount; i++) {
+            found += objectKeyed.get(Long.toUnsignedString(firstId + i)) == null ? 0 : 1;
+        }
+        long objectKeyedLookupBytes = (threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / sessionCount;
+        allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < sessionCount; i++) {
+            found += longKeyed.get(firstId + i) == null ? 0 : 1;
+        }
+        long longKeyedLookupBytes = (threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / sessionCount;
+        Assertions.assertEquals(2 * sessionCount, found);
+
+        System.out.println(String.format("Session and participant maps for %d sessions of %d participants: %d bytes "
+                        + "per session object-keyed, %d bytes per session long-keyed. Bytes allocated per lookup: %d "
+                        + "object-keyed, %d long-keyed", sessionCount, participantsPerSession,
+                objectKeyedBytes / sessionCount, longKeyedBytes / sessionCount, objectKeyedLookupBytes,
+                longKeyedLookupBytes
+        ));
+        Assertions.assertTrue(longKeyedBytes < objectKeyedBytes);
+        Assertions.assertTrue(longKeyedLookupBytes < objectKeyedLookupBytes);
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Reference implementation: counts work sessions by walking the items backwards
+     */
+    private static int scanCountWorkSessions(List<PomodoroSession.SessionState> itemStates,
+            boolean countSinceLongBreak, PomodoroSession.SessionState currentState
+    ) {
+        PomodoroSession.SessionState lastActiveState = currentState.isActiveState() ? currentState : null;
+        int count = 0;
+        for (int i = itemStates.size() - 1; i >= 0; i--) {
+            PomodoroSession.SessionState state = itemStates.get(i);
+            if (state == PomodoroSession.SessionState.LONG_BREAK && countSinceLongBreak) {
+                break;
+            }
+            else if (state == PomodoroSession.SessionState.WORK
+                    && lastActiveState != PomodoroSession.SessionState.WORK) {
+                count++;
+            }
+            if (state.isActiveState()) {
+                lastActiveState = state;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reference implementation: finds the remaining time of a resumed state by walking the items backwards
+     */
+    private static int scanNextStateDurationAdjusted(List<PomodoroSession.SessionState> itemStates,
+            List<Integer> itemTimes, PomodoroSession.SessionState nextState, PomodoroSettings settings
+    ) {
+        int timeRemaining = settings.getStateDuration(nextState);
+        for (int i = itemStates.size() - 1; i >= 0; i--) {
+            if (itemStates.get(i) == nextState) {
+                timeRemaining -= itemTimes.get(i);
+                continue;
+            }
+            if (!itemStates.get(i).isActiveState()) {
+                continue;
+            }
+            break;
+        }
+        return timeRemaining;
+    }
+
     private enum EmbedFields {
         PARTICIPANTS("Ping"), WORKING_ON("working"), COMPLETED_STATS("Completed"), SESSION_SETTINGS("Settings");
 
@@ -651,6 +1709,7 @@ public class PomodoroUnitTests {
             AuditableRestAction mockAuditableRestAction = mock(AuditableRestAction.class);
 
             Message mockMessage = mock(Message.class);
+            when(mockMessage.getIdLong()).thenReturn((long) mockMessages.size() + 1);
             when(mockMessage.editMessage(any(MessageEmbed.class))).thenAnswer(editAns -> {
                 new MockMessage((MessageEmbed) editAns.getArguments()[0], false);
                 return mockMessageAction;